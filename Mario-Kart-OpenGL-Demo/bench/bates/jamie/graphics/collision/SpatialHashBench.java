@@ -0,0 +1,142 @@
+package bates.jamie.graphics.collision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import bates.jamie.graphics.util.Vec3;
+
+/**
+ * Compares finding the colliding pairs of a set of items by testing every pair
+ * against finding them through a spatial hash, for 1k, 5k and 10k spheres and
+ * OBBs scattered through a ball and across a flat disc. The bounds are moved
+ * a little every frame, as items are, and half of them may collide with any
+ * other, as shells may; the pairs found by both methods are compared.
+ *
+ * Both methods are run until they have been compiled before anything is timed,
+ * and the median frame of each is reported.
+ */
+public class SpatialHashBench
+{
+	public static final int[] SIZES = {1000, 5000, 10000};
+	
+	public static final int BRUTE_FRAMES = 5;
+	public static final int HASH_FRAMES  = 40;
+	public static final int WARM_UP      = 20;
+	
+	public static void main(String[] args)
+	{
+		// compile both methods at a small size first
+		for(int k = 0; k < WARM_UP; k++) run(1000, false, 1, 1, null);
+		
+		System.out.printf("%-5s %6s %12s %12s %10s %10s %10s %s\n",
+			"shape", "items", "brute (ms)", "hash (ms)", "broad (ms)", "candidates", "collisions", "mismatches");
+		
+		for(int flat = 0; flat < 2; flat++)
+			for(int n : SIZES) run(n, flat == 1, BRUTE_FRAMES, HASH_FRAMES, flat == 1 ? "disc" : "ball");
+	}
+	
+	private static void run(int n, boolean flat, int bruteFrames, int hashFrames, String name)
+	{
+		Random generator = new Random(n);
+		
+		Bound[] bounds = new Bound[n];
+		boolean[] shell = new boolean[n];
+		
+		for(int i = 0; i < n; i++)
+		{
+			float x, y, z;
+			
+			do
+			{
+				x = generator.nextFloat() * 2 - 1;
+				y = generator.nextFloat() * 2 - 1;
+				z = generator.nextFloat() * 2 - 1;
+			}
+			while(x * x + y * y + z * z > 1);
+			
+			if(flat) y = 0;
+			
+			shell[i] = generator.nextBoolean();
+			bounds[i] = (i % 3 == 0) ?
+				new OBB(new float[] {x * 50, y * 50, z * 50}, new float[] {0, generator.nextFloat() * 90, 0}, new float[] {0.8f, 0.6f, 0.8f}, null) :
+				new Sphere(new Vec3(x * 50, y * 50, z * 50), 1.0f);
+		}
+		
+		SpatialHash hash = new SpatialHash();
+		
+		int frames = Math.max(bruteFrames, hashFrames);
+		long[] brute = new long[bruteFrames];
+		long[] fast  = new long[hashFrames];
+		long[] broad = new long[hashFrames];
+		
+		int mismatches = 0, collisions = 0;
+		long candidates = 0;
+		
+		List<Long> expected = new ArrayList<Long>();
+		List<Long> found    = new ArrayList<Long>();
+		
+		for(int f = 0; f < frames; f++)
+		{
+			for(int i = 0; i < n; i++)
+			{
+				Vec3 c = bounds[i].c;
+				bounds[i].c = new Vec3(c.x + (generator.nextFloat() - 0.5f) * 0.5f, c.y, c.z + (generator.nextFloat() - 0.5f) * 0.5f);
+			}
+			
+			expected.clear();
+			found.clear();
+			
+			if(f < bruteFrames)
+			{
+				long start = System.nanoTime();
+				
+				for(int i = 0; i < n - 1; i++)
+					for(int j = i + 1; j < n; j++)
+						if((shell[i] || shell[j]) && bounds[i].testBound(bounds[j])) expected.add((long) i << 32 | j);
+				
+				brute[f] = System.nanoTime() - start;
+			}
+			
+			if(f < hashFrames)
+			{
+				long start = System.nanoTime();
+				
+				hash.update(bounds, n);
+				int pairs = hash.findPairs();
+				
+				broad[f] = System.nanoTime() - start;
+				
+				for(int k = 0; k < pairs; k++)
+				{
+					int i = hash.getFirst(k), j = hash.getSecond(k);
+					if((shell[i] || shell[j]) && bounds[i].testBound(bounds[j])) found.add((long) i << 32 | j);
+				}
+				
+				fast[f] = System.nanoTime() - start;
+				candidates += pairs;
+			}
+			
+			if(f < bruteFrames && f < hashFrames)
+			{
+				if(!expected.equals(found)) mismatches++;
+				collisions += expected.size();
+			}
+		}
+		
+		if(name == null) return;
+		
+		System.out.printf("%-5s %6d %12.2f %12.3f %10.3f %10d %10d %d of %d\n", name, n,
+			median(brute), median(fast), median(broad), candidates / hashFrames,
+			collisions / Math.min(bruteFrames, hashFrames), mismatches, Math.min(bruteFrames, hashFrames));
+	}
+	
+	private static double median(long[] times)
+	{
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		
+		return sorted[sorted.length / 2] / 1E6;
+	}
+}
@@ -0,0 +1,65 @@
+package bates.jamie.graphics.entity;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the time taken and the memory allocated by each stroke applied to a
+ * LOD 10 quadtree, using the allocation counter of the current thread. Once the
+ * scratch state of the root has been sized by the first strokes, a stroke
+ * should not allocate anything. Checksums of the vertex, normal and tangent
+ * buffers are printed so that the surface can be compared between revisions.
+ */
+public class DeformAllocationBench
+{
+	public static final int STROKES = 12;
+	public static final int WARM_UP = 2;
+	
+	public static void main(String[] args)
+	{
+		Quadtree tree = new Quadtree(210, 32, -10, null, 7);
+		tree.subdivideAll(); tree.subdivideAll(); tree.subdivideAll();
+		
+		ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		
+		float[][] strokes = {{0, 0, 0}, {40, 0, -30}, {-100, 0, 80}, {150, 0, 150}};
+		
+		long allocated = 0;
+		
+		for(int k = 0; k < STROKES; k++)
+		{
+			float[] p = strokes[k % strokes.length];
+			
+			long b0 = bean.getThreadAllocatedBytes(id);
+			long t0 = System.nanoTime();
+			
+			tree.deform(p, 60, k % 2 == 0 ? 2 : -1);
+			
+			long t1 = System.nanoTime();
+			long b1 = bean.getThreadAllocatedBytes(id);
+			
+			if(k >= WARM_UP) allocated += b1 - b0;
+			
+			System.out.printf("deform r = 60: %6.1f ms, %10d bytes allocated\n", (t1 - t0) / 1E6, b1 - b0);
+		}
+		
+		System.out.printf("allocated after warm-up: %d bytes (%s)\n", allocated, allocated == 0 ? "pass" : "FAIL");
+		
+		VertexStore store = tree.store;
+		int n = store.size() * 3;
+		
+		System.out.printf("checksums: vertices %.4f, normals %.4f, tangents %.4f\n",
+			checksum(store.vBuffer, n), checksum(store.nBuffer, n), checksum(store.aBuffer, n));
+	}
+	
+	private static double checksum(FloatBuffer buffer, int n)
+	{
+		double sum = 0;
+		for(int i = 0; i < n; i++) sum += buffer.get(i) * (1 + (i % 7));
+		
+		return sum;
+	}
+}
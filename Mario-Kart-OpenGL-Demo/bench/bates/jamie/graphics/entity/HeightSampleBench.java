@@ -0,0 +1,72 @@
+package bates.jamie.graphics.entity;
+
+import java.util.Random;
+
+/**
+ * Compares sampling the heights of a LOD 10 quadtree one point at a time
+ * against sampling them in bulk, first on a grid of points that often share
+ * a cell and then along a random walk that rarely does.
+ */
+public class HeightSampleBench
+{
+	public static final int SAMPLES = 1000000;
+	public static final int RUNS    = 5;
+	
+	public static void main(String[] args)
+	{
+		Quadtree tree = new Quadtree(210, 32, -10, null, 7);
+		tree.subdivideAll(); tree.subdivideAll(); tree.subdivideAll();
+		
+		float[] x = new float[SAMPLES];
+		float[] z = new float[SAMPLES];
+		
+		for(int i = 0; i < SAMPLES; i++)
+		{
+			x[i] = -200 + (i % 1000) * 0.1f;
+			z[i] = -200 + (i / 1000) * 0.1f;
+		}
+		
+		compare(tree, "grid", x, z);
+		
+		Random generator = new Random(3);
+		float px = 0, pz = 0;
+		
+		for(int i = 0; i < SAMPLES; i++)
+		{
+			px = Math.max(-200, Math.min(200, px + generator.nextFloat() - 0.5f));
+			pz = Math.max(-200, Math.min(200, pz + generator.nextFloat() - 0.5f));
+			
+			x[i] = px;
+			z[i] = pz;
+		}
+		
+		compare(tree, "random walk", x, z);
+	}
+	
+	private static void compare(Quadtree tree, String name, float[] x, float[] z)
+	{
+		float[] heights = new float[SAMPLES];
+		
+		for(int run = 0; run < RUNS; run++)
+		{
+			double single = 0, bulk = 0;
+			
+			long t0 = System.nanoTime();
+			
+			for(int i = 0; i < SAMPLES; i++)
+			{
+				float[] p = {x[i], 0, z[i]};
+				single += tree.getCell(p, Quadtree.MAXIMUM_LOD).getHeight(p);
+			}
+			
+			long t1 = System.nanoTime();
+			tree.getHeights(x, z, heights, SAMPLES, Quadtree.MAXIMUM_LOD);
+			long t2 = System.nanoTime();
+			
+			for(float h : heights) bulk += h;
+			
+			System.out.printf("%s, %d samples: per-point %.1f ms, bulk %.1f ms (sums %.3f / %.3f)\n",
+				name, SAMPLES, (t1 - t0) / 1E6, (t2 - t1) / 1E6, single, bulk);
+		}
+	}
+}
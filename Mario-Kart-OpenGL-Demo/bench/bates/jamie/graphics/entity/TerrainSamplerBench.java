@@ -0,0 +1,135 @@
+package bates.jamie.graphics.entity;
+
+import java.util.Random;
+
+/**
+ * Compares the bulk height samplers of the height map and of the quadtree with
+ * sampling each point in turn, at a million points scattered at random and a
+ * million points laid out in scan lines. The best of several runs is reported,
+ * along with how far the results of the two methods differ.
+ *
+ * The height map is filled in directly rather than generated, so the terrain
+ * is created from its heights alone, without a GL context.
+ */
+public class TerrainSamplerBench
+{
+	public static final int SAMPLES = 1 << 20;
+	public static final int RUNS    = 15;
+	
+	public static void main(String[] args) throws Exception
+	{
+		Random generator = new Random(3);
+		
+		Terrain terrain = createTerrain(512, generator);
+		
+		float half = terrain.length * Terrain.sx / 2;
+		
+		float[][] xs = new float[2][SAMPLES];
+		float[][] zs = new float[2][SAMPLES];
+		String[] names = {"random", "scanline"};
+		
+		for(int i = 0; i < SAMPLES; i++)
+		{
+			xs[0][i] = (generator.nextFloat() * 2 - 1) * half;
+			zs[0][i] = (generator.nextFloat() * 2 - 1) * half;
+			
+			xs[1][i] = -half + (i % 1024) * (2 * half / 1024);
+			zs[1][i] = -half + (i / 1024) * (2 * half / 1024);
+		}
+		
+		float[] single = new float[SAMPLES];
+		float[] bulk   = new float[SAMPLES];
+		float[] p = new float[3];
+		
+		for(int k = 0; k < names.length; k++)
+		{
+			long best0 = Long.MAX_VALUE, best1 = Long.MAX_VALUE;
+			
+			for(int run = 0; run < RUNS; run++)
+			{
+				long t0 = System.nanoTime();
+				
+				for(int i = 0; i < SAMPLES; i++)
+				{
+					p[0] = xs[k][i]; p[2] = zs[k][i];
+					single[i] = terrain.getHeight(p);
+				}
+				
+				long t1 = System.nanoTime();
+				terrain.getHeights(xs[k], zs[k], bulk, SAMPLES);
+				long t2 = System.nanoTime();
+				
+				best0 = Math.min(best0, t1 - t0);
+				best1 = Math.min(best1, t2 - t1);
+			}
+			
+			float difference = 0;
+			for(int i = 0; i < SAMPLES; i++) difference = Math.max(difference, Math.abs(single[i] - bulk[i]));
+			
+			System.out.printf("Terrain  %-8s: getHeight %.2f ms, getHeights %.2f ms, max difference %.2e\n",
+				names[k], best0 / 1E6, best1 / 1E6, difference);
+		}
+		
+		Quadtree tree = new Quadtree(210, 32, -10, null, 7);
+		tree.setHeights(300, 1.25f);
+		
+		for(int k = 0; k < names.length; k++)
+		{
+			float[] x = new float[SAMPLES];
+			float[] z = new float[SAMPLES];
+			
+			for(int i = 0; i < SAMPLES; i++)
+			{
+				x[i] = xs[k][i] / half * 210;
+				z[i] = zs[k][i] / half * 210;
+			}
+			
+			long best0 = Long.MAX_VALUE, best1 = Long.MAX_VALUE;
+			
+			for(int run = 0; run < RUNS; run++)
+			{
+				long t0 = System.nanoTime();
+				getHeights(tree, x, z, single, SAMPLES, tree.detail);
+				long t1 = System.nanoTime();
+				tree.getHeights(x, z, bulk, SAMPLES, tree.detail);
+				long t2 = System.nanoTime();
+				
+				best0 = Math.min(best0, t1 - t0);
+				best1 = Math.min(best1, t2 - t1);
+			}
+			
+			int differ = 0;
+			
+			for(int i = 0; i < SAMPLES; i++)
+				if(Float.floatToIntBits(single[i]) != Float.floatToIntBits(bulk[i])) differ++;
+			
+			System.out.printf("Quadtree %-8s: per cell %.2f ms, getHeights %.2f ms, %d results differ\n",
+				names[k], best0 / 1E6, best1 / 1E6, differ);
+		}
+	}
+	
+	// the quadtree sampler as it was before the corners of the last cell were kept
+	private static void getHeights(Quadtree root, float[] x, float[] z, float[] heights, int count, int lod)
+	{
+		Quadtree cell = null;
+		
+		for(int i = 0; i < count; i++)
+		{
+			if(cell == null || !cell.pointInCell(x[i], z[i])) cell = root.getCell(x[i], z[i], lod);
+			heights[i] = (cell != null) ? cell.getHeight(x[i], z[i], root.malleable) : 0;
+		}
+	}
+	
+	private static Terrain createTerrain(int length, Random generator)
+	{
+		float[][] heights = new float[length + 1][length + 1];
+		
+		for(int i = 0; i <= length; i++)
+			for(int j = 0; j <= length; j++)
+				heights[i][j] = (float) (Math.sin(i * 0.05) * Math.cos(j * 0.07) * 10 + generator.nextFloat());
+		
+		Terrain.sx = Terrain.sz = 1.2f;
+		
+		return new Terrain(heights);
+	}
+}
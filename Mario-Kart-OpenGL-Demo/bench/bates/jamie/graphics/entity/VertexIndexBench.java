@@ -0,0 +1,72 @@
+package bates.jamie.graphics.entity;
+
+import java.util.Random;
+
+/**
+ * Compares looking up the vertices of a LOD 10 quadtree through its vertex
+ * index against the depth-first walk of the hierarchy that it replaced. Both
+ * lookups should return the same indices, so their checksums cancel out.
+ */
+public class VertexIndexBench
+{
+	public static final int LOOKUPS = 200000;
+	public static final int RUNS    = 3;
+	
+	public static void main(String[] args)
+	{
+		Quadtree tree = new Quadtree(210, 32, -10, null, 7);
+		
+		long start = System.nanoTime();
+		tree.subdivideAll(); tree.subdivideAll(); tree.subdivideAll();
+		
+		System.out.printf("subdivideAll x3: %.1f ms, %d vertices\n", (System.nanoTime() - start) / 1E6, tree.vertexCount());
+		
+		Random generator = new Random(7);
+		float[][] points = new float[LOOKUPS][];
+		float increment = 420f / 1024;
+		
+		for(int i = 0; i < LOOKUPS; i++)
+		{
+			float x = -210 + generator.nextInt(1025) * increment;
+			float z = -210 + generator.nextInt(1025) * increment;
+			
+			float[] p = {x, 0, z};
+			p[1] = tree.getCell(p, Quadtree.MAXIMUM_LOD).getHeight(p);
+			points[i] = p;
+		}
+		
+		for(int run = 0; run < RUNS; run++)
+		{
+			long checksum = 0;
+			
+			long t0 = System.nanoTime();
+			for(float[] p : points) checksum += findVertex(tree, p);
+			long t1 = System.nanoTime();
+			for(float[] p : points) checksum -= tree.indexOf(p);
+			long t2 = System.nanoTime();
+			
+			System.out.printf("%d lookups: tree walk %.1f ms, hash index %.1f ms (checksum %d)\n",
+				LOOKUPS, (t1 - t0) / 1E6, (t2 - t1) / 1E6, checksum);
+		}
+	}
+	
+	// the search of the hierarchy previously used to find shared vertices
+	private static int findVertex(Quadtree tree, float[] p)
+	{
+		int index = tree.pointOnCell(p);
+		if(index != -1) return index;
+		
+		Quadtree[] children = {tree.north_west, tree.north_east, tree.south_west, tree.south_east};
+		
+		for(Quadtree child : children)
+		{
+			if(child != null && child.pointInCell(p))
+			{
+				index = findVertex(child, p);
+				if(index != -1) return index;
+			}
+		}
+		
+		return -1;
+	}
+}
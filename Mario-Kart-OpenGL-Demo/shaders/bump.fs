@@ -8,9 +8,14 @@ uniform sampler2D bumpmap;
 varying vec3 lightDir;
 varying vec3 eyeDir;
 varying vec4 shadowCoord;
+varying vec2 lightMapCoord;
 
 uniform sampler2DShadow shadowMap;
 
+// the baked visibility of the light (r) and ambient occlusion (g) of the surface
+uniform sampler2D lightMap;
+uniform bool enableLightMap;
+
 uniform bool enableShadow;
 uniform int sampleMode;
 
@@ -87,7 +92,8 @@ void main(void)
 
 
     // Ambient Light
-    color += gl_LightSource[0].ambient;
+    vec4 baked = enableLightMap ? texture2D(lightMap, lightMapCoord) : vec4(1.0);
+    color += gl_LightSource[0].ambient * baked.g;
 	color *= texture2D(texture, texCoord);
 
 
@@ -102,10 +108,14 @@ void main(void)
 	
 	color.rgb *= gl_Color.rgb;
 	
-	if(enableShadow)
+	if(enableShadow || enableLightMap)
 	{
-		float sIntensity = shadowIntensity();
-		gl_FragColor = vec4(sIntensity * color.rgb, 1.0);
+		float sIntensity = enableLightMap ? mix(illumination, 1.0, baked.r) : 1.0;
+		
+		// the shadow map is only sampled where the surface does not already shadow itself
+		if(enableShadow && sIntensity > illumination) sIntensity = min(sIntensity, shadowIntensity());
+		
+		gl_FragColor = vec4(sIntensity * color.rgb, enableShadow ? 1.0 : color.a);
 	}
 	else gl_FragColor = color;
 	
@@ -2,9 +2,13 @@
 
 uniform mat4 ModelMatrix;
 
+// the corner of the light map and the reciprocal of its length
+uniform vec3 lightMapOrigin;
+
 varying vec4 shadowCoord;
 varying vec3 lightDir;
 varying vec3 eyeDir;
+varying vec2 lightMapCoord;
 
 attribute vec3 tangent;
 
@@ -16,6 +20,7 @@ void main(void)
 	
 	gl_TexCoord[0] = gl_MultiTexCoord0;
 	shadowCoord = gl_TextureMatrix[2] * (ModelMatrix * gl_Vertex);
+	lightMapCoord = (gl_Vertex.xz - lightMapOrigin.xy) * lightMapOrigin.z;
 	
 	vec3 n = normalize(gl_NormalMatrix * gl_Normal);
 	vec3 t = normalize(gl_NormalMatrix * tangent);
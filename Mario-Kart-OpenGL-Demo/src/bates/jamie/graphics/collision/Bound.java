@@ -1,5 +1,7 @@
 package bates.jamie.graphics.collision;
 
+import java.util.List;
+
 import javax.media.opengl.GL2;
 
 import bates.jamie.graphics.util.Vec3;
@@ -8,6 +10,8 @@ import com.jogamp.opengl.util.gl2.GLUT;
 
 public abstract class Bound
 {
+	public static final float NO_IMPACT = Float.POSITIVE_INFINITY;
+	
 	public Vec3 c;
 	
 	public void setPosition(float x, float y, float z) { c = new Vec3(x, y, z); }
@@ -35,6 +39,15 @@ public abstract class Bound
 	
 	public abstract boolean testOBB(OBB b);
 	
+	/**
+	 * Returns the fraction of the displacement <code>d</code> at which this bound
+	 * first touches the sphere <code>s</code> as it moves, or NO_IMPACT if it does
+	 * not; 0 is returned if the bounds already intersect.
+	 */
+	public abstract float sweepSphere(Sphere s, Vec3 d);
+	
+	public abstract float sweepOBB(OBB b, Vec3 d);
+	
 	/**
 	 * Returns the maximum length from the centre of the bound to any other point
 	 * on the bound.
@@ -89,4 +102,35 @@ public abstract class Bound
 		
 		return false;	
 	}
+	
+	public float sweepBound(Bound b, Vec3 d)
+	{
+		if(b instanceof Sphere) return sweepSphere((Sphere) b, d);
+		else if(b instanceof OBB) return sweepOBB((OBB) b, d);
+		
+		return NO_IMPACT;
+	}
+	
+	/**
+	 * Adds each of the bounds in the list <code>bounds</code> that intersect this
+	 * bound to the list <code>collisions</code>, returning <code>true</code> if
+	 * any were found.
+	 */
+	public boolean testBounds(List<? extends Bound> bounds, List<Bound> collisions)
+	{
+		boolean found = false;
+		
+		for(int i = 0; i < bounds.size(); i++)
+		{
+			Bound bound = bounds.get(i);
+			
+			if(testBound(bound))
+			{
+				collisions.add(bound);
+				found = true;
+			}
+		}
+		
+		return found;
+	}
 }
@@ -0,0 +1,232 @@
+package bates.jamie.graphics.collision;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import bates.jamie.graphics.util.Vec3;
+
+/**
+ * This class builds a binary tree of axis-aligned boxes over a collection of
+ * static bounds, so that the bounds that may collide with another are found by
+ * visiting only the branches whose boxes overlap that of the other bound. Each
+ * branch is split at the median of the centres of its bounds along the longest
+ * side of its box, until a leaf holds no more than LEAF_SIZE bounds.
+ *
+ * The bounds must not move once the hierarchy is built; it should be built again
+ * if they do, or if the collection changes.
+ */
+public class BoundingVolumeHierarchy
+{
+	public static final int LEAF_SIZE = 4;
+	
+	// the boxes are enlarged slightly, as the tests between bounds allow for some error
+	private static final float MARGIN = 0.01f;
+	
+	private Bound[] bounds;
+	
+	// the box of each bound {x0, y0, z0, x1, y1, z1}
+	private float[] boxes;
+	
+	// the indices of the bounds ordered so that the bounds of each node are consecutive
+	private int[] order;
+	
+	// the box of each node, its first child (the second follows it) or first bound, and its number of bounds if it is a leaf
+	private float[] nodeBoxes;
+	private int[] first;
+	private int[] counts;
+	private int nodeCount;
+	
+	// the nodes to visit and the bounds found by a query
+	private int[] stack = new int[64];
+	private int[] found = new int[16];
+	
+	private float[] box = new float[6];
+	
+	public BoundingVolumeHierarchy(List<? extends Bound> bounds)
+	{
+		int n = bounds.size();
+		
+		this.bounds = bounds.toArray(new Bound[n]);
+		
+		boxes = new float[n * 6];
+		for(int i = 0; i < n; i++) getBox(this.bounds[i], boxes, i * 6);
+		
+		Integer[] indices = new Integer[n];
+		for(int i = 0; i < n; i++) indices[i] = i;
+		
+		// a binary tree with a leaf for at most every bound
+		int nodes = Math.max(1, 2 * n);
+		
+		nodeBoxes = new float[nodes * 6];
+		first  = new int[nodes];
+		counts = new int[nodes];
+		
+		nodeCount = 1;
+		build(0, indices, 0, n);
+		
+		order = new int[n];
+		for(int i = 0; i < n; i++) order[i] = indices[i];
+	}
+	
+	public int size() { return bounds.length; }
+	
+	public int nodeCount() { return nodeCount; }
+	
+	/**
+	 * Writes the axis-aligned box that contains a bound to the array
+	 * <code>box</code> at <code>offset</code> as {x0, y0, z0, x1, y1, z1}.
+	 */
+	public static void getBox(Bound bound, float[] box, int offset)
+	{
+		Vec3 c = bound.c;
+		float ex, ey, ez;
+		
+		if(bound instanceof OBB)
+		{
+			OBB obb = (OBB) bound;
+			Vec3 u0 = obb.u.xAxis, u1 = obb.u.yAxis, u2 = obb.u.zAxis;
+			Vec3 e = obb.e;
+			
+			ex = Math.abs(u0.x) * e.x + Math.abs(u1.x) * e.y + Math.abs(u2.x) * e.z;
+			ey = Math.abs(u0.y) * e.x + Math.abs(u1.y) * e.y + Math.abs(u2.y) * e.z;
+			ez = Math.abs(u0.z) * e.x + Math.abs(u1.z) * e.y + Math.abs(u2.z) * e.z;
+		}
+		else ex = ey = ez = bound.getMaximumExtent();
+		
+		ex += MARGIN; ey += MARGIN; ez += MARGIN;
+		
+		box[offset    ] = c.x - ex;
+		box[offset + 1] = c.y - ey;
+		box[offset + 2] = c.z - ez;
+		box[offset + 3] = c.x + ex;
+		box[offset + 4] = c.y + ey;
+		box[offset + 5] = c.z + ez;
+	}
+	
+	private void build(int node, Integer[] indices, int start, int end)
+	{
+		float[] b = nodeBoxes;
+		int o = node * 6;
+		
+		b[o    ] = b[o + 1] = b[o + 2] =  Float.MAX_VALUE;
+		b[o + 3] = b[o + 4] = b[o + 5] = -Float.MAX_VALUE;
+		
+		for(int i = start; i < end; i++)
+		{
+			int k = indices[i] * 6;
+			
+			for(int a = 0; a < 3; a++)
+			{
+				b[o + a    ] = Math.min(b[o + a    ], boxes[k + a    ]);
+				b[o + a + 3] = Math.max(b[o + a + 3], boxes[k + a + 3]);
+			}
+		}
+		
+		if(end - start <= LEAF_SIZE)
+		{
+			first [node] = start;
+			counts[node] = end - start;
+			return;
+		}
+		
+		// the bounds are divided at the median along the longest side of the box
+		float dx = b[o + 3] - b[o], dy = b[o + 4] - b[o + 1], dz = b[o + 5] - b[o + 2];
+		final int axis = (dx >= dy && dx >= dz) ? 0 : ((dy >= dz) ? 1 : 2);
+		
+		Arrays.sort(indices, start, end, new Comparator<Integer>()
+		{
+			public int compare(Integer i, Integer j)
+			{
+				return Float.compare(boxes[i * 6 + axis] + boxes[i * 6 + axis + 3],
+				                     boxes[j * 6 + axis] + boxes[j * 6 + axis + 3]);
+			}
+		});
+		
+		int middle = (start + end) / 2;
+		int left = nodeCount;
+		nodeCount += 2;
+		
+		first [node] = left;
+		counts[node] = 0;
+		
+		build(left,     indices, start, middle);
+		build(left + 1, indices, middle,  end);
+	}
+	
+	private boolean overlaps(float[] a, int i, float[] b, int j)
+	{
+		return a[i    ] <= b[j + 3] && a[i + 3] >= b[j    ] &&
+			   a[i + 1] <= b[j + 4] && a[i + 4] >= b[j + 1] &&
+			   a[i + 2] <= b[j + 5] && a[i + 5] >= b[j + 2];
+	}
+	
+	/**
+	 * Replaces the contents of the list <code>candidates</code> with the bounds
+	 * whose boxes overlap that of the bound passed, in the order in which they
+	 * were given to the hierarchy. Only these bounds can collide with it.
+	 */
+	public void getCandidates(Bound bound, List<Bound> candidates)
+	{
+		getBox(bound, box, 0);
+		getCandidates(candidates);
+	}
+	
+	/**
+	 * Replaces the contents of the list <code>candidates</code> with the bounds
+	 * that the bound passed may collide with as it moves by the displacement
+	 * <code>d</code>, whose boxes overlap the box swept by that of the bound.
+	 */
+	public void getCandidates(Bound bound, Vec3 d, List<Bound> candidates)
+	{
+		getBox(bound, box, 0);
+		
+		if(d.x < 0) box[0] += d.x; else box[3] += d.x;
+		if(d.y < 0) box[1] += d.y; else box[4] += d.y;
+		if(d.z < 0) box[2] += d.z; else box[5] += d.z;
+		
+		getCandidates(candidates);
+	}
+	
+	private void getCandidates(List<Bound> candidates)
+	{
+		candidates.clear();
+		if(bounds.length == 0) return;
+		
+		int count = 0;
+		int top = 0;
+		stack[top++] = 0;
+		
+		while(top > 0)
+		{
+			int node = stack[--top];
+			
+			if(!overlaps(nodeBoxes, node * 6, box, 0)) continue;
+			
+			if(counts[node] == 0)
+			{
+				if(top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+				
+				stack[top++] = first[node] + 1;
+				stack[top++] = first[node];
+			}
+			else
+			{
+				for(int i = first[node]; i < first[node] + counts[node]; i++)
+				{
+					int index = order[i];
+					
+					if(overlaps(boxes, index * 6, box, 0))
+					{
+						if(count == found.length) found = Arrays.copyOf(found, count * 2);
+						found[count++] = index;
+					}
+				}
+			}
+		}
+		
+		Arrays.sort(found, 0, count);
+		
+		for(int i = 0; i < count; i++) candidates.add(bounds[found[i]]);
+	}
+}
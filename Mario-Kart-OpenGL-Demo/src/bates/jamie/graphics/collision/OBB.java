@@ -8,6 +8,7 @@ import static javax.media.opengl.GL.GL_LINES;
 import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_LIGHTING;
 
 import java.util.Arrays;
+import java.util.List;
 
 import javax.media.opengl.GL2;
 
@@ -38,6 +39,17 @@ public class OBB extends Bound
 	// flags to determine whether collisions with certain faces should be considered 
 	public boolean[] validFaces = new boolean[6];
 	
+	// the centre, axes and half-extents copied by flatten()
+	private float cx, cy, cz;
+	private float ux0, ux1, ux2;
+	private float uy0, uy1, uy2;
+	private float uz0, uz1, uz2;
+	private float ex, ey, ez;
+	
+	// the times at which a swept sphere crosses the faces, and the interval in which swept boxes overlap
+	private float[] times = new float[8];
+	private float first, last;
+	
 
 	public OBB(float c0, float c1, float c2,
 			   float u0, float u1, float u2,
@@ -218,75 +230,126 @@ public class OBB extends Bound
 		return vertices;
 	}
 	
+	/**
+	 * Copies the centre, axes and half-extents of the bound into primitive fields,
+	 * from which the intersection tests are found without creating any objects.
+	 * This is done by each test, as the vectors of the bound may be replaced or
+	 * changed at any time.
+	 */
+	public void flatten()
+	{
+		cx = c.x; cy = c.y; cz = c.z;
+		
+		ux0 = u.xAxis.x; ux1 = u.xAxis.y; ux2 = u.xAxis.z;
+		uy0 = u.yAxis.x; uy1 = u.yAxis.y; uy2 = u.yAxis.z;
+		uz0 = u.zAxis.x; uz1 = u.zAxis.y; uz2 = u.zAxis.z;
+		
+		ex = e.x; ey = e.y; ez = e.z;
+	}
+	
+	/**
+	 * Writes the vertices of the bound to the array <code>vertices</code> as
+	 * {x, y, z} triples in the same order as <code>getVertices()</code>.
+	 */
+	public void getVertices(float[] vertices)
+	{
+		flatten();
+		
+		for(int i = 0; i < 8; i++)
+		{
+			float sx = (i % 2 == 0) ?  ex : -ex; // right or left
+			float sy = (i < 4)      ? -ey :  ey; // bottom or top
+			float sz = (i % 4 < 2)  ? -ez :  ez; // front or back
+			
+			vertices[i * 3    ] = cx + ux0 * sx + uy0 * sy + uz0 * sz;
+			vertices[i * 3 + 1] = cy + ux1 * sx + uy1 * sy + uz1 * sz;
+			vertices[i * 3 + 2] = cz + ux2 * sx + uy2 * sy + uz2 * sz;
+		}
+	}
+	
 	@Override
 	public boolean testOBB(OBB b)
+	{
+		flatten();
+		b.flatten();
+		
+		return intersects(b);
+	}
+	
+	/**
+	 * Tests this bound against another using the separating axis theorem: the
+	 * boxes are disjoint if their projections onto any of their 3 + 3 face axes
+	 * or the 9 cross products of their axes do not overlap. Both bounds must have
+	 * been flattened.
+	 */
+	private boolean intersects(OBB b)
 	{
 		OBB a = this;
 		
 		float ra, rb;
 		
-		float[][]    R = new float[3][3];
-		float[][] AbsR = new float[3][3];
+		// the rotation of b in the frame of a, rij = ai . bj
+		float r00 = a.ux0 * b.ux0 + a.ux1 * b.ux1 + a.ux2 * b.ux2;
+		float r01 = a.ux0 * b.uy0 + a.ux1 * b.uy1 + a.ux2 * b.uy2;
+		float r02 = a.ux0 * b.uz0 + a.ux1 * b.uz1 + a.ux2 * b.uz2;
+		float r10 = a.uy0 * b.ux0 + a.uy1 * b.ux1 + a.uy2 * b.ux2;
+		float r11 = a.uy0 * b.uy0 + a.uy1 * b.uy1 + a.uy2 * b.uy2;
+		float r12 = a.uy0 * b.uz0 + a.uy1 * b.uz1 + a.uy2 * b.uz2;
+		float r20 = a.uz0 * b.ux0 + a.uz1 * b.ux1 + a.uz2 * b.ux2;
+		float r21 = a.uz0 * b.uy0 + a.uz1 * b.uy1 + a.uz2 * b.uy2;
+		float r22 = a.uz0 * b.uz0 + a.uz1 * b.uz1 + a.uz2 * b.uz2;
 		
-		for(int i = 0; i < 3; i++)
-			for(int j = 0; j < 3; j++)
-			{
-				   R[j][i] = b.u.getAxis(i).dot(a.u.getAxis(j));
-				AbsR[j][i] = abs(R[j][i]) + EPSILON;
-			}
+		// the epsilon prevents parallel edges from producing a null cross product
+		float q00 = abs(r00) + EPSILON, q01 = abs(r01) + EPSILON, q02 = abs(r02) + EPSILON;
+		float q10 = abs(r10) + EPSILON, q11 = abs(r11) + EPSILON, q12 = abs(r12) + EPSILON;
+		float q20 = abs(r20) + EPSILON, q21 = abs(r21) + EPSILON, q22 = abs(r22) + EPSILON;
 		
-		Vec3 t = a.c.subtract(b.c);
-		t = new Vec3(t.dot(b.u.xAxis), t.dot(b.u.yAxis), t.dot(b.u.zAxis));	
+		// the translation between the centres in the frame of a
+		float dx = b.cx - a.cx, dy = b.cy - a.cy, dz = b.cz - a.cz;
 		
-		for(int i = 0; i < 3; i++)
-		{
-			ra = b.e.get(i);
-			rb = a.e.x * AbsR[i][0] + a.e.y * AbsR[i][1] + a.e.z * AbsR[i][2];
-			if(abs(t.get(i)) > ra + rb) return false;
-		}
+		float t0 = dx * a.ux0 + dy * a.ux1 + dz * a.ux2;
+		float t1 = dx * a.uy0 + dy * a.uy1 + dz * a.uy2;
+		float t2 = dx * a.uz0 + dy * a.uz1 + dz * a.uz2;
 		
-		for(int i = 0; i < 3; i++)
-		{
-			ra = b.e.x * AbsR[0][i] + b.e.y * AbsR[1][i] + b.e.z * AbsR[2][i];
-			rb = a.e.get(i);
-			if(abs(t.x * R[0][i] + t.y * R[1][i] + t.z * R[2][i]) > ra + rb) return false;
-		}
+		// the axes of a
+		if(abs(t0) > a.ex + b.ex * q00 + b.ey * q01 + b.ez * q02) return false;
+		if(abs(t1) > a.ey + b.ex * q10 + b.ey * q11 + b.ez * q12) return false;
+		if(abs(t2) > a.ez + b.ex * q20 + b.ey * q21 + b.ez * q22) return false;
 		
-		ra = b.e.y * AbsR[2][0] + b.e.z * AbsR[1][0];
-		rb = a.e.y * AbsR[0][2] + a.e.z * AbsR[0][1];
-		if(abs(t.z * R[1][0] - t.y * R[2][0]) > ra + rb) return false;
+		// the axes of b
+		if(abs(t0 * r00 + t1 * r10 + t2 * r20) > a.ex * q00 + a.ey * q10 + a.ez * q20 + b.ex) return false;
+		if(abs(t0 * r01 + t1 * r11 + t2 * r21) > a.ex * q01 + a.ey * q11 + a.ez * q21 + b.ey) return false;
+		if(abs(t0 * r02 + t1 * r12 + t2 * r22) > a.ex * q02 + a.ey * q12 + a.ez * q22 + b.ez) return false;
 		
-		ra = b.e.y * AbsR[2][1] + b.e.z * AbsR[1][1];
-		rb = a.e.x * AbsR[0][2] + a.e.z * AbsR[0][0];
-		if(abs(t.z * R[1][1] - t.y * R[2][1]) > ra + rb) return false;
+		// a0 x b0, a0 x b1, a0 x b2
+		ra = a.ey * q20 + a.ez * q10; rb = b.ey * q02 + b.ez * q01;
+		if(abs(t2 * r10 - t1 * r20) > ra + rb) return false;
 		
-		ra = b.e.y * AbsR[2][2] + b.e.z * AbsR[1][2];
-		rb = a.e.x * AbsR[0][1] + a.e.y * AbsR[0][0];
-		if(abs(t.z * R[1][2] - t.y * R[2][2]) > ra + rb) return false;
+		ra = a.ey * q21 + a.ez * q11; rb = b.ex * q02 + b.ez * q00;
+		if(abs(t2 * r11 - t1 * r21) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[2][0] + b.e.z * AbsR[0][0];
-		rb = a.e.y * AbsR[1][2] + a.e.z * AbsR[1][1];
-		if(abs(t.x * R[2][0] - t.z * R[0][0]) > ra + rb) return false;
+		ra = a.ey * q22 + a.ez * q12; rb = b.ex * q01 + b.ey * q00;
+		if(abs(t2 * r12 - t1 * r22) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[2][1] + b.e.z * AbsR[0][1];
-		rb = a.e.x * AbsR[1][2] + a.e.z * AbsR[1][0];
-		if(abs(t.x * R[2][1] - t.z * R[0][1]) > ra + rb) return false;
+		// a1 x b0, a1 x b1, a1 x b2
+		ra = a.ex * q20 + a.ez * q00; rb = b.ey * q12 + b.ez * q11;
+		if(abs(t0 * r20 - t2 * r00) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[2][2] + b.e.z * AbsR[0][2];
-		rb = a.e.x * AbsR[1][1] + a.e.y * AbsR[1][0];
-		if(abs(t.x * R[2][2] - t.z * R[0][2]) > ra + rb) return false;
+		ra = a.ex * q21 + a.ez * q01; rb = b.ex * q12 + b.ez * q10;
+		if(abs(t0 * r21 - t2 * r01) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[1][0] + b.e.y * AbsR[0][0];
-		rb = a.e.y * AbsR[2][2] + a.e.z * AbsR[2][1];
-		if(abs(t.y * R[0][0] - t.x * R[1][0]) > ra + rb) return false;
+		ra = a.ex * q22 + a.ez * q02; rb = b.ex * q11 + b.ey * q10;
+		if(abs(t0 * r22 - t2 * r02) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[1][1] + b.e.y * AbsR[0][1];
-		rb = a.e.x * AbsR[2][2] + a.e.z * AbsR[2][0];
-		if(abs(t.y * R[0][1] - t.x * R[1][1]) > ra + rb) return false;
+		// a2 x b0, a2 x b1, a2 x b2
+		ra = a.ex * q10 + a.ey * q00; rb = b.ey * q22 + b.ez * q21;
+		if(abs(t1 * r00 - t0 * r10) > ra + rb) return false;
 		
-		ra = b.e.x * AbsR[1][2] + b.e.y * AbsR[0][2];
-		rb = a.e.x * AbsR[2][1] + a.e.y * AbsR[2][0];
-		if(abs(t.y * R[0][2] - t.x * R[1][2]) > ra + rb) return false;
+		ra = a.ex * q11 + a.ey * q01; rb = b.ex * q22 + b.ez * q20;
+		if(abs(t1 * r01 - t0 * r11) > ra + rb) return false;
+		
+		ra = a.ex * q12 + a.ey * q02; rb = b.ex * q21 + b.ey * q20;
+		if(abs(t1 * r02 - t0 * r12) > ra + rb) return false;
 		
 		return true;
 	}
@@ -294,35 +357,247 @@ public class OBB extends Bound
 	@Override
 	public boolean testSphere(Sphere s)
 	{
-		Vec3 p = closestPointToPoint(s.c);
+		flatten();
+		
+		return intersects(s);
+	}
+	
+	// the squared distance from the sphere to the closest point of the box is compared with its radius
+	private boolean intersects(Sphere s)
+	{
+		float dx = s.c.x - cx, dy = s.c.y - cy, dz = s.c.z - cz;
+		
+		float d0 = abs(dx * ux0 + dy * ux1 + dz * ux2) - ex;
+		float d1 = abs(dx * uy0 + dy * uy1 + dz * uy2) - ey;
+		float d2 = abs(dx * uz0 + dy * uz1 + dz * uz2) - ez;
+		
+		float d = 0;
 		
-		p = p.subtract(s.c);
+		if(d0 > 0) d += d0 * d0;
+		if(d1 > 0) d += d1 * d1;
+		if(d2 > 0) d += d2 * d2;
 		
-		return p.dot() <= s.r * s.r;
+		return d <= s.r * s.r;
+	}
+	
+	/**
+	 * Adds each of the bounds in the list <code>bounds</code> that intersect this
+	 * bound to the list <code>collisions</code>, returning <code>true</code> if
+	 * any were found. This bound is only flattened once for the whole list.
+	 */
+	@Override
+	public boolean testBounds(List<? extends Bound> bounds, List<Bound> collisions)
+	{
+		flatten();
+		
+		boolean found = false;
+		
+		for(int i = 0; i < bounds.size(); i++)
+		{
+			Bound bound = bounds.get(i);
+			boolean intersects = false;
+			
+			if(bound instanceof OBB)
+			{
+				OBB b = (OBB) bound;
+				b.flatten();
+				
+				intersects = intersects(b);
+			}
+			else if(bound instanceof Sphere) intersects = intersects((Sphere) bound);
+			
+			if(intersects)
+			{
+				collisions.add(bound);
+				found = true;
+			}
+		}
+		
+		return found;
 	}
 
 	public boolean testRay(Vec3 p0, Vec3 p1)
 	{
-		p0.subtract(c);
-		p0 = new Vec3(p0.dot(u.xAxis), p0.dot(u.yAxis), p0.dot(u.zAxis));
+		flatten();
+		
+		return timeOfImpact(p0.x, p0.y, p0.z, p1.x - p0.x, p1.y - p0.y, p1.z - p0.z, 0) != NO_IMPACT;
+	}
+	
+	@Override
+	public float sweepSphere(Sphere s, Vec3 d)
+	{
+		flatten();
+		
+		// the sphere moves away from the bound as the bound moves towards it
+		return timeOfImpact(s.c.x, s.c.y, s.c.z, -d.x, -d.y, -d.z, s.r);
+	}
+	
+	/**
+	 * Returns the fraction of the displacement (dx, dy, dz) at which a sphere of
+	 * radius <code>r</code> moving from the point (px, py, pz) first touches the
+	 * bound, or NO_IMPACT if it does not. The squared distance from the centre of
+	 * the sphere to the box is a convex quadratic between the times at which the
+	 * centre crosses the planes of the faces, so the first of these pieces that
+	 * falls to r^2 is solved exactly. The bound must have been flattened.
+	 */
+	float timeOfImpact(float px, float py, float pz, float dx, float dy, float dz, float r)
+	{
+		px -= cx; py -= cy; pz -= cz;
+		
+		// the motion in the frame of the bound
+		float p0 = px * ux0 + py * ux1 + pz * ux2, d0 = dx * ux0 + dy * ux1 + dz * ux2;
+		float p1 = px * uy0 + py * uy1 + pz * uy2, d1 = dx * uy0 + dy * uy1 + dz * uy2;
+		float p2 = px * uz0 + py * uz1 + pz * uz2, d2 = dx * uz0 + dy * uz1 + dz * uz2;
+		
+		int n = 0;
+		times[n++] = 0;
+		
+		n = addCrossings(p0, d0, ex, n);
+		n = addCrossings(p1, d1, ey, n);
+		n = addCrossings(p2, d2, ez, n);
+		
+		times[n++] = 1;
+		Arrays.sort(times, 0, n);
+		
+		for(int k = 0; k < n - 1; k++)
+		{
+			float t0 = times[k], t1 = times[k + 1];
+			
+			if(t1 <= t0 && k < n - 2) continue;
+			
+			float tm = (t0 + t1) / 2;
+			
+			// the coefficients of the squared distance over this piece less r^2, a t^2 + b t + c,
+			// to which each axis adds the square of the distance to the face nearest to the centre
+			float a = 0, b = 0, c = -r * r;
+			
+			float q, o;
+			
+			q = p0 + d0 * tm;
+			if(abs(q) > ex) { o = p0 - ((q > 0) ? ex : -ex); a += d0 * d0; b += 2 * d0 * o; c += o * o; }
+			
+			q = p1 + d1 * tm;
+			if(abs(q) > ey) { o = p1 - ((q > 0) ? ey : -ey); a += d1 * d1; b += 2 * d1 * o; c += o * o; }
+			
+			q = p2 + d2 * tm;
+			if(abs(q) > ez) { o = p2 - ((q > 0) ? ez : -ez); a += d2 * d2; b += 2 * d2 * o; c += o * o; }
+			
+			if((a * t0 + b) * t0 + c <= 0) return t0;
+			
+			float discriminant = b * b - 4 * a * c;
+			
+			if(a > 0 && discriminant >= 0)
+			{
+				float t = (float) ((-b - sqrt(discriminant)) / (2 * a));
+				
+				if(t >= t0 && t <= t1) return t;
+			}
+		}
+		
+		return NO_IMPACT;
+	}
+	
+	// the times between 0 and 1 at which p + d t crosses the planes at -e and e
+	private int addCrossings(float p, float d, float e, int n)
+	{
+		if(d == 0) return n;
+		
+		float t0 = (-e - p) / d;
+		float t1 = ( e - p) / d;
+		
+		if(t0 > 0 && t0 < 1) times[n++] = t0;
+		if(t1 > 0 && t1 < 1) times[n++] = t1;
+		
+		return n;
+	}
+	
+	/**
+	 * Returns the fraction of the displacement <code>d</code> at which this bound
+	 * first touches the bound <code>b</code> as it moves, or NO_IMPACT if it does
+	 * not. The boxes must overlap on every separating axis at once, so the time of
+	 * impact is the latest time at which they begin to overlap on any of the 15
+	 * axes, unless this is after the earliest time at which they stop overlapping.
+	 */
+	@Override
+	public float sweepOBB(OBB b, Vec3 d)
+	{
+		flatten();
+		b.flatten();
 		
-		Vec3 min = c.subtract(e);
-		Vec3 max = c.add(e);
+		OBB a = this;
 		
-		Vec3 d = p1.subtract(p0);
-		Vec3 m = p0.add(p1).subtract(min).subtract(max);
+		float r00 = a.ux0 * b.ux0 + a.ux1 * b.ux1 + a.ux2 * b.ux2;
+		float r01 = a.ux0 * b.uy0 + a.ux1 * b.uy1 + a.ux2 * b.uy2;
+		float r02 = a.ux0 * b.uz0 + a.ux1 * b.uz1 + a.ux2 * b.uz2;
+		float r10 = a.uy0 * b.ux0 + a.uy1 * b.ux1 + a.uy2 * b.ux2;
+		float r11 = a.uy0 * b.uy0 + a.uy1 * b.uy1 + a.uy2 * b.uy2;
+		float r12 = a.uy0 * b.uz0 + a.uy1 * b.uz1 + a.uy2 * b.uz2;
+		float r20 = a.uz0 * b.ux0 + a.uz1 * b.ux1 + a.uz2 * b.ux2;
+		float r21 = a.uz0 * b.uy0 + a.uz1 * b.uy1 + a.uz2 * b.uy2;
+		float r22 = a.uz0 * b.uz0 + a.uz1 * b.uz1 + a.uz2 * b.uz2;
+		
+		float q00 = abs(r00) + EPSILON, q01 = abs(r01) + EPSILON, q02 = abs(r02) + EPSILON;
+		float q10 = abs(r10) + EPSILON, q11 = abs(r11) + EPSILON, q12 = abs(r12) + EPSILON;
+		float q20 = abs(r20) + EPSILON, q21 = abs(r21) + EPSILON, q22 = abs(r22) + EPSILON;
+		
+		float dx = b.cx - a.cx, dy = b.cy - a.cy, dz = b.cz - a.cz;
+		
+		// the translation between the centres and the motion of a in the frame of a
+		float t0 = dx * a.ux0 + dy * a.ux1 + dz * a.ux2, v0 = d.x * a.ux0 + d.y * a.ux1 + d.z * a.ux2;
+		float t1 = dx * a.uy0 + dy * a.uy1 + dz * a.uy2, v1 = d.x * a.uy0 + d.y * a.uy1 + d.z * a.uy2;
+		float t2 = dx * a.uz0 + dy * a.uz1 + dz * a.uz2, v2 = d.x * a.uz0 + d.y * a.uz1 + d.z * a.uz2;
+		
+		first = 0;
+		last  = 1;
+		
+		// the axes of a
+		if(!clip(t0, v0, a.ex + b.ex * q00 + b.ey * q01 + b.ez * q02)) return NO_IMPACT;
+		if(!clip(t1, v1, a.ey + b.ex * q10 + b.ey * q11 + b.ez * q12)) return NO_IMPACT;
+		if(!clip(t2, v2, a.ez + b.ex * q20 + b.ey * q21 + b.ez * q22)) return NO_IMPACT;
+		
+		// the axes of b
+		if(!clip(t0 * r00 + t1 * r10 + t2 * r20, v0 * r00 + v1 * r10 + v2 * r20, a.ex * q00 + a.ey * q10 + a.ez * q20 + b.ex)) return NO_IMPACT;
+		if(!clip(t0 * r01 + t1 * r11 + t2 * r21, v0 * r01 + v1 * r11 + v2 * r21, a.ex * q01 + a.ey * q11 + a.ez * q21 + b.ey)) return NO_IMPACT;
+		if(!clip(t0 * r02 + t1 * r12 + t2 * r22, v0 * r02 + v1 * r12 + v2 * r22, a.ex * q02 + a.ey * q12 + a.ez * q22 + b.ez)) return NO_IMPACT;
+		
+		// a0 x b0, a0 x b1, a0 x b2
+		if(!clip(t2 * r10 - t1 * r20, v2 * r10 - v1 * r20, a.ey * q20 + a.ez * q10 + b.ey * q02 + b.ez * q01)) return NO_IMPACT;
+		if(!clip(t2 * r11 - t1 * r21, v2 * r11 - v1 * r21, a.ey * q21 + a.ez * q11 + b.ex * q02 + b.ez * q00)) return NO_IMPACT;
+		if(!clip(t2 * r12 - t1 * r22, v2 * r12 - v1 * r22, a.ey * q22 + a.ez * q12 + b.ex * q01 + b.ey * q00)) return NO_IMPACT;
+		
+		// a1 x b0, a1 x b1, a1 x b2
+		if(!clip(t0 * r20 - t2 * r00, v0 * r20 - v2 * r00, a.ex * q20 + a.ez * q00 + b.ey * q12 + b.ez * q11)) return NO_IMPACT;
+		if(!clip(t0 * r21 - t2 * r01, v0 * r21 - v2 * r01, a.ex * q21 + a.ez * q01 + b.ex * q12 + b.ez * q10)) return NO_IMPACT;
+		if(!clip(t0 * r22 - t2 * r02, v0 * r22 - v2 * r02, a.ex * q22 + a.ez * q02 + b.ex * q11 + b.ey * q10)) return NO_IMPACT;
+		
+		// a2 x b0, a2 x b1, a2 x b2
+		if(!clip(t1 * r00 - t0 * r10, v1 * r00 - v0 * r10, a.ex * q10 + a.ey * q00 + b.ey * q22 + b.ez * q21)) return NO_IMPACT;
+		if(!clip(t1 * r01 - t0 * r11, v1 * r01 - v0 * r11, a.ex * q11 + a.ey * q01 + b.ex * q22 + b.ez * q20)) return NO_IMPACT;
+		if(!clip(t1 * r02 - t0 * r12, v1 * r02 - v0 * r12, a.ex * q12 + a.ey * q02 + b.ex * q21 + b.ey * q20)) return NO_IMPACT;
+		
+		return first;
+	}
+	
+	/**
+	 * Narrows the interval [first, last] to the times at which the projections of
+	 * the boxes overlap on an axis, given the distance <code>s</code> between
+	 * their centres along it, the rate <code>v</code> at which this bound closes
+	 * that distance and the sum of their radii. Returns <code>false</code> if the
+	 * interval becomes empty.
+	 */
+	private boolean clip(float s, float v, float radius)
+	{
+		if(v == 0) return abs(s) <= radius;
 		
-		float adx = abs(d.x); if(abs(m.x) > e.x + adx) return false;
-		float ady = abs(d.y); if(abs(m.y) > e.y + ady) return false;
-		float adz = abs(d.z); if(abs(m.z) > e.z + adz) return false;
+		float enter = (s - radius) / v;
+		float exit  = (s + radius) / v;
 		
-		adx += EPSILON; ady += EPSILON; adz += EPSILON;
+		if(enter > exit) { float t = enter; enter = exit; exit = t; }
 		
-		if(abs(m.y * d.z - m.z * d.y) > e.y * adz + e.z * ady) return false;
-		if(abs(m.z * d.x - m.x * d.z) > e.x * adz + e.z * adx) return false;
-		if(abs(m.x * d.y - m.y * d.x) > e.x * ady + e.y * adx) return false;
+		if(enter > first) first = enter;
+		if(exit  < last ) last  = exit;
 		
-		return true;	
+		return first <= last;
 	}
 
 	@Override
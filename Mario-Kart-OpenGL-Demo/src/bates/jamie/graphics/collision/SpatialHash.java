@@ -0,0 +1,227 @@
+package bates.jamie.graphics.collision;
+
+import java.util.Arrays;
+
+/**
+ * This class sorts a collection of bounds into a uniform grid of cells, each of
+ * which is at least as large as the bounding sphere of any bound, and finds the
+ * pairs of bounds whose bounding spheres overlap by only comparing bounds in the
+ * same or adjacent cells. The cells are stored in a hash table of linked lists,
+ * so that the grid is unbounded.
+ *
+ * The grid is kept from one update to the next: while the collection of bounds
+ * is unchanged, only the bounds that move into another cell are relinked. The
+ * grid is built again if the bounds are added, removed or reordered, or if a
+ * bound grows larger than a cell.
+ */
+public class SpatialHash
+{
+	// the bounding spheres are slightly enlarged so that the pairs found never miss a collision
+	private static final float EPSILON = 1E-3f;
+	
+	private Bound[] bounds = new Bound[0];
+	private int count;
+	
+	private float cellSize = 0;
+	
+	// the first bound in each bucket, and the next and previous bound in the same bucket
+	private int[] heads = new int[0];
+	private int[] next = new int[0];
+	private int[] previous = new int[0];
+	
+	// the cell and bucket of each bound
+	private int[] cellX = new int[0];
+	private int[] cellY = new int[0];
+	private int[] cellZ = new int[0];
+	private int[] buckets = new int[0];
+	
+	// the position and extent of each bound, copied so that the bounds are not visited while searching
+	private float[] positions = new float[0];
+	private float[] extents   = new float[0];
+	
+	// the candidate pairs {i << 32 | j} for i < j
+	private long[] pairs = new long[64];
+	private int pairCount;
+	
+	/**
+	 * Updates the grid with the first <code>count</code> bounds of the array,
+	 * which are identified by their index.
+	 */
+	public void update(Bound[] bounds, int count)
+	{
+		float extent = 0;
+		
+		for(int i = 0; i < count; i++) extent = Math.max(extent, bounds[i].getMaximumExtent());
+		
+		boolean rebuild = count != this.count || extent * 2 > cellSize || heads.length < count * 2;
+		
+		for(int i = 0; i < count && !rebuild; i++)
+			if(bounds[i] != this.bounds[i]) rebuild = true;
+		
+		if(rebuild) { build(bounds, count, extent); return; }
+		
+		for(int i = 0; i < count; i++)
+		{
+			Bound bound = bounds[i];
+			setBound(i, bound);
+			
+			int x = getCell(bound.c.x);
+			int y = getCell(bound.c.y);
+			int z = getCell(bound.c.z);
+			
+			if(x == cellX[i] && y == cellY[i] && z == cellZ[i]) continue;
+			
+			unlink(i);
+			link(i, x, y, z);
+		}
+	}
+	
+	private void build(Bound[] bounds, int count, float extent)
+	{
+		this.count = count;
+		
+		if(this.bounds.length < count)
+		{
+			int capacity = Math.max(count, this.bounds.length * 2);
+			
+			this.bounds = new Bound[capacity];
+			
+			next     = new int[capacity];
+			previous = new int[capacity];
+			cellX    = new int[capacity];
+			cellY    = new int[capacity];
+			cellZ    = new int[capacity];
+			buckets  = new int[capacity];
+			extents  = new float[capacity];
+			
+			positions = new float[capacity * 3];
+		}
+		
+		System.arraycopy(bounds, 0, this.bounds, 0, count);
+		Arrays.fill(this.bounds, count, this.bounds.length, null);
+		
+		// the cells are given some room to grow before the grid must be built again
+		cellSize = Math.max(extent * 2.5f, EPSILON);
+		
+		int size = 16;
+		while(size < count * 2) size *= 2;
+		
+		if(heads.length != size) heads = new int[size];
+		Arrays.fill(heads, -1);
+		
+		for(int i = 0; i < count; i++)
+		{
+			Bound bound = bounds[i];
+			setBound(i, bound);
+			
+			link(i, getCell(bound.c.x), getCell(bound.c.y), getCell(bound.c.z));
+		}
+	}
+	
+	private void setBound(int i, Bound bound)
+	{
+		positions[i * 3    ] = bound.c.x;
+		positions[i * 3 + 1] = bound.c.y;
+		positions[i * 3 + 2] = bound.c.z;
+		
+		extents[i] = bound.getMaximumExtent();
+	}
+	
+	private int getCell(float x) { return (int) Math.floor(x / cellSize); }
+	
+	private int getBucket(int x, int y, int z)
+	{
+		int hash = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+		return hash & (heads.length - 1);
+	}
+	
+	private void link(int i, int x, int y, int z)
+	{
+		int bucket = getBucket(x, y, z);
+		
+		cellX[i] = x; cellY[i] = y; cellZ[i] = z;
+		buckets[i] = bucket;
+		
+		previous[i] = -1;
+		next[i] = heads[bucket];
+		
+		if(heads[bucket] >= 0) previous[heads[bucket]] = i;
+		heads[bucket] = i;
+	}
+	
+	private void unlink(int i)
+	{
+		if(previous[i] >= 0) next[previous[i]] = next[i];
+		else heads[buckets[i]] = next[i];
+		
+		if(next[i] >= 0) previous[next[i]] = previous[i];
+	}
+	
+	/**
+	 * Finds every pair of bounds whose bounding spheres overlap, returning the
+	 * number of pairs. The pairs are ordered by the index of their first bound,
+	 * and then by that of their second, which is always greater.
+	 */
+	public int findPairs()
+	{
+		pairCount = 0;
+		
+		for(int i = 0; i < count; i++)
+		{
+			// each pair of adjacent cells is only searched from one of them
+			for(int[] offset : NEIGHBOURS)
+			{
+				int a = cellX[i] + offset[0];
+				int b = cellY[i] + offset[1];
+				int c = cellZ[i] + offset[2];
+				
+				boolean same = offset == NEIGHBOURS[0];
+				
+				for(int j = heads[getBucket(a, b, c)]; j >= 0; j = next[j])
+				{
+					// bounds in other cells that share the bucket are skipped
+					if(cellX[j] != a || cellY[j] != b || cellZ[j] != c || (same && j <= i)) continue;
+					
+					if(overlaps(i, j)) addPair(Math.min(i, j), Math.max(i, j));
+				}
+			}
+		}
+		
+		Arrays.sort(pairs, 0, pairCount);
+		
+		return pairCount;
+	}
+	
+	// the cell itself, followed by the half of the adjacent cells that follow it
+	private static final int[][] NEIGHBOURS =
+	{
+		{ 0,  0,  0},
+		{ 0,  0,  1},
+		{ 0,  1, -1}, { 0,  1,  0}, { 0,  1,  1},
+		{ 1, -1, -1}, { 1, -1,  0}, { 1, -1,  1},
+		{ 1,  0, -1}, { 1,  0,  0}, { 1,  0,  1},
+		{ 1,  1, -1}, { 1,  1,  0}, { 1,  1,  1}
+	};
+	
+	private boolean overlaps(int i, int j)
+	{
+		float dx = positions[j * 3    ] - positions[i * 3    ];
+		float dy = positions[j * 3 + 1] - positions[i * 3 + 1];
+		float dz = positions[j * 3 + 2] - positions[i * 3 + 2];
+		
+		float r = extents[i] + extents[j] + EPSILON;
+		
+		return dx * dx + dy * dy + dz * dz <= r * r;
+	}
+	
+	private void addPair(int i, int j)
+	{
+		if(pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+		
+		pairs[pairCount++] = (long) i << 32 | j;
+	}
+	
+	public int getFirst(int pair) { return (int) (pairs[pair] >>> 32); }
+	
+	public int getSecond(int pair) { return (int) pairs[pair]; }
+}
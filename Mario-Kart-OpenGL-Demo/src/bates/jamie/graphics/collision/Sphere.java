@@ -45,19 +45,42 @@ public class Sphere extends Bound
 	@Override
 	public boolean testSphere(Sphere a)
 	{
-		Vec3 t = a.c.subtract(c);
+		float dx = a.c.x - c.x, dy = a.c.y - c.y, dz = a.c.z - c.z;
 		
-		return t.dot() <= (a.r + r) * (a.r + r);
+		return dx * dx + dy * dy + dz * dz <= (a.r + r) * (a.r + r);
 	}
 	
 	@Override
-	public boolean testOBB(OBB b)
+	public boolean testOBB(OBB b) { return b.testSphere(this); }
+	
+	@Override
+	public float sweepSphere(Sphere s, Vec3 d)
 	{
-		Vec3 p = b.closestPointToPoint(c);
+		// the time at which the distance between the centres falls to the sum of the radii
+		float mx = c.x - s.c.x, my = c.y - s.c.y, mz = c.z - s.c.z;
+		float radius = r + s.r;
+		
+		float a = d.x * d.x + d.y * d.y + d.z * d.z;
+		float b = mx * d.x + my * d.y + mz * d.z;
+		float e = mx * mx + my * my + mz * mz - radius * radius;
+		
+		if(e <= 0) return 0;
+		if(a == 0 || b >= 0) return NO_IMPACT;
+		
+		float discriminant = b * b - a * e;
+		if(discriminant < 0) return NO_IMPACT;
 		
-		p = p.subtract(c);
+		float t = (float) ((-b - Math.sqrt(discriminant)) / a);
+		
+		return (t <= 1) ? t : NO_IMPACT;
+	}
+	
+	@Override
+	public float sweepOBB(OBB b, Vec3 d)
+	{
+		b.flatten();
 		
-		return p.dot() <= r * r;
+		return b.timeOfImpact(c.x, c.y, c.z, d.x, d.y, d.z, r);
 	}
 
 	@Override
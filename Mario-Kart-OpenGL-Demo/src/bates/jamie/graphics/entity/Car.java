@@ -9,11 +9,10 @@ import static java.lang.Math.toDegrees;
 
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
@@ -42,6 +41,7 @@ import bates.jamie.graphics.scene.Model;
 import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.scene.SceneGraph;
 import bates.jamie.graphics.scene.SceneNode;
+import bates.jamie.graphics.scene.Snapshot;
 import bates.jamie.graphics.util.Face;
 import bates.jamie.graphics.util.OBJParser;
 import bates.jamie.graphics.util.RotationMatrix;
@@ -146,9 +146,25 @@ public class Car
 	
 	/** Collision Detection Fields **/
 	public OBB bound;
+	
+	// the pose at which the car is rendered, set from the snapshots of the simulation
+	private volatile boolean interpolated = false;
+	private Vec3 renderPosition;
+	private float[] renderOrientation;
+	private float renderTrajectory;
 	public boolean colliding = false;
 	public List<Bound> collisions = new ArrayList<Bound>();
 	public float[] heights = {0, 0, 0, 0};
+	
+	// the vertices written by OBB.getVertices(float[]), and the horizontal coordinates of the wheels packed for height sampling
+	private float[] boundVertices = new float[24];
+	private float[] sampleX = new float[4];
+	private float[] sampleZ = new float[4];
+	private float[] samplePoint = new float[3];
+	private Vec3 corner = new Vec3();
+	
+	// the quadtree that provided the height beneath each wheel
+	private Quadtree[] sources = new Quadtree[4];
 	public boolean enableDeform = false;
 	
 	
@@ -159,7 +175,7 @@ public class Car
 	/** Item Fields **/
 	private ItemRoulette roulette = new ItemRoulette();
 	private ItemState itemState = ItemState.NO_ITEM;
-	private Queue<Item> items = new LinkedList<Item>();
+	private Queue<Item> items = new ConcurrentLinkedQueue<Item>();
 	private Queue<Integer> itemCommands = new ArrayBlockingQueue<Integer>(100);
 	
 	private boolean slipping = false;
@@ -376,12 +392,14 @@ public class Car
 		low_graph = new SceneGraph(car_body);
 	}
 	
-	public void updateGraph(SceneGraph graph)
+	public void updateGraph(SceneGraph graph) { updateGraph(graph, bound.c, bound.u.toArray()); }
+	
+	private void updateGraph(SceneGraph graph, Vec3 c, float[] orientation)
 	{
 		SceneNode car_body = graph.getRoot();
 		
-		car_body.setTranslation(bound.c);
-		car_body.setOrientation(bound.u.toArray());
+		car_body.setTranslation(c);
+		car_body.setOrientation(orientation);
 		car_body.setScale(new Vec3(scale));
 		
 		for(int i = 0; i < 4; i++)
@@ -603,7 +621,7 @@ public class Car
 	
 	public Vec3 getForwardVector() { return bound.u.zAxis.multiply(velocity); }
 	
-	public Vec3 getSlipVector() { return bound.c.subtract(slipVector.multiply(velocity)); }
+	public Vec3 getSlipVector() { return bound.c.subtract(slipVector.multiply(velocity * Scene.timeStep)); }
 	
 	public void setRotation(Vec3 angles) { bound.u = new RotationMatrix(angles.x, angles.y, angles.z); }
 	
@@ -628,10 +646,27 @@ public class Car
 	public boolean enableAberration = true;
 	public float opacity = 0.25f;
 
+	/**
+	 * Sets the pose at which the car is rendered <code>alpha</code> of the way
+	 * between two snapshots published by the simulation, in which the car has
+	 * the index passed. From then on the model and camera follow this pose
+	 * rather than the state of the car, which may be in the middle of a tick.
+	 */
+	public void interpolate(Snapshot previous, Snapshot latest, float alpha, int index)
+	{
+		renderPosition    = previous.getPosition   (latest, alpha, index);
+		renderOrientation = previous.getOrientation(latest, alpha, index);
+		renderTrajectory  = previous.getTrajectory (latest, alpha, index);
+		
+		interpolated = true;
+	}
+
 	public void render(GL2 gl)
 	{
 		updateColor();
 		
+		if(interpolated) updateGraph(high_quality ? high_graph : low_graph, renderPosition, renderOrientation);
+		
 		if(renderMode == 1)
 		{
 			if(smooth)
@@ -761,17 +796,11 @@ public class Car
 	
 	public float[] getHeights(Quadtree tree, int lod)
 	{
-		Vec3[] vertices = bound.getVertices();
-		
 		long start = System.nanoTime();
 		
-		for(int i = 0; i < 4; i++)
-		{
-			float[] vertex = vertices[i].toArray();
-			
-			Quadtree cell = tree.getCell(vertex, lod);
-			heights[i] = (cell != null) ? cell.getHeight(vertex) : 0;
-		}
+		sampleVertices();
+		
+		tree.getHeights(sampleX, sampleZ, heights, 4, lod);
 		
 		if(accelerating && enableDeform)
 		{	
@@ -780,14 +809,7 @@ public class Car
 			      k = ratio < 0.1 ? 0.1f : k;
 			float depression = k * 0.05f;
 			
-			for(int i = 0; i < 4; i++)
-			{
-				float[] vertex = vertices[i].toArray();
-				
-				Quadtree cell = tree.getCell(vertex, Quadtree.MAXIMUM_LOD);
-				if(cell != null) cell.subdivide();
-				tree.deform(vertex, 1.5f, -depression);
-			}
+			deform(new Quadtree[] {tree, tree, tree, tree}, depression);
 		}
 		
 		scene.updateTimes[Scene.frameIndex][2] = System.nanoTime() - start;
@@ -800,25 +822,17 @@ public class Car
 		return heights;
 	}
 	
-	public float[] getHeights(Collection<Quadtree> trees)
+	public float[] getHeights(QuadtreeIndex index)
 	{
-		Vec3[] vertices = bound.getVertices();
-		
 		long start = System.nanoTime();
 		
-		Quadtree[] _trees = new Quadtree[4];
+		sampleVertices();
+		
+		index.getHeights(sampleX, sampleZ, heights, 4, Integer.MIN_VALUE, sources);
 		
 		for(int i = 0; i < 4; i++)
 		{
-			float max = Integer.MIN_VALUE;
-			float[] vertex = vertices[i].toArray();
-			
-			for(Quadtree tree : trees)
-			{
-				Quadtree cell = tree.getCell(vertex, tree.detail);
-				float h = (cell != null) ? cell.getHeight(vertex) : 0;
-				if(h > max && !tree.enableBlending) { max = h; _trees[i] = tree; }
-			}
+			float max = heights[i];
 
 			Water water = scene.water;
 			
@@ -837,14 +851,7 @@ public class Car
 			      k = ratio < 0.1 ? 0.1f : k;
 			float depression = k * 0.05f;
 			
-			for(int i = 0; i < 4; i++)
-			{
-				float[] vertex = vertices[i].toArray();
-				
-				Quadtree cell = _trees[i].getCell(vertex, Quadtree.MAXIMUM_LOD);
-				if(cell != null) cell.subdivide();
-				_trees[i].deform(vertex, 1.5f, -depression);
-			}
+			deform(sources.clone(), depression);
 		}
 		
 		scene.updateTimes[Scene.frameIndex][2] = System.nanoTime() - start;
@@ -857,17 +864,62 @@ public class Car
 		return heights;
 	}
 	
+	/**
+	 * Leaves a rut beneath each wheel by deforming the quadtree that the height
+	 * of the wheel was sampled from. The ruts are queued to be made on the GL
+	 * thread, so they appear from the next frame.
+	 */
+	private void deform(final Quadtree[] trees, float depression)
+	{
+		final float[] points = new float[12];
+		final float peak = -depression;
+		
+		for(int i = 0; i < 4; i++)
+		{
+			points[i * 3    ] = boundVertices[i * 3    ];
+			points[i * 3 + 1] = boundVertices[i * 3 + 1];
+			points[i * 3 + 2] = boundVertices[i * 3 + 2];
+		}
+		
+		scene.queueTerrainEdit(new Runnable()
+		{
+			public void run()
+			{
+				for(int i = 0; i < 4; i++)
+				{
+					if(trees[i] == null) continue;
+					
+					float[] vertex = {points[i * 3], points[i * 3 + 1], points[i * 3 + 2]};
+					
+					Quadtree cell = trees[i].getCell(vertex, Quadtree.MAXIMUM_LOD);
+					if(cell != null) cell.subdivide();
+					trees[i].deform(vertex, 1.5f, peak, false);
+				}
+			}
+		});
+	}
+	
+	// packs the horizontal coordinates of the lower vertices of the bound, beneath the wheels, for height sampling
+	private void sampleVertices()
+	{
+		bound.getVertices(boundVertices);
+		
+		for(int i = 0; i < 4; i++) { sampleX[i] = boundVertices[i * 3]; sampleZ[i] = boundVertices[i * 3 + 2]; }
+	}
+	
 	public float[] getHeights(Terrain map)
 	{
-		if(map.enableQuadtree) return getHeights(map.trees.values());
+		if(map.enableQuadtree) return getHeights(map.getIndex());
 		
-		Vec3[] vertices = bound.getVertices();
+		bound.getVertices(boundVertices);
 
 		for(int i = 0; i < 4; i++)
 		{
-			float[] vertex = vertices[i].toArray();
+			samplePoint[0] = boundVertices[i * 3];
+			samplePoint[1] = boundVertices[i * 3 + 1];
+			samplePoint[2] = boundVertices[i * 3 + 2];
 			
-			float h = map.getHeight(vertex);
+			float h = map.getHeight(samplePoint);
 			heights[i] = h;
 		}
 		
@@ -878,6 +930,19 @@ public class Car
 		return heights;
 	}
 	
+	public float[] getHeights(TiledTerrain world)
+	{
+		sampleVertices();
+		
+		world.getHeights(sampleX, sampleZ, heights, 4);
+		
+		float h = (heights[0] + heights[1] + heights[2] + heights[3]) / 4;
+		h += bound.e.y;
+		bound.c.y = h;
+		
+		return heights;
+	}
+	
 	// TODO Gravity causes car to pass through surfaces (example: bridges)
 
 	/**
@@ -892,12 +957,16 @@ public class Car
 		//if the side of collision is the upwards face
 		if(face.equals(obb.getUpVector(1)))
 		{
-			Vec3[] vertices = bound.getVertices();
+			bound.getVertices(boundVertices);
 
 			// calculate the height at each wheel
 			for(int i = 0; i < 4; i++)
 			{
-				float h = obb.closestPointOnPerimeter(vertices[i]).y;
+				corner.x = boundVertices[i * 3];
+				corner.y = boundVertices[i * 3 + 1];
+				corner.z = boundVertices[i * 3 + 2];
+				
+				float h = obb.closestPointOnPerimeter(corner).y;
 				if(h > heights[i]) heights[i] = h;
 			}
 
@@ -932,22 +1001,17 @@ public class Car
 
 	public void detectCollisions()
 	{
-		colliding = false;
-		
 		collisions.clear();
 		
-		for(Bound collision : scene.getBounds())
-		{
-			if(bound.testBound(collision))
-			{
-				colliding = true;
-				collisions.add(collision);
-			}
-		}
+		colliding = bound.testBounds(scene.getBounds(bound), collisions);
+		
+		List<Car> cars = scene.getCars();
 		
 		//TODO car-car collisions could be improved
-		for(Car car : scene.getCars())
+		for(int i = 0; i < cars.size(); i++)
 		{
+			Car car = cars.get(i);
+			
 			if(!car.equals(this) && !invisible && !car.isInvisible() &&
 					bound.testBound(car.getBound()))
 			{
@@ -1024,7 +1088,8 @@ public class Car
 
 	public void update()
 	{	
-		if(scene.enableTerrain) getHeights(scene.getTerrain());
+		     if(scene.enableTerrain && scene.getWorld() != null) getHeights(scene.getWorld());
+		else if(scene.enableTerrain) getHeights(scene.getTerrain());
 		else getHeights();
 		
 		if(motionMode == Motion.ANCHOR)
@@ -1078,7 +1143,7 @@ public class Car
 	
 		velocity = (velocity > 2 * TOP_SPEED) ? (2 * TOP_SPEED) : velocity;
 		
-		distance += velocity;
+		distance += velocity * Scene.timeStep;
 		
 		turnWheels();
 		
@@ -1109,8 +1174,11 @@ public class Car
 		tag.setPosition(p);
 		tag.displayPosition();
 		
-		if(high_quality) updateGraph(high_graph);
-		else updateGraph(low_graph);
+		if(!interpolated)
+		{
+			if(high_quality) updateGraph(high_graph);
+			else updateGraph(low_graph);
+		}
 		
 		updateStatus();
 		
@@ -1148,9 +1216,12 @@ public class Car
 	 * This method updates the status effects currently inflicted on the player;
 	 * these effects are caused by using or collising with items certain items
 	 */
+	// counts a duration down by the frames elapsed in the current tick
+	private static int countDown(int duration) { return Math.max(0, duration - Scene.stepFrames); }
+	
 	private void updateStatus()
 	{
-		if(miniatureDuration > 0) miniatureDuration--;
+		if(miniatureDuration > 0) miniatureDuration = countDown(miniatureDuration);
 		else if(miniature)
 		{
 			miniature = false;
@@ -1158,7 +1229,7 @@ public class Car
 			scale *= 2;
 		}
 		
-		if(boostDuration > 0) boostDuration--;
+		if(boostDuration > 0) boostDuration = countDown(boostDuration);
 		else boosting = false;
 		
 		if(boosting)
@@ -1167,18 +1238,18 @@ public class Car
 				scene.addParticles(generator.generateBoostParticles(source, boostDuration / 4, superBoosting, miniature));
 		}
 		
-		if(curseDuration > 0) curseDuration--;
+		if(curseDuration > 0) curseDuration = countDown(curseDuration);
 		else cursed = false;
 		
 		if(cursed)
 			scene.addParticles(generator.generateFakeItemBoxParticles(getPosition(), 2, miniature));
 		
-		if(slipDuration > 0) slipDuration--;
+		if(slipDuration > 0) slipDuration = countDown(slipDuration);
 		else slipping = false;
 		
-		if(slipping) trajectory += 15;
+		if(slipping) trajectory += 15 * Scene.timeStep;
 		
-		if(starDuration > 0) starDuration--;
+		if(starDuration > 0) starDuration = countDown(starDuration);
 		else
 		{
 			starPower = false;
@@ -1188,11 +1259,11 @@ public class Car
 		if(starPower)
 			scene.addParticles(generator.generateStarParticles(getPosition(), 2, miniature));
 		
-		if(booDuration > 0) booDuration--;
-		else if(booColor < 0.5f) booColor += 0.0125f;
+		if(booDuration > 0) booDuration = countDown(booDuration);
+		else if(booColor < 0.5f) booColor += 0.0125f * Scene.timeStep;
 		else invisible = false;
 		
-		if(itemDuration > 0) itemDuration--;
+		if(itemDuration > 0) itemDuration = countDown(itemDuration);
 		else if(ItemState.isTimed(itemState))
 		{
 			superBoosting = false;
@@ -1202,8 +1273,8 @@ public class Car
 
 	private void fall()
 	{
-		if(fallRate < TOP_FALL_RATE) fallRate += gravity;
-		bound.c.y -= fallRate;
+		if(fallRate < TOP_FALL_RATE) fallRate += gravity * Scene.timeStep;
+		bound.c.y -= fallRate * Scene.timeStep;
 	}
 	
 	public void drift() { drift = direction; }
@@ -1229,6 +1300,8 @@ public class Car
 	 */
 	public void accelerate()
 	{
+		float acceleration = this.acceleration * Scene.timeStep;
+		
 		if(reversing) velocity += (velocity < -TOP_SPEED) ? acceleration : (velocity > 0 ? -acceleration * 2 : -acceleration);
 		else          velocity += (velocity <  TOP_SPEED) ? (velocity < 0 ? acceleration * 2 : acceleration) : -acceleration;
 	}
@@ -1238,6 +1311,8 @@ public class Car
 	 */
 	public void decelerate()
 	{
+		float acceleration = this.acceleration * Scene.timeStep;
+		
 		if(velocity > acceleration) velocity -= acceleration;
 		else if(velocity < 0) velocity += acceleration;
 		else velocity = 0;
@@ -1277,6 +1352,8 @@ public class Car
 
 	private void turnLeft()
 	{
+		float turnIncrement = this.turnIncrement * Scene.timeStep;
+		
 		if(!controller.isEnabled() || controller.getXAxis() >= 0)
 		{
 			if(turnRate > -TOP_TURN_RATE) turnRate -= turnIncrement;
@@ -1296,11 +1373,13 @@ public class Car
 		
 		if(sliding) k *= 0.75;
 		
-		if(velocity != 0 || (sliding && !slideVector.isZeroVector())) trajectory += turnRate * k;
+		if(velocity != 0 || (sliding && !slideVector.isZeroVector())) trajectory += turnRate * k * Scene.timeStep;
 	}
 
 	private void turnRight()
 	{
+		float turnIncrement = this.turnIncrement * Scene.timeStep;
+		
 		if(!controller.isEnabled() || controller.getXAxis() <= 0)
 		{
 			if(turnRate < TOP_TURN_RATE) turnRate += turnIncrement;
@@ -1320,18 +1399,20 @@ public class Car
 		
 		if(sliding) k *= 0.75;
 		
-		if(velocity != 0 || (sliding && !slideVector.isZeroVector())) trajectory += turnRate * k;
+		if(velocity != 0 || (sliding && !slideVector.isZeroVector())) trajectory += turnRate * k * Scene.timeStep;
 	}
 	
 	public void straighten() { direction = Direction.STRAIGHT; }
 
 	public void stabilize()
 	{
+		float turnIncrement = this.turnIncrement * Scene.timeStep;
+		
 		if(turnRate > turnIncrement) turnRate -= turnIncrement;
 		else if(turnRate < 0) turnRate += turnIncrement;
 		else turnRate = 0;
 		
-		trajectory += turnRate * (velocity != 0 ? 1 : 0);
+		trajectory += turnRate * (velocity != 0 ? Scene.timeStep : 0);
 	}
 
 	public void turnWheels()
@@ -1350,7 +1431,7 @@ public class Car
 		float _velocity = (miniature) ?  velocity * 0.75f :  velocity;
 		      _velocity = (starPower) ? _velocity * 1.25f : _velocity;
 		      
-		Vec3 vector = bound.u.zAxis.multiply(_velocity * friction);
+		Vec3 vector = bound.u.zAxis.multiply(_velocity * friction * Scene.timeStep);
 		Vec3 p = bound.c.subtract(vector);
 		
 		if(sliding)
@@ -1760,27 +1841,28 @@ public class Car
 	
 	public void setupCamera(GL2 gl, GLU glu)
 	{
-		float _trajectory = trajectory;
+		Vec3 position = interpolated ? renderPosition : getPosition();
+		float _trajectory = interpolated ? renderTrajectory : trajectory;
 		
 		switch(camera.getMode())
 		{	
 			case DYNAMIC_VIEW:
 			{
-				camera.setPosition(getPosition());
+				camera.setPosition(position);
 				if(slipping) _trajectory = slipTrajectory;
 				camera.setRotation(_trajectory);
 				break;
 			}
 			case BIRDS_EYE_VIEW:
 			{
-				camera.setPosition(getPosition());
+				camera.setPosition(position);
 				break;
 			}
 			case DRIVERS_VIEW:
 			{
-				camera.setPosition(getPosition());
+				camera.setPosition(position);
 				camera.setRotation(_trajectory);
-				camera.setOrientation(bound.u);
+				camera.setOrientation(interpolated ? new RotationMatrix(renderOrientation) : bound.u);
 				displayModel = false;
 				break;
 			}
@@ -0,0 +1,680 @@
+package bates.jamie.graphics.entity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import bates.jamie.graphics.entity.Quadtree.FallOff;
+
+/**
+ * This class records the deformations of a quadtree as an append-only stream of
+ * compact binary records, together with a compressed snapshot of the heights of
+ * the surface before every SNAPSHOT_INTERVAL records. A stroke is undone, redone
+ * or reloaded by restoring the nearest snapshot and replaying the records since,
+ * rather than by generating the surface again.
+ *
+ * Each record stores the change in the position of the brush from the previous
+ * record, and the radius, peak, fall-off and elasticity only when they change.
+ * Strokes are quantized to the precision of the records before they are applied,
+ * so that replaying a record reproduces the stroke exactly. Saving the heights of
+ * the surface is also recorded and ends a stroke, as it changes how deep later
+ * strokes may dig.
+ *
+ * Replaying is only exact while the cells of the quadtree are unchanged: vertices
+ * added since a snapshot are restored onto the surface of the cells that existed
+ * when it was taken, and are displaced by any stroke that covers them when it is
+ * replayed.
+ *
+ * The ruts left by the cars are not recorded. Undoing, redoing or loading restores
+ * a snapshot and replays only the recorded strokes, so any ruts made since that
+ * snapshot was taken are cleared.
+ */
+public class DeformationJournal
+{
+	// the types of record
+	public static final int DEFORM     = 0;
+	public static final int DEFORM_ALL = 1;
+	public static final int COMMIT     = 2;
+	
+	// the flags that follow the type of a record, marking the values that have changed
+	private static final int TYPE_MASK = 3;
+	private static final int RADIUS    = 4;
+	private static final int PEAK      = 8;
+	private static final int SETTINGS  = 16;
+	
+	// the longest record: the flags, five variable-length integers and the fall-off
+	private static final int MAXIMUM_RECORD = 1 + 5 * 5 + 1;
+	
+	// the number of records between snapshots; each snapshot also restarts the changes recorded
+	public static final int SNAPSHOT_INTERVAL = 256;
+	
+	// the number of steps per unit to which the position, radius and peak of a stroke are quantized
+	public static final float POSITION_SCALE = 16;
+	public static final float RADIUS_SCALE   = 1024;
+	public static final float PEAK_SCALE     = 4096;
+	
+	private static final int MAGIC   = 0x4A524E4C; // "JRNL"
+	private static final int VERSION = 1;
+	
+	private Quadtree tree;
+	
+	private byte[] records = new byte[4096];
+	private int[] offsets = new int[SNAPSHOT_INTERVAL];
+	private int length;
+	
+	private int count;  // the number of records
+	private int cursor; // the number of records applied to the surface
+	
+	// the snapshot taken before every SNAPSHOT_INTERVAL records, or null if it was not kept
+	private List<Snapshot> snapshots = new ArrayList<Snapshot>();
+	
+	// the heights of the first snapshot, against which the others are compressed
+	private float[] baseHeights;
+	
+	/*
+	 * The values of the last record read or written, from which the next record
+	 * is found, and the number of records read or written so far.
+	 */
+	private int type;
+	private int x, z, radius, peak;
+	private int falloff;
+	private float elasticity;
+	private int position;
+	private int offset;
+	
+	private boolean replaying = false;
+	
+	// the stroke to apply
+	private float[] point = new float[3];
+	
+	// the heights restored from or stored by a snapshot
+	private float[] ys      = new float[0];
+	private float[] heights = new float[0];
+	
+	public DeformationJournal(Quadtree tree)
+	{
+		this.tree = tree.root;
+	}
+	
+	public int size() { return count; }
+	
+	public int getCursor() { return cursor; }
+	
+	public boolean isReplaying() { return replaying; }
+	
+	public boolean canUndo() { return cursor > 0; }
+	
+	public boolean canRedo() { return cursor < count; }
+	
+	/**
+	 * Returns the number of bytes used by the records and snapshots in memory.
+	 */
+	public int getByteCount()
+	{
+		int bytes = length;
+		
+		for(Snapshot snapshot : snapshots)
+			if(snapshot != null) bytes += snapshot.data.length;
+		
+		return bytes;
+	}
+	
+	public float[] getPoint() { return point; }
+	
+	public float getRadius() { return radius / RADIUS_SCALE; }
+	
+	public float getPeak() { return peak / PEAK_SCALE; }
+	
+	/**
+	 * Discards every record and snapshot; this is called when the heights of the
+	 * quadtree are replaced, as the records no longer apply to them.
+	 */
+	public void clear()
+	{
+		count = cursor = position = length = 0;
+		
+		snapshots.clear();
+		baseHeights = null;
+	}
+	
+	/**
+	 * Records a stroke that is about to be applied to the quadtree, discarding
+	 * any records that were undone. The stroke is quantized, and should then be
+	 * applied as returned by <code>getPoint()</code>, <code>getRadius()</code>
+	 * and <code>getPeak()</code>. Returns <code>false</code>, having recorded
+	 * nothing, if the stroke is being replayed.
+	 */
+	public boolean record(int type, float[] p, float radius, float peak, FallOff falloff, float elasticity)
+	{
+		if(replaying) return false;
+		
+		begin();
+		write(type,
+			Math.round(p[0] * POSITION_SCALE), Math.round(p[2] * POSITION_SCALE),
+			Math.round(radius * RADIUS_SCALE), Math.round(peak * PEAK_SCALE),
+			falloff.ordinal(), Math.max(elasticity, 0));
+		
+		point[1] = p[1];
+		setPoint();
+		
+		return true;
+	}
+	
+	/**
+	 * Records that the heights of the quadtree have been saved, which ends the
+	 * current stroke. Nothing is recorded if the surface has not been deformed
+	 * since the heights were last saved.
+	 */
+	public void commit()
+	{
+		if(replaying || cursor == 0 || isCommit(cursor - 1)) return;
+		
+		begin();
+		write(COMMIT, 0, 0, 0, 0, 0, 0);
+	}
+	
+	private boolean isCommit(int n) { return (records[offsets[n]] & TYPE_MASK) == COMMIT; }
+	
+	// a stroke begins with the first record or after the heights are saved
+	private boolean isBoundary(int n) { return n == 0 || isCommit(n - 1); }
+	
+	/**
+	 * Undoes the last stroke applied to the surface, returning <code>false</code>
+	 * if there is none.
+	 */
+	public boolean undo()
+	{
+		if(cursor == 0) return false;
+		
+		int target = cursor - 1;
+		while(target > 0 && !isBoundary(target)) target--;
+		
+		moveTo(target);
+		return true;
+	}
+	
+	/**
+	 * Applies the next stroke that was undone, returning <code>false</code> if
+	 * there is none.
+	 */
+	public boolean redo()
+	{
+		if(cursor == count) return false;
+		
+		int target = cursor + 1;
+		while(target < count && !isBoundary(target)) target++;
+		
+		moveTo(target);
+		return true;
+	}
+	
+	/**
+	 * Returns the surface to its state after the first <code>n</code> records.
+	 * Moving backwards restores the nearest snapshot before the state and replays
+	 * the records that follow it, while moving forwards only replays the records
+	 * between the current state and the new one.
+	 */
+	public void moveTo(int n)
+	{
+		n = Math.max(0, Math.min(n, count));
+		
+		if(n < cursor)
+		{
+			int k = getNearest(n);
+			
+			restore(snapshots.get(k));
+			cursor = k * SNAPSHOT_INTERVAL;
+		}
+		
+		replay(n);
+	}
+	
+	// the index of the last snapshot kept before the state after n records
+	private int getNearest(int n)
+	{
+		int k = Math.min(n / SNAPSHOT_INTERVAL, snapshots.size() - 1);
+		while(k > 0 && snapshots.get(k) == null) k--;
+		
+		return k;
+	}
+	
+	private Snapshot getSnapshot(int n)
+	{
+		int k = n / SNAPSHOT_INTERVAL;
+		return (k < snapshots.size()) ? snapshots.get(k) : null;
+	}
+	
+	private void setSnapshot(int k, Snapshot snapshot)
+	{
+		while(snapshots.size() <= k) snapshots.add(null);
+		snapshots.set(k, snapshot);
+	}
+	
+	private void replay(int n)
+	{
+		FallOff _falloff = tree.falloff;
+		float _elasticity = tree.elasticity;
+		
+		replaying = true;
+		
+		while(cursor < n)
+		{
+			// snapshots that were not kept are taken again as the records are replayed
+			if(cursor % SNAPSHOT_INTERVAL == 0 && getSnapshot(cursor) == null) capture(cursor);
+			
+			read(cursor);
+			setPoint();
+			
+			tree.falloff = FallOff.values()[falloff];
+			tree.elasticity = elasticity;
+			
+			switch(type)
+			{
+				case DEFORM    : tree.deform   (point, getRadius(), getPeak()); break;
+				case DEFORM_ALL: tree.deformAll(point, getRadius(), getPeak()); break;
+				case COMMIT    : tree.setHeights(); break;
+			}
+			
+			cursor++;
+		}
+		
+		replaying = false;
+		
+		tree.falloff = _falloff;
+		tree.elasticity = _elasticity;
+	}
+	
+	private void setPoint()
+	{
+		point[0] = x / POSITION_SCALE;
+		point[2] = z / POSITION_SCALE;
+	}
+	
+	// prepares to append a record after those applied to the surface
+	private void begin()
+	{
+		if(cursor < count)
+		{
+			count = cursor;
+			length = offsets[count];
+			
+			// a snapshot taken before the cursor is still valid
+			while(snapshots.size() > count / SNAPSHOT_INTERVAL + 1) snapshots.remove(snapshots.size() - 1);
+		}
+		
+		if(position != count) seek(count);
+		
+		if(count % SNAPSHOT_INTERVAL == 0 && getSnapshot(count) == null) capture(count);
+	}
+	
+	// the values of the last record are found from the start of its interval
+	private void seek(int n)
+	{
+		position = n - n % SNAPSHOT_INTERVAL;
+		while(position < n) next();
+	}
+	
+	private void read(int n)
+	{
+		if(position != n) seek(n);
+		next();
+	}
+	
+	private void reset()
+	{
+		x = z = radius = peak = 0;
+		falloff = -1;
+		elasticity = Float.NaN;
+	}
+	
+	private void next()
+	{
+		if(position % SNAPSHOT_INTERVAL == 0) reset();
+		
+		offset = offsets[position];
+		
+		int flags = records[offset++];
+		type = flags & TYPE_MASK;
+		
+		if(type != COMMIT)
+		{
+			x += readInt();
+			z += readInt();
+			
+			if((flags & RADIUS) != 0) radius += readInt();
+			if((flags & PEAK  ) != 0) peak   += readInt();
+		}
+		
+		if((flags & SETTINGS) != 0)
+		{
+			falloff = records[offset++];
+			elasticity = Float.intBitsToFloat(readInt());
+		}
+		
+		position++;
+	}
+	
+	private void write(int type, int x, int z, int radius, int peak, int falloff, float elasticity)
+	{
+		if(count % SNAPSHOT_INTERVAL == 0) reset();
+		
+		if(length + MAXIMUM_RECORD > records.length) records = Arrays.copyOf(records, records.length * 2);
+		if(count == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		
+		offsets[count] = length;
+		
+		int flags = type;
+		
+		if(type != COMMIT)
+		{
+			if(radius != this.radius) flags |= RADIUS;
+			if(peak   != this.peak  ) flags |= PEAK;
+			
+			if(falloff != this.falloff || Float.floatToIntBits(elasticity) != Float.floatToIntBits(this.elasticity)) flags |= SETTINGS;
+		}
+		
+		records[length++] = (byte) flags;
+		
+		if(type != COMMIT)
+		{
+			writeInt(x - this.x);
+			writeInt(z - this.z);
+			
+			if((flags & RADIUS) != 0) writeInt(radius - this.radius);
+			if((flags & PEAK  ) != 0) writeInt(peak   - this.peak  );
+		}
+		
+		if((flags & SETTINGS) != 0)
+		{
+			records[length++] = (byte) falloff;
+			writeInt(Float.floatToIntBits(elasticity));
+		}
+		
+		this.type = type;
+		
+		if(type != COMMIT)
+		{
+			this.x = x; this.z = z;
+			this.radius = radius;
+			this.peak = peak;
+			this.falloff = falloff;
+			this.elasticity = elasticity;
+		}
+		
+		count++;
+		cursor = position = count;
+	}
+	
+	// integers are stored in as few bytes as their magnitude requires, 7 bits at a time
+	private void writeInt(int value)
+	{
+		int v = (value << 1) ^ (value >> 31);
+		
+		while((v & ~0x7F) != 0)
+		{
+			records[length++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		
+		records[length++] = (byte) v;
+	}
+	
+	private int readInt()
+	{
+		int v = 0, shift = 0, b;
+		
+		do
+		{
+			b = records[offset++];
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while((b & 0x80) != 0);
+		
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	private void reserve(int size)
+	{
+		if(ys.length < size)
+		{
+			ys      = new float[size];
+			heights = new float[size];
+		}
+	}
+	
+	// stores the heights of the surface as the state after n records
+	private void capture(int n)
+	{
+		int size = tree.vertexCount();
+		reserve(size);
+		
+		tree.copyHeights(ys, heights);
+		
+		setSnapshot(n / SNAPSHOT_INTERVAL, new Snapshot(size, encode(size)));
+		
+		if(n == 0) baseHeights = Arrays.copyOf(heights, size);
+	}
+	
+	/*
+	 * The heights are stored as their difference from the first snapshot, and the
+	 * vertical positions as their difference from the heights. Both are zero
+	 * wherever the surface has not been deformed since, and compress well.
+	 */
+	private byte[] encode(int size)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size * 8);
+		
+		for(int i = 0; i < size; i++) buffer.putInt(Float.floatToIntBits(heights[i]) ^ getBaseBits(baseHeights, i));
+		for(int i = 0; i < size; i++) buffer.putInt(Float.floatToIntBits(ys[i]) ^ Float.floatToIntBits(heights[i]));
+		
+		return deflate(buffer.array(), buffer.capacity());
+	}
+	
+	private int decode(Snapshot snapshot)
+	{
+		int size = snapshot.size;
+		reserve(size);
+		
+		// the first snapshot is stored as it is
+		float[] reference = (snapshot == snapshots.get(0)) ? null : baseHeights;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(inflate(snapshot.data, size * 8));
+		
+		for(int i = 0; i < size; i++) heights[i] = Float.intBitsToFloat(buffer.getInt() ^ getBaseBits(reference, i));
+		for(int i = 0; i < size; i++) ys[i] = Float.intBitsToFloat(buffer.getInt() ^ Float.floatToIntBits(heights[i]));
+		
+		return size;
+	}
+	
+	private static byte[] deflate(byte[] data, int length)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 8 + 64);
+		byte[] block = new byte[4096];
+		
+		while(!deflater.finished()) bytes.write(block, 0, deflater.deflate(block));
+		deflater.end();
+		
+		return bytes.toByteArray();
+	}
+	
+	private static byte[] inflate(byte[] data, int length)
+	{
+		byte[] bytes = new byte[length];
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		
+		try
+		{
+			int n = 0;
+			while(n < length && !inflater.finished()) n += inflater.inflate(bytes, n, length - n);
+		}
+		catch(DataFormatException e) { e.printStackTrace(); }
+		
+		inflater.end();
+		
+		return bytes;
+	}
+	
+	private int getBaseBits(float[] reference, int i)
+	{
+		return (reference != null && i < reference.length) ? Float.floatToIntBits(reference[i]) : 0;
+	}
+	
+	private void restore(Snapshot snapshot)
+	{
+		tree.restoreHeights(ys, heights, decode(snapshot));
+	}
+	
+	/**
+	 * Writes the records and the snapshots required to restore the surface to a
+	 * file: the first snapshot, from which any record can be replayed, and the
+	 * last before the current state. The file therefore only grows by the records
+	 * as the surface is deformed.
+	 */
+	public void save(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			out.writeInt(cursor);
+			
+			int nearest = (count > 0) ? getNearest(cursor) : -1;
+			
+			out.writeInt(nearest < 0 ? 0 : (nearest == 0 ? 1 : 2));
+			
+			if(nearest >= 0) writeSnapshot(out, 0);
+			if(nearest >  0) writeSnapshot(out, nearest);
+			
+			byte[] compressed = deflate(records, length);
+			
+			out.writeInt(length);
+			out.writeInt(compressed.length);
+			out.write(compressed);
+		}
+		finally { out.close(); }
+	}
+	
+	private void writeSnapshot(DataOutputStream out, int k) throws IOException
+	{
+		Snapshot snapshot = snapshots.get(k);
+		
+		out.writeInt(k);
+		out.writeInt(snapshot.size);
+		out.writeInt(snapshot.data.length);
+		out.write(snapshot.data);
+	}
+	
+	/**
+	 * Replaces the records with those of a file written by <code>save()</code>
+	 * and restores the surface to the state in which it was saved. The quadtree
+	 * should have the same dimensions and detail as that from which the file was
+	 * saved. The journal is left unchanged if the file cannot be read.
+	 */
+	public void load(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		
+		int _count, _cursor, _length;
+		
+		int[] keys;
+		Snapshot[] _snapshots;
+		
+		byte[] compressed;
+		
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Invalid deformation journal: " + file);
+			
+			_count  = in.readInt();
+			_cursor = in.readInt();
+			
+			int snapshotCount = in.readInt();
+			
+			keys       = new int[snapshotCount];
+			_snapshots = new Snapshot[snapshotCount];
+			
+			for(int i = 0; i < snapshotCount; i++)
+			{
+				keys[i]  = in.readInt();
+				int size = in.readInt();
+				
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				
+				_snapshots[i] = new Snapshot(size, data);
+			}
+			
+			_length = in.readInt();
+			compressed = new byte[in.readInt()];
+			in.readFully(compressed);
+		}
+		finally { in.close(); }
+		
+		clear();
+		
+		for(int i = 0; i < keys.length; i++) setSnapshot(keys[i], _snapshots[i]);
+		
+		length = _length;
+		
+		records = Arrays.copyOf(inflate(compressed, length), Math.max(length + MAXIMUM_RECORD, 4096));
+		
+		// the offsets of the records are found by reading each in turn
+		offsets = new int[Math.max(_count + 1, SNAPSHOT_INTERVAL)];
+		offset = 0;
+		
+		for(position = 0; position < _count; )
+		{
+			offsets[position] = offset;
+			next();
+		}
+		
+		count = _count;
+		
+		if(count == 0) return;
+		
+		decode(snapshots.get(0));
+		baseHeights = Arrays.copyOf(heights, snapshots.get(0).size);
+		
+		int k = getNearest(_cursor);
+		
+		restore(snapshots.get(k));
+		cursor = k * SNAPSHOT_INTERVAL;
+		
+		replay(_cursor);
+	}
+	
+	private static class Snapshot
+	{
+		int size; // the number of vertices
+		byte[] data;
+		
+		Snapshot(int size, byte[] data)
+		{
+			this.size = size;
+			this.data = data;
+		}
+	}
+}
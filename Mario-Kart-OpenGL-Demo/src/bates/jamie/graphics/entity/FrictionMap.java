@@ -0,0 +1,115 @@
+package bates.jamie.graphics.entity;
+
+import java.util.Arrays;
+
+/**
+ * This class rasterizes the terrain patches (splashes) of a height map into a
+ * single grid that stores the friction of the ground and the patch on top at
+ * each point, so that the surface beneath a wheel is found with a single lookup
+ * regardless of the number of patches.
+ *
+ * A point belongs to a patch if it lies within the bounds of the patch and the
+ * alpha map of the patch is at least half opaque there. Where patches overlap,
+ * the lowest friction is kept and the patch created last is on top.
+ */
+public class FrictionMap
+{
+	public static final float ALPHA_THRESHOLD = 0.5f;
+	
+	/*
+	 * The number of samples along each unit of the height map, and the greatest
+	 * number along each side; a height map longer than MAXIMUM_SIZE is sampled
+	 * less than once per unit.
+	 */
+	public static final int RESOLUTION = 4;
+	public static final int MAXIMUM_SIZE = 1024;
+	
+	private TerrainPatch[] patches;
+	
+	private int length; // the length of the height map
+	private int size;
+	private float resolution;
+	
+	private float[] friction;
+	private int[] material; // the index of the patch on top plus 1, or 0 if there is none
+	
+	public FrictionMap(TerrainPatch[] patches, int length)
+	{
+		this.patches = patches;
+		this.length  = length;
+		
+		if(length <= MAXIMUM_SIZE)
+		{
+			resolution = Math.max(1, Math.min(RESOLUTION, MAXIMUM_SIZE / length));
+			size = length * (int) resolution;
+		}
+		else
+		{
+			resolution = (float) MAXIMUM_SIZE / length;
+			size = MAXIMUM_SIZE;
+		}
+		
+		friction = new float[size * size];
+		material = new int  [size * size];
+		
+		Arrays.fill(friction, 1);
+		
+		for(int i = 0; i < patches.length; i++) rasterize(patches[i], i + 1);
+	}
+	
+	private void rasterize(TerrainPatch patch, int index)
+	{
+		float x = patch.getX() * resolution;
+		float z = patch.getZ() * resolution;
+		float extent = patch.getSize() * resolution;
+		
+		int x0 = Math.max((int) Math.floor(x), 0);
+		int z0 = Math.max((int) Math.floor(z), 0);
+		int x1 = Math.min((int) Math.ceil(x + extent), size);
+		int z1 = Math.min((int) Math.ceil(z + extent), size);
+		
+		float scale = 1.0f / extent;
+		
+		for(int a = x0; a < x1; a++)
+		{
+			for(int b = z0; b < z1; b++)
+			{
+				// the alpha map is sampled at the centre of each cell
+				float s = (a - x + 0.5f) * scale;
+				float t = (b - z + 0.5f) * scale;
+				
+				if(s < 0 || s >= 1 || t < 0 || t >= 1) continue;
+				if(patch.getAlpha(s, t) < ALPHA_THRESHOLD) continue;
+				
+				int cell = a * size + b;
+				
+				if(patch.friction < friction[cell]) friction[cell] = patch.friction;
+				material[cell] = index;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the cell of the grid that contains the point (x, z) in world
+	 * coordinates, or -1 if the point is outside of the height map.
+	 */
+	public int getCell(float x, float z)
+	{
+		float u = ((x / Terrain.sx) + length / 2) * resolution;
+		float v = ((z / Terrain.sz) + length / 2) * resolution;
+		
+		if(u < 0 || v < 0 || u >= size || v >= size) return -1;
+		
+		return (int) u * size + (int) v;
+	}
+	
+	public float getFriction(int cell) { return (cell < 0) ? 1 : friction[cell]; }
+	
+	public int getPatchIndex(int cell) { return (cell < 0) ? -1 : material[cell] - 1; }
+	
+	public TerrainPatch getPatch(int cell)
+	{
+		int index = getPatchIndex(cell);
+		return (index < 0) ? null : patches[index];
+	}
+}
@@ -4,13 +4,13 @@ import static javax.media.opengl.GL.GL_TEXTURE_2D;
 import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_VERTEX_ARRAY;
 
 import java.nio.FloatBuffer;
-import java.util.Arrays;
 
 import javax.media.opengl.GL2;
 
 import bates.jamie.graphics.util.Shader;
 import bates.jamie.graphics.util.TextureLoader;
 
+import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.util.texture.Texture;
 
 public class GrassPatch
@@ -28,8 +28,19 @@ public class GrassPatch
 	
 	private FloatBuffer vBuffer;
 	
+	// packed coordinates of the height map texels being updated
+	private float[] sampleX;
+	private float[] sampleZ;
+	private float[] sampleHeights;
+	
+	// a copy of the height map texture, one height per texel
+	private FloatBuffer heights;
+	
 	public boolean update = false;
 	
+	// the texels changed since they were last uploaded {i0, j0, i1, j1}, which is empty if i0 > i1
+	private int[] region = {0, 0, -1, -1};
+	
 	private static final float[] MODEL_DATA =
 	{
 		-0.30f, 0.0f,
@@ -83,38 +94,116 @@ public class GrassPatch
 		gl.glTexParameteri(GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
 		gl.glTexParameteri(GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
 		
-		gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RGBA32F, length, length, 0, GL2.GL_RGBA, GL2.GL_FLOAT, null);
+		gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_R32F, length, length, 0, GL2.GL_RED, GL2.GL_FLOAT, null);
 		
 		gl.glActiveTexture(GL2.GL_TEXTURE0);
 	}
 	
 	public void updateHeights(GL2 gl)
 	{
+		updateHeights(gl, 0, 0, length - 1, length - 1);
+	}
+	
+	/**
+	 * Marks the texels beneath the region of the surface changed by the last
+	 * deformation of the quadtree passed as a parameter to be updated when the
+	 * grass is next rendered; nothing is marked if the quadtree is not the
+	 * surface beneath the grass. This does not require the GL context, so it may
+	 * be called by the simulation.
+	 */
+	public synchronized void invalidate(Quadtree tree)
+	{
+		float[] bounds = tree.getStrokeBounds();
+		
+		if(tree.root != surface || bounds == null || bounds[0] > bounds[2]) return;
+		
+		// the texels that lie within the region, including those on its border
+		int j0 = Math.max((int) Math.ceil ((bounds[0] - origin[0]) / spread), 0);
+		int i0 = Math.max((int) Math.ceil ((bounds[1] - origin[2]) / spread), 0);
+		int j1 = Math.min((int) Math.floor((bounds[2] - origin[0]) / spread), length - 1);
+		int i1 = Math.min((int) Math.floor((bounds[3] - origin[2]) / spread), length - 1);
+		
+		if(i0 > i1 || j0 > j1) return;
+		
+		if(region[0] > region[2]) region = new int[] {i0, j0, i1, j1};
+		else region = new int[]
+		{
+			Math.min(region[0], i0), Math.min(region[1], j0),
+			Math.max(region[2], i1), Math.max(region[3], j1)
+		};
+	}
+	
+	// the region marked by invalidate(), which is then cleared, or null if none is marked
+	private synchronized int[] takeRegion()
+	{
+		int[] _region = region;
+		if(_region[0] > _region[2]) return null;
+		
+		region = new int[] {0, 0, -1, -1};
+		
+		return _region;
+	}
+	
+	/**
+	 * Samples the heights of the texels in rows [i0, i1] and columns [j0, j1],
+	 * then uploads only that region of the texture from the copy of the height
+	 * map, which is kept between updates.
+	 */
+	private void updateHeights(GL2 gl, int i0, int j0, int i1, int j1)
+	{
+		sampleHeights(i0, j0, i1, j1);
+		
 		gl.glActiveTexture(GL2.GL_TEXTURE1);
 		gl.glBindTexture(GL2.GL_TEXTURE_2D, heightMap);
 		
-		FloatBuffer heights = FloatBuffer.allocate(length * length * 4);
-		float[] position = Arrays.copyOf(origin, 3);
+		// the region is read from within the rows of the entire height map
+		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH , length);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, j0);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS  , i0);
 		
-		for(int i = 0; i < length; i++)
+		gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, j0, i0, j1 - j0 + 1, i1 - i0 + 1, GL2.GL_RED, GL2.GL_FLOAT, heights);
+		
+		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH , 0);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, 0);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS  , 0);
+		
+		gl.glActiveTexture(GL2.GL_TEXTURE0);
+	}
+	
+	void sampleHeights(int i0, int j0, int i1, int j1)
+	{
+		int count = length * length;
+		
+		if(heights == null)
+		{
+			sampleX       = new float[count];
+			sampleZ       = new float[count];
+			sampleHeights = new float[count];
+			
+			heights = Buffers.newDirectFloatBuffer(count);
+		}
+		
+		int columns = j1 - j0 + 1;
+		count = (i1 - i0 + 1) * columns;
+		
+		for(int i = i0; i <= i1; i++)
 		{
-			for(int j = 0; j < length; j++)
+			for(int j = j0; j <= j1; j++)
 			{
-				Quadtree cell = surface != null ? surface.getCell(position, Quadtree.MAXIMUM_LOD) : null;
-				float h = (cell != null ? cell.getHeight(position) : 0);
-				heights.put(new float[] {h, h, h, h});
-				
-				position[0] += spread;
+				sampleX[(i - i0) * columns + j - j0] = origin[0] + j * spread;
+				sampleZ[(i - i0) * columns + j - j0] = origin[2] + i * spread;
 			}
-			
-			position[0]  = origin[0]; 
-			position[2] += spread;
 		}
-		heights.position(0);
 		
-		gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, 0, length, length, GL2.GL_RGBA, GL2.GL_FLOAT, heights);
+		if(surface != null) surface.getHeights(sampleX, sampleZ, sampleHeights, count, Quadtree.MAXIMUM_LOD);
 		
-		gl.glActiveTexture(GL2.GL_TEXTURE0);
+		for(int i = i0; i <= i1; i++)
+		{
+			heights.position(i * length + j0);
+			heights.put(sampleHeights, (i - i0) * columns, columns);
+		}
+		
+		heights.position(0);
 	}
 	
 	public void render(GL2 gl)
@@ -125,6 +214,9 @@ public class GrassPatch
 			update = false;
 		}
 		
+		int[] _region = takeRegion();
+		if(_region != null) updateHeights(gl, _region[0], _region[1], _region[2], _region[3]);
+		
 		timer += 0.005f;
 		
 		gl.glEnableClientState(GL_VERTEX_ARRAY);
@@ -0,0 +1,236 @@
+package bates.jamie.graphics.entity;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads and writes height maps in a raw binary format, which unlike
+ * an image stores every height exactly. A height map is mapped into memory so
+ * that regions of it are read straight from the page cache without loading the
+ * rest; <code>read(fileName)</code> instead copies the whole map into arrays, for
+ * terrains that keep all of their heights on the heap.
+ *
+ * A mapping cannot exceed 2 GB, so the columns of a large map are mapped in
+ * segments of at most SEGMENT_SIZE bytes, and the map is written a number of
+ * columns at a time rather than from a single buffer.
+ *
+ * The format consists of a header followed by the heights, all little-endian:
+ * <code>"HMAP" version columns rows minimum maximum</code>, where the first four
+ * bytes are ASCII, the next three fields are integers and the last two are the
+ * range of the heights (floats). The heights follow as 32-bit floats, one column
+ * after another, such that the height <code>[i][j]</code> is stored at position
+ * <code>i * rows + j</code>.
+ */
+public class HeightMap
+{
+	public static final String EXTENSION = ".hmap";
+	
+	private static final byte[] MAGIC = {'H', 'M', 'A', 'P'};
+	private static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 24;
+	
+	// the largest number of bytes mapped or written at once
+	private static final int SEGMENT_SIZE = 1 << 30;
+	private static final int WRITE_SIZE   = 1 << 20;
+	
+	public static boolean isHeightMap(String fileName)
+	{
+		return fileName.toLowerCase().endsWith(EXTENSION);
+	}
+	
+	public static void write(float[][] heights, String fileName) throws IOException
+	{
+		int columns = heights.length;
+		int rows    = heights[0].length;
+		
+		float minimum = Float.MAX_VALUE;
+		float maximum = -Float.MAX_VALUE;
+		
+		for(int i = 0; i < columns; i++)
+		{
+			for(int j = 0; j < rows; j++)
+			{
+				minimum = Math.min(minimum, heights[i][j]);
+				maximum = Math.max(maximum, heights[i][j]);
+			}
+		}
+		
+		// a buffer of whole columns, holding at least one
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, Math.max(WRITE_SIZE / (rows * 4), 1) * rows * 4));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(columns);
+		buffer.putInt(rows);
+		buffer.putFloat(minimum);
+		buffer.putFloat(maximum);
+		
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		
+		try
+		{
+			FileChannel channel = file.getChannel();
+			
+			channel.truncate(0);
+			write(channel, buffer);
+			
+			FloatBuffer data = buffer.asFloatBuffer();
+			
+			for(int i = 0; i < columns; i++)
+			{
+				data.put(heights[i]);
+				
+				if(data.remaining() < rows || i == columns - 1)
+				{
+					buffer.position(data.position() * 4);
+					write(channel, buffer);
+					data.clear();
+				}
+			}
+			
+			if(channel.size() != HEADER_SIZE + (long) columns * rows * 4)
+				throw new IOException("Incomplete height map: " + fileName);
+		}
+		finally { file.close(); }
+	}
+	
+	// writes the contents of the buffer up to its position, and then clears it
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+	
+	public static float[][] read(String fileName) throws IOException
+	{
+		HeightMap map = new HeightMap(fileName);
+		
+		float[][] heights = new float[map.columns][map.rows];
+		for(int i = 0; i < map.columns; i++) map.getColumn(i).get(heights[i]);
+		
+		return heights;
+	}
+	
+	private ByteBuffer header;
+	private MappedByteBuffer[] segments;
+	
+	private int columns;
+	private int rows;
+	
+	// the number of columns mapped by each segment
+	private int segmentColumns;
+	
+	/**
+	 * Maps a height map into memory so that regions of it can be read without
+	 * loading the entire map; the mapping remains valid after the file is closed.
+	 */
+	public HeightMap(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		
+		try
+		{
+			FileChannel channel = file.getChannel();
+			
+			if(channel.size() < HEADER_SIZE) throw new IOException("Invalid height map: " + fileName);
+			
+			header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			
+			for(int i = 0; i < MAGIC.length; i++)
+				if(header.get(i) != MAGIC[i]) throw new IOException("Invalid height map: " + fileName);
+			
+			int version = header.getInt(4);
+			if(version != VERSION) throw new IOException("Unsupported height map version: " + version);
+			
+			columns = header.getInt( 8);
+			rows    = header.getInt(12);
+			
+			if(columns <= 0 || rows <= 0 || rows > SEGMENT_SIZE / 4)
+				throw new IOException("Invalid height map size: " + fileName);
+			
+			if((channel.size() - HEADER_SIZE) / 4 < (long) columns * rows)
+				throw new IOException("Truncated height map: " + fileName);
+			
+			segmentColumns = SEGMENT_SIZE / (rows * 4);
+			segments = new MappedByteBuffer[(columns + segmentColumns - 1) / segmentColumns];
+			
+			for(int s = 0; s < segments.length; s++)
+			{
+				long offset = HEADER_SIZE + (long) s * segmentColumns * rows * 4;
+				int  length = Math.min(segmentColumns, columns - s * segmentColumns) * rows * 4;
+				
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				segments[s].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		finally { file.close(); }
+	}
+	
+	public int getColumns() { return columns; }
+	
+	public int getRows() { return rows; }
+	
+	public float getMinimum() { return header.getFloat(16); }
+	
+	public float getMaximum() { return header.getFloat(20); }
+	
+	// a view of the ith column, which may be used from any thread
+	private FloatBuffer getColumn(int i)
+	{
+		ByteBuffer data = segments[i / segmentColumns].duplicate();
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		data.position((i % segmentColumns) * rows * 4);
+		data.limit(data.position() + rows * 4);
+		
+		return data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+	}
+	
+	// the height at (i, j), clamped to the edges of the map
+	public float getHeight(int i, int j)
+	{
+		i = Math.max(0, Math.min(i, columns - 1));
+		j = Math.max(0, Math.min(j, rows    - 1));
+		
+		return segments[i / segmentColumns].getFloat(((i % segmentColumns) * rows + j) * 4);
+	}
+	
+	/**
+	 * Copies the region of the map whose first height is (i, j) into the array
+	 * passed as a parameter, which determines the size of the region. Heights
+	 * beyond the edges of the map are clamped. This method may be called from any
+	 * thread, as it does not change the state of the mapped buffers.
+	 */
+	public void read(int i, int j, float[][] heights)
+	{
+		int length = heights[0].length;
+		
+		// the part of each column that lies within the map
+		int _j = Math.max(j, 0);
+		int j_ = Math.min(j + length, rows);
+		
+		for(int a = 0; a < heights.length; a++)
+		{
+			int column = Math.max(0, Math.min(i + a, columns - 1));
+			float[] row = heights[a];
+			
+			if(_j < j_)
+			{
+				FloatBuffer data = getColumn(column);
+				data.position(_j);
+				data.get(row, _j - j, j_ - _j);
+			}
+			
+			for(int b = 0; b < _j - j && b < length; b++) row[b] = getHeight(column, j + b);
+			for(int b = Math.max(j_ - j, 0); b < length; b++) row[b] = getHeight(column, j + b);
+		}
+	}
+}
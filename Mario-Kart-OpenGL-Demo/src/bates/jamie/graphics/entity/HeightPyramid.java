@@ -0,0 +1,196 @@
+package bates.jamie.graphics.entity;
+
+/**
+ * This class stores the minimum, maximum and average height of a surface over a
+ * grid of cells at a number of levels of precision, much like the levels of a
+ * mipmap. Each cell of a level covers four cells of the level below it, and the
+ * last level is a single cell that covers the entire surface.
+ *
+ * The bounds are conservative: the height sampled at any point of a cell lies
+ * between its minimum and maximum, so a query that only needs to know whether a
+ * point is clearly above or below the surface can often be answered without
+ * sampling the surface itself.
+ */
+public class HeightPyramid
+{
+	// the corner of the grid and the size of a cell at the finest level
+	private float x, z;
+	private float width, depth;
+	
+	private int levels;
+	private int[] columns;
+	private int[] rows;
+	
+	// the bounds of each cell of each level, stored column by column
+	private float[][] minimum;
+	private float[][] maximum;
+	private float[][] average;
+	
+	public HeightPyramid(float x, float z, float width, float depth, int columns, int rows)
+	{
+		this.x = x;
+		this.z = z;
+		this.width = width;
+		this.depth = depth;
+		
+		levels = 1;
+		for(int c = columns, r = rows; c > 1 || r > 1; c = (c + 1) / 2, r = (r + 1) / 2) levels++;
+		
+		this.columns = new int[levels];
+		this.rows    = new int[levels];
+		
+		minimum = new float[levels][];
+		maximum = new float[levels][];
+		average = new float[levels][];
+		
+		for(int k = 0; k < levels; k++)
+		{
+			this.columns[k] = columns;
+			this.rows   [k] = rows;
+			
+			minimum[k] = new float[columns * rows];
+			maximum[k] = new float[columns * rows];
+			average[k] = new float[columns * rows];
+			
+			columns = (columns + 1) / 2;
+			rows    = (rows    + 1) / 2;
+		}
+	}
+	
+	/**
+	 * Builds a pyramid from a grid of heights, such as those of the terrain, in
+	 * which the height <code>[i][j]</code> is found at the point
+	 * <code>(x + i * width, z + j * depth)</code> and is scaled by
+	 * <code>scale</code>. The surface is interpolated bilinearly between the
+	 * heights, so the average height of each cell is that of its four corners.
+	 */
+	public HeightPyramid(float[][] heights, float x, float z, float width, float depth, float scale)
+	{
+		this(x, z, width, depth, heights.length - 1, heights[0].length - 1);
+		
+		for(int i = 0; i < columns[0]; i++)
+		{
+			for(int j = 0; j < rows[0]; j++)
+			{
+				float h00 = heights[i][j    ], h10 = heights[i + 1][j    ];
+				float h01 = heights[i][j + 1], h11 = heights[i + 1][j + 1];
+				
+				setCell(i, j,
+					Math.min(Math.min(h00, h10), Math.min(h01, h11)) * scale,
+					Math.max(Math.max(h00, h10), Math.max(h01, h11)) * scale,
+					(h00 + h10 + h01 + h11) / 4 * scale);
+			}
+		}
+		
+		update(0, 0, columns[0] - 1, rows[0] - 1);
+	}
+	
+	public int getLevels() { return levels; }
+	
+	public int getColumns() { return columns[0]; }
+	
+	public int getRows() { return rows[0]; }
+	
+	// the column and row of the finest level containing a coordinate, which is clamped to the grid
+	public int getColumn(float x) { return Math.max(0, Math.min((int) Math.floor((x - this.x) / width), columns[0] - 1)); }
+	
+	public int getRow(float z) { return Math.max(0, Math.min((int) Math.floor((z - this.z) / depth), rows[0] - 1)); }
+	
+	public boolean contains(float x, float z)
+	{
+		return x >= this.x && x <= this.x + columns[0] * width &&
+			   z >= this.z && z <= this.z + rows   [0] * depth;
+	}
+	
+	/**
+	 * Sets the bounds of a cell at the finest level; the levels above it are not
+	 * changed until <code>update()</code> is called.
+	 */
+	public void setCell(int i, int j, float min, float max, float avg)
+	{
+		int cell = i * rows[0] + j;
+		
+		minimum[0][cell] = min;
+		maximum[0][cell] = max;
+		average[0][cell] = avg;
+	}
+	
+	/**
+	 * Recalculates the cells of every coarser level that cover the cells
+	 * <code>[i0, i1] x [j0, j1]</code> of the finest level. The average of a cell
+	 * along an odd edge of the grid is found from the children that exist.
+	 */
+	public void update(int i0, int j0, int i1, int j1)
+	{
+		for(int k = 1; k < levels; k++)
+		{
+			i0 /= 2; j0 /= 2;
+			i1 /= 2; j1 /= 2;
+			
+			int _rows = rows[k - 1];
+			
+			float[] _min = minimum[k - 1], min = minimum[k];
+			float[] _max = maximum[k - 1], max = maximum[k];
+			float[] _avg = average[k - 1], avg = average[k];
+			
+			for(int i = i0; i <= i1; i++)
+			{
+				for(int j = j0; j <= j1; j++)
+				{
+					float lo =  Float.MAX_VALUE;
+					float hi = -Float.MAX_VALUE;
+					float sum = 0;
+					int n = 0;
+					
+					for(int a = i * 2; a <= i * 2 + 1 && a < columns[k - 1]; a++)
+					{
+						for(int b = j * 2; b <= j * 2 + 1 && b < _rows; b++)
+						{
+							int child = a * _rows + b;
+							
+							if(_min[child] < lo) lo = _min[child];
+							if(_max[child] > hi) hi = _max[child];
+							sum += _avg[child];
+							n++;
+						}
+					}
+					
+					int cell = i * rows[k] + j;
+					
+					min[cell] = lo;
+					max[cell] = hi;
+					avg[cell] = sum / n;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the bounds of the cell at the given level that contains the point
+	 * (x, z) to the array <code>bounds</code> as {minimum, maximum, average}.
+	 * Level 0 is the most precise; the level is clamped to those available.
+	 *
+	 * @return <code>false</code> if the point is outside of the grid, in which
+	 * case <code>bounds</code> is unchanged.
+	 */
+	public boolean getBounds(float x, float z, int level, float[] bounds)
+	{
+		if(!contains(x, z)) return false;
+		
+		level = Math.max(0, Math.min(level, levels - 1));
+		
+		int cell = (getColumn(x) >> level) * rows[level] + (getRow(z) >> level);
+		
+		bounds[0] = minimum[level][cell];
+		bounds[1] = maximum[level][cell];
+		bounds[2] = average[level][cell];
+		
+		return true;
+	}
+	
+	public float getMinimum(int level, int i, int j) { return minimum[level][i * rows[level] + j]; }
+	
+	public float getMaximum(int level, int i, int j) { return maximum[level][i * rows[level] + j]; }
+	
+	public float getAverage(int level, int i, int j) { return average[level][i * rows[level] + j]; }
+}
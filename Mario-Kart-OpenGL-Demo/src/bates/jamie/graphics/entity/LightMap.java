@@ -0,0 +1,630 @@
+package bates.jamie.graphics.entity;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL2;
+
+import bates.jamie.graphics.util.Shader;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * This class bakes the lighting of a quadtree that only changes when the surface
+ * is deformed or the light is moved into a texture. Each texel stores the
+ * visibility of the light, found by marching from the texel towards the light
+ * across the height field and comparing the highest horizon with the elevation
+ * of the light, and the ambient occlusion, found from the horizon of the surface
+ * in a number of directions around the texel.
+ *
+ * The texture is divided into square tiles that are baked in parallel. When the
+ * surface is deformed, only the tiles whose heights changed are sampled again,
+ * and only those that the change could shadow or occlude are baked again and
+ * uploaded.
+ *
+ * A bake runs in the background and its tiles are uploaded on the first frame
+ * after it finishes, so that the GL thread never waits for it. The bake works
+ * from a copy of the light and of the tiles marked when it was started; the
+ * surface may be deformed and the light moved in the meantime, and any such
+ * changes are baked by the next bake. Until then the previous bake is used.
+ */
+public class LightMap
+{
+	// the number of texels along each side of a tile
+	public static final int TILE_SIZE = 16;
+	
+	// the number of directions in which the horizon is found for ambient occlusion
+	public static final int DIRECTIONS = 8;
+	
+	// the distances in texels over which occluders are searched for
+	public static final int SHADOW_DISTANCE    = 64;
+	public static final int OCCLUSION_DISTANCE =  8;
+	
+	// the angle in radians over which the light fades as it sets behind the horizon
+	public static final float PENUMBRA = 0.08f;
+	
+	// the distance the light must move before the entire map is baked again
+	public static final float LIGHT_EPSILON = 0.01f;
+	
+	public static final int TEXTURE_UNIT = 4;
+	
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	
+	private static final ThreadFactory factory = new ThreadFactory()
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "Light Map Baker");
+			thread.setDaemon(true);
+			
+			return thread;
+		}
+	};
+	
+	// the tiles are baked by the pool, while each bake is coordinated by a thread of its own
+	private static final ExecutorService executor  = Executors.newFixedThreadPool(THREADS, factory);
+	private static final ExecutorService scheduler = Executors.newSingleThreadExecutor(factory);
+	
+	private static final float[] DIRECTION_X = new float[DIRECTIONS];
+	private static final float[] DIRECTION_Z = new float[DIRECTIONS];
+	
+	static
+	{
+		for(int d = 0; d < DIRECTIONS; d++)
+		{
+			DIRECTION_X[d] = (float) Math.cos(d * 2 * Math.PI / DIRECTIONS);
+			DIRECTION_Z[d] = (float) Math.sin(d * 2 * Math.PI / DIRECTIONS);
+		}
+	}
+	
+	private Quadtree surface;
+	
+	private int size;  // the number of texels along each side
+	private int tiles; // the number of tiles along each side
+	
+	// the corner of the map and the distance between texels
+	private float x, z;
+	private float spacing;
+	
+	// the height of the surface at the centre of each texel, stored row by row along z
+	private float[] heights;
+	private float minimum, maximum;
+	
+	// the visibility of the light and the ambient occlusion of each texel
+	private ByteBuffer texels;
+	private int texture = 0;
+	
+	// the tiles whose heights must be sampled, that must be baked and that must be uploaded
+	private boolean[] resample;
+	private boolean[] rebake;
+	private boolean[] upload;
+	
+	// the texels that have been sampled again since the last bake {i0, j0, i1, j1}
+	private List<int[]> changes = new ArrayList<int[]>();
+	
+	private float[] light = new float[3];
+	private boolean parallel;
+	private boolean baked = false;
+	
+	// whether the surface has been moved since the last bake was started
+	private boolean moved;
+	
+	// the bake running in the background, which owns the fields below until it is done
+	private Future<?> running;
+	
+	private float[] bakeLight = new float[3];
+	private boolean bakeParallel;
+	
+	private boolean[] sampling;
+	private boolean[] baking;
+	private List<int[]> bakeChanges = new ArrayList<int[]>();
+	
+	// the tiles to be sampled, which are divided between the samplers
+	private int[] sampleTiles;
+	private int sampleCount;
+	
+	private List<Callable<Object>> samplers = new ArrayList<Callable<Object>>();
+	
+	public boolean enabled = true;
+	
+	public LightMap(Quadtree surface, int size)
+	{
+		this.surface = surface;
+		
+		tiles = (size + TILE_SIZE - 1) / TILE_SIZE;
+		this.size = tiles * TILE_SIZE;
+		
+		heights = new float[this.size * this.size];
+		texels  = Buffers.newDirectByteBuffer(this.size * this.size * 2);
+		
+		resample = new boolean[tiles * tiles];
+		rebake   = new boolean[tiles * tiles];
+		upload   = new boolean[tiles * tiles];
+		
+		sampling = new boolean[tiles * tiles];
+		baking   = new boolean[tiles * tiles];
+		sampleTiles = new int[tiles * tiles];
+		
+		for(int k = 0; k < THREADS; k++) samplers.add(new Sampler(k));
+		
+		invalidate();
+	}
+	
+	public int getSize() { return size; }
+	
+	public int getTexture() { return texture; }
+	
+	// the light map is only used once every tile has been baked and uploaded
+	public boolean isReady() { return baked && texture != 0; }
+	
+	/**
+	 * Sets the position of the light, or its direction if the light is parallel;
+	 * the entire map is baked again if the light has moved, and the map baked for
+	 * the previous position is used until then.
+	 */
+	public void setLight(float[] position, boolean parallel)
+	{
+		if(parallel == this.parallel &&
+		   Math.abs(position[0] - light[0]) < LIGHT_EPSILON &&
+		   Math.abs(position[1] - light[1]) < LIGHT_EPSILON &&
+		   Math.abs(position[2] - light[2]) < LIGHT_EPSILON) return;
+		
+		System.arraycopy(position, 0, light, 0, 3);
+		this.parallel = parallel;
+		
+		for(int t = 0; t < rebake.length; t++) rebake[t] = true;
+	}
+	
+	/**
+	 * Samples and bakes every tile again; this must be called whenever all of
+	 * the heights of the surface are replaced or the surface is moved. The map
+	 * is not used again until it has been baked.
+	 */
+	public void invalidate()
+	{
+		for(int t = 0; t < resample.length; t++) resample[t] = rebake[t] = true;
+		changes.clear();
+		
+		moved = true;
+		baked = false;
+	}
+	
+	/**
+	 * Marks the tiles whose heights lie within the region [x0, x1] x [z0, z1] to be
+	 * sampled again. The tiles around the region that it may occlude are baked
+	 * again as well, as are those that it may cast a shadow upon; these are found
+	 * once the heights have been sampled.
+	 */
+	public void invalidate(float x0, float z0, float x1, float z1)
+	{
+		// the texels whose centres lie within the region, or next to it
+		int j0 = (int) Math.floor((x0 - x) / spacing - 0.5f);
+		int i0 = (int) Math.floor((z0 - z) / spacing - 0.5f);
+		int j1 = (int) Math.ceil ((x1 - x) / spacing - 0.5f);
+		int i1 = (int) Math.ceil ((z1 - z) / spacing - 0.5f);
+		
+		mark(resample, i0, j0, i1, j1);
+		changes.add(new int[] {i0, j0, i1, j1});
+	}
+	
+	/**
+	 * Marks the tiles that the texels [i0, i1] x [j0, j1] may occlude or shadow to
+	 * be baked again. A shadow is cast away from the light, but no further than
+	 * the distance over which the light descends from the highest of the texels
+	 * to the lowest point of the map, as the texels cannot rise above the light
+	 * of anything beyond it.
+	 */
+	private void markShadow(int i0, int j0, int i1, int j1)
+	{
+		float highest = -Float.MAX_VALUE;
+		
+		for(int i = Math.max(i0, 0); i <= Math.min(i1, size - 1); i++)
+			for(int j = Math.max(j0, 0); j <= Math.min(j1, size - 1); j++)
+				highest = Math.max(highest, heights[i * size + j]);
+		
+		if(highest == -Float.MAX_VALUE) return;
+		
+		float[] light = bakeLight;
+		boolean parallel = bakeParallel;
+		
+		float dx = parallel ? -light[0] : x + (j0 + j1 + 1) / 2.0f * spacing - light[0];
+		float dz = parallel ? -light[2] : z + (i0 + i1 + 1) / 2.0f * spacing - light[2];
+		
+		float d = (float) Math.sqrt(dx * dx + dz * dz);
+		int reach = SHADOW_DISTANCE;
+		
+		if(d > 0)
+		{
+			// the lowest elevation of the light above any texel within reach, less the penumbra
+			float elevation = parallel ? light[1] / d : (light[1] - highest) / (d + SHADOW_DISTANCE * spacing);
+			float gradient  = getThreshold(elevation);
+			
+			if(gradient > 0) reach = Math.min(reach, (int) Math.ceil((highest - minimum) / (gradient * spacing)));
+			
+			dx /= d; dz /= d;
+		}
+		
+		reach++;
+		
+		mark(baking,
+			i0 - OCCLUSION_DISTANCE - 1 + (int) Math.floor(Math.min(dz, 0) * reach),
+			j0 - OCCLUSION_DISTANCE - 1 + (int) Math.floor(Math.min(dx, 0) * reach),
+			i1 + OCCLUSION_DISTANCE + 1 + (int) Math.ceil (Math.max(dz, 0) * reach),
+			j1 + OCCLUSION_DISTANCE + 1 + (int) Math.ceil (Math.max(dx, 0) * reach));
+	}
+	
+	// the gradient of the horizon below which the light is fully visible
+	private static float getThreshold(float elevation)
+	{
+		return (float) Math.tan(Math.atan(elevation) - PENUMBRA / 2);
+	}
+	
+	// marks the tiles that contain the texels [i0, i1] x [j0, j1], which are clamped to the map
+	private void mark(boolean[] flags, int i0, int j0, int i1, int j1)
+	{
+		i0 = Math.max(i0, 0); i1 = Math.min(i1, size - 1);
+		j0 = Math.max(j0, 0); j1 = Math.min(j1, size - 1);
+		
+		if(i0 > i1 || j0 > j1) return;
+		
+		i0 /= TILE_SIZE; i1 /= TILE_SIZE;
+		j0 /= TILE_SIZE; j1 /= TILE_SIZE;
+		
+		for(int i = i0; i <= i1; i++)
+			for(int j = j0; j <= j1; j++) flags[i * tiles + j] = true;
+	}
+	
+	/**
+	 * Uploads the tiles of a bake that has finished, and then starts a bake of
+	 * the tiles that are out of date if there are any; this must be called on the
+	 * GL thread. Returns the number of tiles uploaded.
+	 */
+	public int update(GL2 gl)
+	{
+		int uploaded = 0;
+		
+		if(running != null)
+		{
+			if(!running.isDone()) return 0;
+			
+			try { running.get(); }
+			catch(Exception e) { e.printStackTrace(); }
+			
+			running = null;
+			uploaded = upload(gl);
+			
+			if(!moved) baked = true;
+		}
+		
+		start();
+		
+		return uploaded;
+	}
+	
+	// copies the light and the tiles marked so far, and bakes them in the background
+	private void start()
+	{
+		boolean stale = !changes.isEmpty();
+		
+		for(int t = 0; t < rebake.length && !stale; t++) stale = resample[t] || rebake[t];
+		
+		if(!stale) return;
+		
+		if(moved)
+		{
+			x = surface.getMinimumX();
+			z = surface.getMinimumZ();
+			spacing = surface.getLength() / size;
+			
+			moved = false;
+		}
+		
+		System.arraycopy(light, 0, bakeLight, 0, 3);
+		bakeParallel = parallel;
+		
+		System.arraycopy(resample, 0, sampling, 0, resample.length);
+		System.arraycopy(rebake  , 0, baking  , 0, rebake.length);
+		
+		Arrays.fill(resample, false);
+		Arrays.fill(rebake  , false);
+		
+		bakeChanges.addAll(changes);
+		changes.clear();
+		
+		running = scheduler.submit(new Runnable()
+		{
+			public void run() { bake(); }
+		});
+	}
+	
+	/**
+	 * Samples the heights of the tiles that have changed and bakes the tiles that
+	 * are out of date. The work is divided between a pool of threads.
+	 */
+	private void bake()
+	{
+		sampleCount = 0;
+		
+		for(int t = 0; t < sampling.length; t++)
+			if(sampling[t]) { sampleTiles[sampleCount++] = t; sampling[t] = false; }
+		
+		if(sampleCount > 0)
+		{
+			run(samplers);
+			
+			maximum = -Float.MAX_VALUE;
+			minimum =  Float.MAX_VALUE;
+			
+			for(float h : heights)
+			{
+				if(h > maximum) maximum = h;
+				if(h < minimum) minimum = h;
+			}
+		}
+		
+		for(int[] change : bakeChanges) markShadow(change[0], change[1], change[2], change[3]);
+		bakeChanges.clear();
+		
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		
+		for(int t = 0; t < baking.length; t++)
+			if(baking[t]) { tasks.add(new Baker(t / tiles, t % tiles)); baking[t] = false; upload[t] = true; }
+		
+		run(tasks);
+	}
+	
+	private static void run(List<Callable<Object>> tasks)
+	{
+		try
+		{
+			if(THREADS <= 1 || tasks.size() <= 1)
+			{
+				for(Callable<Object> task : tasks) task.call();
+				return;
+			}
+			
+			// rethrow any exception raised by a tile
+			for(Future<Object> future : executor.invokeAll(tasks)) future.get();
+		}
+		catch(Exception e) { e.printStackTrace(); }
+	}
+	
+	/**
+	 * Creates the texture if necessary and uploads the tiles that have been baked
+	 * since the last upload. Returns the number of tiles uploaded.
+	 */
+	private int upload(GL2 gl)
+	{
+		int uploaded = 0;
+		
+		gl.glActiveTexture(GL2.GL_TEXTURE0 + TEXTURE_UNIT);
+		
+		if(texture == 0)
+		{
+			int[] id = new int[1];
+			gl.glGenTextures(1, id, 0);
+			texture = id[0];
+			
+			gl.glBindTexture(GL2.GL_TEXTURE_2D, texture);
+			
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP_TO_EDGE);
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP_TO_EDGE);
+			
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+			
+			gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RG8, size, size, 0, GL2.GL_RG, GL2.GL_UNSIGNED_BYTE, null);
+		}
+		else gl.glBindTexture(GL2.GL_TEXTURE_2D, texture);
+		
+		// each tile is read from within the rows of the entire map
+		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, size);
+		
+		for(int t = 0; t < upload.length; t++)
+		{
+			if(!upload[t]) continue;
+			
+			int i0 = (t / tiles) * TILE_SIZE;
+			int j0 = (t % tiles) * TILE_SIZE;
+			
+			gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, j0);
+			gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS  , i0);
+			
+			gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, j0, i0, TILE_SIZE, TILE_SIZE, GL2.GL_RG, GL2.GL_UNSIGNED_BYTE, texels);
+			
+			upload[t] = false;
+			uploaded++;
+		}
+		
+		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH , 0);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, 0);
+		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS  , 0);
+		
+		gl.glActiveTexture(GL2.GL_TEXTURE0);
+		
+		return uploaded;
+	}
+	
+	/**
+	 * Binds the texture and sets the uniforms used to find the texel beneath each
+	 * vertex from its position in world coordinates.
+	 */
+	public void bind(GL2 gl, Shader shader)
+	{
+		gl.glActiveTexture(GL2.GL_TEXTURE0 + TEXTURE_UNIT);
+		gl.glBindTexture(GL2.GL_TEXTURE_2D, texture);
+		gl.glActiveTexture(GL2.GL_TEXTURE0);
+		
+		shader.setSampler(gl, "lightMap", TEXTURE_UNIT);
+		shader.setUniform(gl, "lightMapOrigin", new float[] {x, z, 1.0f / (size * spacing)});
+	}
+	
+	public float getVisibility(int i, int j) { return (texels.get((i * size + j) * 2    ) & 0xFF) / 255.0f; }
+	
+	public float getOcclusion (int i, int j) { return (texels.get((i * size + j) * 2 + 1) & 0xFF) / 255.0f; }
+	
+	// interpolates the sampled heights at the point (j, i) in texels, or returns -infinity outside of the map
+	private float getHeight(float j, float i)
+	{
+		if(i < 0 || j < 0 || i > size - 1 || j > size - 1) return Float.NEGATIVE_INFINITY;
+		
+		int a = Math.min((int) i, size - 2);
+		int b = Math.min((int) j, size - 2);
+		
+		float s = j - b;
+		float t = i - a;
+		
+		int cell = a * size + b;
+		
+		float h00 = heights[cell       ], h01 = heights[cell        + 1];
+		float h10 = heights[cell + size], h11 = heights[cell + size + 1];
+		
+		return (1 - t) * ((1 - s) * h00 + s * h01) + t * ((1 - s) * h10 + s * h11);
+	}
+	
+	/**
+	 * Returns the greatest gradient of the surface as seen from the texel (j, i)
+	 * at height <code>h</code> in the direction (dx, dz), searching no further
+	 * than <code>distance</code> texels. The search ends early once the surface
+	 * could no longer rise above the gradient <code>limit</code>.
+	 */
+	private float getHorizon(int i, int j, float h, float dx, float dz, float distance, float limit)
+	{
+		float horizon = -Float.MAX_VALUE;
+		
+		// the steps grow with the distance, as distant occluders must be large to be seen
+		for(float t = 1; t <= distance; t += Math.max(1, t / 8))
+		{
+			float run = t * spacing;
+			if(h + Math.max(horizon, limit) * run > maximum) break;
+			
+			float y = getHeight(j + dx * t, i + dz * t);
+			if(y == Float.NEGATIVE_INFINITY) break;
+			
+			float gradient = (y - h) / run;
+			if(gradient > horizon) horizon = gradient;
+		}
+		
+		return horizon;
+	}
+	
+	private void bakeTexel(int i, int j)
+	{
+		int cell = i * size + j;
+		float h = heights[cell];
+		
+		float[] light = bakeLight;
+		boolean parallel = bakeParallel;
+		
+		// the direction of the light along the surface and its elevation
+		float dx = parallel ? light[0] : light[0] - (x + (j + 0.5f) * spacing);
+		float dz = parallel ? light[2] : light[2] - (z + (i + 0.5f) * spacing);
+		float dy = parallel ? light[1] : light[1] - h;
+		
+		float run = (float) Math.sqrt(dx * dx + dz * dz);
+		float visibility = 1;
+		
+		if(run > 0)
+		{
+			float elevation = dy / run;
+			float distance  = parallel ? SHADOW_DISTANCE : Math.min(SHADOW_DISTANCE, run / spacing);
+			
+			float horizon = getHorizon(i, j, h, dx / run, dz / run, distance, getThreshold(elevation));
+			
+			if(horizon > -Float.MAX_VALUE)
+			{
+				double angle = Math.atan(elevation) - Math.atan(horizon);
+				visibility = (float) Math.max(0, Math.min(0.5 + angle / PENUMBRA, 1));
+			}
+		}
+		
+		float occlusion = 0;
+		
+		for(int d = 0; d < DIRECTIONS; d++)
+		{
+			float horizon = getHorizon(i, j, h, DIRECTION_X[d], DIRECTION_Z[d], OCCLUSION_DISTANCE, 0);
+			
+			// the sine of the angle of the horizon above the plane
+			if(horizon > 0) occlusion += horizon / (float) Math.sqrt(1 + horizon * horizon);
+		}
+		
+		float ambient = 1 - occlusion / DIRECTIONS;
+		
+		texels.put(cell * 2    , (byte) (visibility * 255 + 0.5f));
+		texels.put(cell * 2 + 1, (byte) (ambient    * 255 + 0.5f));
+	}
+	
+	/**
+	 * Samples the heights of the surface at the centre of each texel of every
+	 * tile to be sampled that falls to its share. Each sampler keeps its own
+	 * arrays, which are reused by every tile and every bake.
+	 */
+	private class Sampler implements Callable<Object>
+	{
+		int first;
+		
+		float[] sampleX = new float[TILE_SIZE * TILE_SIZE];
+		float[] sampleZ = new float[TILE_SIZE * TILE_SIZE];
+		float[] samples = new float[TILE_SIZE * TILE_SIZE];
+		
+		public Sampler(int first)
+		{
+			this.first = first;
+		}
+		
+		public Object call()
+		{
+			for(int k = first; k < sampleCount; k += THREADS)
+				sample(sampleTiles[k] / tiles, sampleTiles[k] % tiles);
+			
+			return null;
+		}
+		
+		private void sample(int i, int j)
+		{
+			for(int a = 0; a < TILE_SIZE; a++)
+			{
+				for(int b = 0; b < TILE_SIZE; b++)
+				{
+					sampleX[a * TILE_SIZE + b] = x + (j * TILE_SIZE + b + 0.5f) * spacing;
+					sampleZ[a * TILE_SIZE + b] = z + (i * TILE_SIZE + a + 0.5f) * spacing;
+				}
+			}
+			
+			surface.getHeights(sampleX, sampleZ, samples, samples.length, Quadtree.MAXIMUM_LOD);
+			
+			for(int a = 0; a < TILE_SIZE; a++)
+				System.arraycopy(samples, a * TILE_SIZE, heights, (i * TILE_SIZE + a) * size + j * TILE_SIZE, TILE_SIZE);
+		}
+	}
+	
+	/**
+	 * Bakes the visibility of the light and the ambient occlusion of each texel of
+	 * a tile from the sampled heights.
+	 */
+	private class Baker implements Callable<Object>
+	{
+		int i, j;
+		
+		public Baker(int i, int j)
+		{
+			this.i = i;
+			this.j = j;
+		}
+		
+		public Object call()
+		{
+			for(int a = i * TILE_SIZE; a < (i + 1) * TILE_SIZE; a++)
+				for(int b = j * TILE_SIZE; b < (j + 1) * TILE_SIZE; b++) bakeTexel(a, b);
+			
+			return null;
+		}
+	}
+}
@@ -6,16 +6,21 @@ import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_VERTEX_ARRAY;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
 import javax.media.opengl.GL2;
+import javax.media.opengl.GLContext;
 
 import bates.jamie.graphics.scene.Light;
 import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.scene.ShadowCaster;
+import bates.jamie.graphics.util.CullCounter;
+import bates.jamie.graphics.util.Frustum;
 import bates.jamie.graphics.util.Gradient;
 import bates.jamie.graphics.util.Matrix;
 import bates.jamie.graphics.util.RGB;
@@ -45,6 +50,7 @@ public class Quadtree
 	private static final float VECTOR_OFFSET = 0.005f;
 	
 	public Quadtree root;
+	public Quadtree parent;
 	
 	public Quadtree north_west;
 	public Quadtree north_east;
@@ -53,28 +59,45 @@ public class Quadtree
 	
 	int[] indices = new int[4];
 	
-	List<float[]> vertices;
-	List<float[]> normals;
-	List<float[]> texCoords;
-	List<float[]> colors;
-	List<float[]> tangents;
+	// the position of the cell's corner on the grid of cells at the maximum LOD
+	int column, row;
 	
-	List<Float> heights;
+	// the state of the hierarchy as a whole, created by the root and shared by every cell
+	QuadtreeContext context;
+	
+	// the number of cells along each side of the finest level of the height pyramid is 2^PYRAMID_LOD
+	public static final int PYRAMID_LOD = 6;
+	
+	// the maximum height error introduced by rendering the cell rather than its children
+	private float error = -1;
+	
+	// the vertical range of the cell and its descendants
+	private float minimum, maximum;
+	
+	// the cells of the current selection that belong to this cell {first, first + count}
+	private int first, count;
+	
+	// the selection during which this cell was last refined
+	private int refined = 0;
+	private int selections = 0;
+	
+	// the level of detail being rendered
+	private QuadtreeView view;
+	
+	// vertex attributes shared by the whole hierarchy
+	VertexStore store;
 	
 	int offset;
 	
-	IntBuffer   iBuffer;
-	FloatBuffer vBuffer;
-	FloatBuffer nBuffer;
-	FloatBuffer tBuffer;
-	FloatBuffer cBuffer;
-	FloatBuffer aBuffer;
+	IntBuffer iBuffer;
 	
 	int indexCount;
+	int indexLOD = MAXIMUM_LOD; // the level of detail of the indices in the buffer
 	
 	public Texture texture;
 	public Texture bumpmap;
 	public Texture caustic;
+	
 	public Gradient gradient = Gradient.GRAYSCALE;
 	
 	public FallOff falloff    = FallOff.SMOOTH;
@@ -101,6 +124,19 @@ public class Quadtree
 
 	public float[] lineColor = RGB.WHITE_3F;
 	
+	// store geometry in buffer objects rather than resubmitting it each frame (opt-in until profiled)
+	public boolean enableVBO = false;
+	
+	// only draw the cells that lie within the view frustum
+	public boolean enableCulling = true;
+	
+	private static final int VERTEX_BUFFER   = 0;
+	private static final int NORMAL_BUFFER   = 1;
+	private static final int TEXTURE_BUFFER  = 2;
+	private static final int COLOR_BUFFER    = 3;
+	private static final int TANGENT_BUFFER  = 4;
+	private static final int INDEX_BUFFER    = 5;
+	
 	/**
 	 * This method constructs a Quadtree data structure that maintains an indexed
 	 * list of textured geometry
@@ -118,20 +154,9 @@ public class Quadtree
 		this.root = root;
 		this.lod  = lod;
 		
-		heights = root.heights;
-		
-		vertices  = root.vertices;
-		normals   = root.normals;
-		texCoords = root.texCoords;
-		colors    = root.colors;
-		tangents  = root.tangents;
-		
-		vBuffer = root.vBuffer;
-		nBuffer = root.nBuffer;
-		tBuffer = root.tBuffer;
-		cBuffer = root.cBuffer;
+		store   = root.store;
 		iBuffer = root.iBuffer;
-		aBuffer = root.aBuffer;
+		context = root.context;
 		
 		this.indices = indices;
 		
@@ -154,13 +179,9 @@ public class Quadtree
 		root = this;
 		lod = 0;
 		
-		this.vertices  = vertices;
 		this.indices   = new int[] {0, 1, 2, 3};
 		
-		texCoords = new ArrayList<float[]>();
-		tangents  = new ArrayList<float[]>();
-		
-		createLists(vertices);
+		createStore(vertices, null);
 		createBuffers();
 		
 		enableTexture = false;
@@ -181,13 +202,9 @@ public class Quadtree
 		vertices.add(new float[] { vScale, height, -vScale});
 		vertices.add(new float[] {-vScale, height, -vScale});
 		
-		this.vertices  = vertices;
 		this.indices   = new int[] {0, 1, 2, 3};
 		
-		texCoords = new ArrayList<float[]>();
-		tangents  = new ArrayList<float[]>();
-		
-		createLists(vertices);
+		createStore(vertices, null);
 		createBuffers();
 		
 		enableTexture = false;
@@ -221,10 +238,7 @@ public class Quadtree
 		
 		this.indices   = new int[] {0, 1, 2, 3};
 		
-		this.vertices  = vertices;
-		this.texCoords = texCoords;
-		
-		createLists(vertices, texCoords);
+		createStore(vertices, texCoords);
 		createBuffers();
 		
 		this.texture = texture;
@@ -242,10 +256,6 @@ public class Quadtree
 	
 	public Quadtree(float vScale, float tScale, float height, Texture texture, int iterations)
 	{	
-		long start = System.nanoTime();
-		
-		System.out.print("Quadtree:\n{\n");
-		
 		root = this;
 		lod = 0;
 		
@@ -265,73 +275,56 @@ public class Quadtree
 		texCoords.add(new float[] {tScale, tScale});
 		texCoords.add(new float[] {     0, tScale});
 		
-		this.vertices  = vertices;
-		this.texCoords = texCoords;
-		
-		createLists(vertices, texCoords);
+		createStore(vertices, texCoords);
 		createBuffers();
 		
 		this.texture = texture;
 		enableTexture = true;
 		
 		subdivide(iterations);
-		
-		System.out.printf("\tConstructor: %7.3f ms\n", (System.nanoTime() - start) / 1E6);
-		System.out.printf("\tVertices   : %7d\n", vertexCount());
-		System.out.printf("\tCells      : %7d\n", cellCount());
-		System.out.println("}");
 	}
 	
-	private void createLists(List<float[]> plane, List<float[]> scale)
+	/**
+	 * This method creates the vertex store shared by the quadtree hierarchy and
+	 * fills it with the four corners of the root cell. If <code>scale</code> is
+	 * <code>null</code>, no texture coordinates or tangents are stored.
+	 */
+	private void createStore(List<float[]> plane, List<float[]> scale)
 	{
-		normals = new ArrayList<float[]>();
-		float[] normal = Vector.normal(plane.get(0), plane.get(1), plane.get(3));
-		for(int i = 0; i < 4; i++) normals.add(normal);
+		store = new VertexStore(scale != null);
+		context = new QuadtreeContext();
 		
-		tangents = new ArrayList<float[]>();
-		float[] tangent = Vector.tangent(
+		float[] normal  = Vector.normal(plane.get(0), plane.get(1), plane.get(3));
+		float[] tangent = (scale == null) ? null : Vector.tangent(
 			plane.get(0), plane.get(1), plane.get(3),
 			scale.get(0), scale.get(1), scale.get(3));
-		for(int i = 0; i < 4; i++) tangents.add(tangent);
-		
-		colors = new ArrayList<float[]>();
-		for(int i = 0; i < 4; i++) colors.add(RGB.WHITE_3F);
-		
-		heights = new ArrayList<Float>();
-		for(int i = 0; i < 4; i++) heights.add(plane.get(i)[1]);
-	}
-
-	private void createLists(List<float[]> vertices)
-	{
-		normals = new ArrayList<float[]>();
-		float[] normal = Vector.normal(vertices.get(0), vertices.get(1), vertices.get(3));
-		for(int i = 0; i < 4; i++) normals.add(normal);
-		
-		colors = new ArrayList<float[]>();
-		for(int i = 0; i < 4; i++) colors.add(RGB.WHITE_3F);
 		
-		heights = new ArrayList<Float>();
-		for(int i = 0; i < 4; i++) heights.add(vertices.get(i)[1]);
+		for(int i = 0; i < 4; i++)
+		{
+			addVertex(plane.get(i));
+			store.setNormal(i, normal);
+			
+			if(scale != null)
+			{
+				store.setTexCoord(i, scale.get(i));
+				store.setTangent (i, tangent);
+			}
+		}
 	}
 	
 	public void translate(float[] vector)
 	{
-		int position = vBuffer.position();
-		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] vertex = vertices.get(i);
-
-			vertex[0] += vector[0];
-			vertex[1] += vector[1];
-			vertex[2] += vector[2];
+			store.setVertex(i,
+				store.getX(i) + vector[0],
+				store.getY(i) + vector[1],
+				store.getZ(i) + vector[2]);
 			
-			vBuffer.position(i * 3 + 1); vBuffer.put(vertex[1]);
-			
-			heights.set(i, heights.get(i) + vector[1]);
+			store.setHeight(i, store.getHeight(i) + vector[1]);
 		}
 		
-		vBuffer.position(position);
+		root.replaceHeights();
 	}
 	
 	/**
@@ -352,16 +345,16 @@ public class Quadtree
 		if(north_west.isLeaf() && north_east.isLeaf() &&
 		   south_west.isLeaf() && south_east.isLeaf())
 		{
-			float[] northwest = vertices.get(north_west.indices[3]);
-			float[] northeast = vertices.get(north_east.indices[2]);
-			float[] southwest = vertices.get(south_west.indices[0]);
-			float[] southeast = vertices.get(south_east.indices[1]);
+			float northwest = store.getY(north_west.indices[3]);
+			float northeast = store.getY(north_east.indices[2]);
+			float southwest = store.getY(south_west.indices[0]);
+			float southeast = store.getY(south_east.indices[1]);
 			
-			float[] north  = vertices.get(north_west.indices[2]);
-			float[] east   = vertices.get(south_east.indices[2]);
-			float[] south  = vertices.get(south_east.indices[0]);
-			float[] west   = vertices.get(north_west.indices[0]);
-			float[] centre = vertices.get(north_west.indices[1]);
+			float north  = store.getY(north_west.indices[2]);
+			float east   = store.getY(south_east.indices[2]);
+			float south  = store.getY(south_east.indices[0]);
+			float west   = store.getY(north_west.indices[0]);
+			float centre = store.getY(north_west.indices[1]);
 			
 			if(gradient(southeast, east , northeast) &&
 			   gradient(southwest, west , northwest) &&
@@ -381,17 +374,22 @@ public class Quadtree
 	
 	public void divideAtPoint(int index, int lod)
 	{
-		divideAtPoint(vertices.get(index), lod);
+		divideAtPoint(store.getX(index), store.getZ(index), lod);
 	}
 	
 	public void divideAtPoint(float[] p, int lod)
+	{
+		divideAtPoint(p[0], p[2], lod);
+	}
+	
+	public void divideAtPoint(float x, float z, int lod)
 	{
 		Quadtree cell = this;
 		
 		while(cell.lod < lod)
 		{
 			cell.subdivide();
-			cell = getCell(p, MAXIMUM_LOD);
+			cell = getCell(x, z, MAXIMUM_LOD);
 		}
 	}
 	
@@ -405,7 +403,9 @@ public class Quadtree
 	 */
 	public void repairCrack(int index)
 	{	
-		Quadtree[] cells = getAdjacent(index);
+		if(context.crackCells == null) context.crackCells = new Quadtree[4];
+		
+		Quadtree[] cells = getAdjacent(index, context.crackCells);
 		
 		int lod = 0;
 		
@@ -420,7 +420,7 @@ public class Quadtree
 			{
 				cells[i].divideAtPoint(index, lod);
 				// subdivide may have introduced new neighbours
-				cells = getAdjacent(index);
+				cells = getAdjacent(index, cells);
 			}
 		}
 	}
@@ -437,25 +437,42 @@ public class Quadtree
 	 */
 	public Quadtree[] getAdjacent(float[] p)
 	{
-		Quadtree[] neighbours = new Quadtree[4];
-		
-		neighbours[0] = getCell(Vector.add(p, new float[] {-VECTOR_OFFSET, 0, -VECTOR_OFFSET}), MAXIMUM_LOD); // north-west
-		neighbours[1] = getCell(Vector.add(p, new float[] {+VECTOR_OFFSET, 0, -VECTOR_OFFSET}), MAXIMUM_LOD); // south-west
-		neighbours[2] = getCell(Vector.add(p, new float[] {-VECTOR_OFFSET, 0, +VECTOR_OFFSET}), MAXIMUM_LOD); // north-east
-		neighbours[3] = getCell(Vector.add(p, new float[] {+VECTOR_OFFSET, 0, +VECTOR_OFFSET}), MAXIMUM_LOD); // south-east
-		
-		return neighbours;
+		return getAdjacent(p[0], p[2], new Quadtree[4]);
 	}
 	
 	public Quadtree[] getAdjacent(int index)
 	{
-		return getAdjacent(vertices.get(index));
+		return getAdjacent(index, new Quadtree[4]);
+	}
+	
+	public Quadtree[] getAdjacent(int index, Quadtree[] neighbours)
+	{
+		return getAdjacent(store.getX(index), store.getZ(index), neighbours);
+	}
+	
+	/**
+	 * Writes the leaf nodes that reference the vertex at (x, z) to the array
+	 * <code>neighbours</code>, which is returned for convenience.
+	 */
+	public Quadtree[] getAdjacent(float x, float z, Quadtree[] neighbours)
+	{
+		neighbours[0] = getCell(x - VECTOR_OFFSET, z - VECTOR_OFFSET, MAXIMUM_LOD); // north-west
+		neighbours[1] = getCell(x + VECTOR_OFFSET, z - VECTOR_OFFSET, MAXIMUM_LOD); // south-west
+		neighbours[2] = getCell(x - VECTOR_OFFSET, z + VECTOR_OFFSET, MAXIMUM_LOD); // north-east
+		neighbours[3] = getCell(x + VECTOR_OFFSET, z + VECTOR_OFFSET, MAXIMUM_LOD); // south-east
+		
+		return neighbours;
 	}
 	
 	public static boolean gradient(float[] a, float[] b, float[] c)
 	{
-		float ba = b[1] - a[1];
-		float cb = c[1] - b[1];
+		return gradient(a[1], b[1], c[1]);
+	}
+	
+	public static boolean gradient(float a, float b, float c)
+	{
+		float ba = b - a;
+		float cb = c - b;
 		
 		return Math.abs(cb - ba) < EPSILON;
 	}
@@ -474,27 +491,14 @@ public class Quadtree
 		return c * c;
 	}
 	
+	/**
+	 * This method creates the index buffer used to render the quadtree; vertex
+	 * attributes are read directly from the buffers of the vertex store.
+	 */
 	public long createBuffers()
 	{
 		long start = System.nanoTime();
 		
-		int capacity = getVertexCapacity();
-		
-		vBuffer = Buffers.newDirectFloatBuffer(capacity * 3);
-		for(float[] vertex : vertices) vBuffer.put(vertex);
-		
-		nBuffer = Buffers.newDirectFloatBuffer(capacity * 3);
-		for(float[] normal : normals) nBuffer.put(normal);
-		
-		tBuffer = Buffers.newDirectFloatBuffer(capacity * 2);
-		for(float[] texCoord : texCoords) tBuffer.put(texCoord);
-		
-		cBuffer = Buffers.newDirectFloatBuffer(capacity * 3);
-		for(float[] color : colors) cBuffer.put(color);
-		
-		aBuffer = Buffers.newDirectFloatBuffer(capacity * 3);
-		for(float[] tangent : tangents) aBuffer.put(tangent);
-		
 		iBuffer = Buffers.newDirectIntBuffer(getCellCapacity() * 4);
 		for(int index : indices) iBuffer.put(index);
 		
@@ -503,10 +507,298 @@ public class Quadtree
 		return System.nanoTime() - start;
 	}
 	
+	/**
+	 * Replaces the index buffer, which is allocated for the maximum level of
+	 * detail, with one that only holds the cells currently indexed. This saves
+	 * memory for quadtrees that are never subdivided, such as the tiles of a
+	 * tiled terrain; subdividing the quadtree afterwards would overflow the buffer.
+	 */
+	public void trimIndices()
+	{
+		IntBuffer source = iBuffer.duplicate();
+		source.position(0); source.limit(indexCount);
+		
+		IntBuffer indices = Buffers.newDirectIntBuffer(indexCount);
+		indices.put(source);
+		
+		setIndexBuffer(indices);
+		context.indicesChanged = true;
+	}
+	
+	private void setIndexBuffer(IntBuffer buffer)
+	{
+		iBuffer = buffer;
+		
+		if(isLeaf()) return;
+		
+		north_west.setIndexBuffer(buffer);
+		north_east.setIndexBuffer(buffer);
+		south_west.setIndexBuffer(buffer);
+		south_east.setIndexBuffer(buffer);
+	}
+	
 	public void updateIndices(int lod)
 	{
 		iBuffer.position(0);
 		indexCount = getIndices(lod);
+		indexLOD = lod;
+		
+		context.indicesChanged = true;
+	}
+	
+	/**
+	 * Buffer objects are only used if they are enabled and supported by the current
+	 * context; they are part of OpenGL 1.5 and so are also available when rendering
+	 * with a software implementation such as Mesa. Whether the function is
+	 * available is only queried once for each GL context.
+	 */
+	private boolean useVBO(GL2 gl)
+	{
+		if(!enableVBO) return false;
+		
+		GLContext current = gl.getContext();
+		
+		if(context.glContext != current)
+		{
+			context.glContext = current;
+			context.vboAvailable = gl.isFunctionAvailable("glBindBuffer");
+		}
+		
+		return context.vboAvailable;
+	}
+	
+	/**
+	 * This method copies the geometry of the quadtree to buffer objects. The vertex
+	 * buffers are only reallocated if the vertex store has grown, otherwise just the
+	 * ranges modified since the last upload are copied. The index buffer is only
+	 * copied when the indices have been changed by <code>updateIndices()</code> or
+	 * by subdividing a visible cell.
+	 */
+	private void uploadBuffers(GL2 gl)
+	{
+		if(context.bufferIDs == null)
+		{
+			context.bufferIDs = new int[6];
+			gl.glGenBuffers(context.bufferIDs.length, context.bufferIDs, 0);
+		}
+		
+		FloatBuffer[] buffers = {store.vBuffer, store.nBuffer, store.tBuffer, store.cBuffer, store.aBuffer};
+		int[] components = {3, 3, 2, 3, 3};
+		
+		if(context.bufferCapacity != store.capacity())
+		{
+			for(int i = 0; i < buffers.length; i++)
+			{
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[i]);
+				gl.glBufferData(GL2.GL_ARRAY_BUFFER, buffers[i].capacity() * Buffers.SIZEOF_FLOAT, buffers[i], GL2.GL_DYNAMIC_DRAW);
+			}
+			
+			context.bufferCapacity = store.capacity();
+			store.clearDirty();
+		}
+		else if(store.isDirty())
+		{
+			List<int[]> ranges = store.getDirtyRanges();
+			
+			for(int i = 0; i < buffers.length; i++)
+			{
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[i]);
+				
+				for(int[] range : ranges)
+				{
+					int offset = range[0] * components[i];
+					int length = range[1] * components[i];
+					
+					buffers[i].position(offset);
+					gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, offset * Buffers.SIZEOF_FLOAT, length * Buffers.SIZEOF_FLOAT, buffers[i]);
+				}
+				
+				buffers[i].position(0);
+			}
+			
+			store.clearDirty();
+		}
+		
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+		
+		if(context.indicesChanged)
+		{
+			IntBuffer _indices = iBuffer.duplicate();
+			_indices.position(0); _indices.limit(indexCount);
+			
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, context.bufferIDs[INDEX_BUFFER]);
+			gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, indexCount * Buffers.SIZEOF_INT, _indices, GL2.GL_DYNAMIC_DRAW);
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+			
+			context.indicesChanged = false;
+		}
+	}
+	
+	/**
+	 * Copies the geometry of the quadtree to the GPU ahead of it being rendered.
+	 */
+	public void upload(GL2 gl)
+	{
+		if(useVBO(gl)) uploadBuffers(gl);
+	}
+	
+	/**
+	 * Releases the buffer objects used to render the quadtree; they will be
+	 * recreated if the quadtree is rendered again.
+	 */
+	public void deleteBuffers(GL2 gl)
+	{
+		if(context.bufferIDs == null) return;
+		
+		gl.glDeleteBuffers(context.bufferIDs.length, context.bufferIDs, 0);
+		
+		if(context.views != null)
+			for(QuadtreeView view : context.views)
+				if(view != null) view.deleteBuffers(gl);
+		
+		context.bufferIDs = null;
+		context.bufferCapacity = 0;
+		context.indicesChanged = true;
+	}
+	
+	// tests the bounds of the cell (and its descendants) against the frustum
+	private int testFrustum(Frustum frustum)
+	{
+		getError(); // ensure the vertical range is up to date
+		
+		float x0 = store.getX(indices[3]), x1 = store.getX(indices[1]);
+		float z0 = store.getZ(indices[3]), z1 = store.getZ(indices[1]);
+		
+		return frustum.testBox(
+			Math.min(x0, x1), minimum, Math.min(z0, z1),
+			Math.max(x0, x1), maximum, Math.max(z0, z1));
+	}
+	
+	/**
+	 * Adds the ranges of indices belonging to the cells of the view's selection
+	 * that may be visible. A cell outside of the frustum is discarded along with
+	 * all of its descendants, and a cell entirely within the frustum is added
+	 * without testing its descendants; as the selection is made depth-first, the
+	 * indices of a cell's descendants are always contiguous.
+	 */
+	private void cull(QuadtreeView view, Frustum frustum, boolean inside)
+	{
+		int result = inside ? Frustum.INSIDE : testFrustum(frustum);
+		
+		if(result == Frustum.OUTSIDE) return;
+		
+		if(result == Frustum.INSIDE || count == 1) view.addRange(first, count);
+		else
+		{
+			north_west.cull(view, frustum, false);
+			north_east.cull(view, frustum, false);
+			south_west.cull(view, frustum, false);
+			south_east.cull(view, frustum, false);
+		}
+	}
+	
+	/**
+	 * Copies the indices of the cells rendered at the given LOD that may be
+	 * visible into the buffer, returning the number of cells copied.
+	 */
+	private int cull(IntBuffer buffer, Frustum frustum, int lod, boolean inside)
+	{
+		int result = inside ? Frustum.INSIDE : testFrustum(frustum);
+		
+		if(result == Frustum.OUTSIDE) return 0;
+		
+		if(isLeaf() || this.lod == lod)
+		{
+			buffer.put(indices);
+			return 1;
+		}
+		
+		inside = result == Frustum.INSIDE;
+		
+		return north_west.cull(buffer, frustum, lod, inside) +
+			   north_east.cull(buffer, frustum, lod, inside) +
+			   south_west.cull(buffer, frustum, lod, inside) +
+			   south_east.cull(buffer, frustum, lod, inside);
+	}
+	
+	/**
+	 * Draws the cells that are currently selected, either for the active view or
+	 * at the level of detail of the index buffer. If culling is enabled, only those
+	 * within the frustum of the current projection and model view are drawn, and
+	 * the number of cells drawn and culled is recorded for the current pass.
+	 */
+	private void drawCells(GL2 gl, boolean vbo)
+	{
+		if(view != null) view.upload(gl, vbo);
+		
+		if(!enableCulling)
+		{
+			if(view != null)
+			{
+				if(vbo)
+				{
+					gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, view.getBufferID());
+					gl.glDrawElements(GL2.GL_QUADS, view.indexCount(), GL2.GL_UNSIGNED_INT, 0);
+				}
+				else gl.glDrawElements(GL2.GL_QUADS, view.indexCount(), GL2.GL_UNSIGNED_INT, view.getBuffer());
+			}
+			else if(vbo)
+			{
+				gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, context.bufferIDs[INDEX_BUFFER]);
+				gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, 0);
+			}
+			else
+			{
+				iBuffer.flip(); // read indices from start of buffer
+				
+				gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, iBuffer);
+				
+				iBuffer.position(iBuffer.limit()); iBuffer.limit(iBuffer.capacity());
+			}
+			
+			CullCounter.record(view != null ? view.selection.size() : indexCount / 4, 0);
+			return;
+		}
+		
+		if(context.frustum == null) context.frustum = new Frustum();
+		
+		Frustum frustum = context.frustum;
+		frustum.update(gl);
+		
+		if(view != null)
+		{
+			view.clearRanges();
+			cull(view, frustum, false);
+			view.culled = view.selection.size() - view.drawn;
+			
+			if(vbo) gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, view.getBufferID());
+			
+			for(int i = 0; i < view.rangeCount; i++)
+			{
+				int start = view.getRangeStart(i);
+				int end   = view.getRangeEnd  (i);
+				
+				if(vbo) gl.glDrawElements(GL2.GL_QUADS, end - start, GL2.GL_UNSIGNED_INT, start * Buffers.SIZEOF_INT);
+				else    gl.glDrawElements(GL2.GL_QUADS, end - start, GL2.GL_UNSIGNED_INT, view.getBuffer(start, end));
+			}
+			
+			CullCounter.record(view.drawn, view.culled);
+		}
+		else
+		{
+			if(context.cullBuffer == null || context.cullBuffer.capacity() < indexCount)
+				context.cullBuffer = Buffers.newDirectIntBuffer(iBuffer.capacity());
+			
+			context.cullBuffer.clear();
+			context.culledCount = cull(context.cullBuffer, frustum, indexLOD, false);
+			context.cullBuffer.flip();
+			
+			// the compacted indices are read from client memory
+			if(vbo) gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+			if(context.culledCount > 0) gl.glDrawElements(GL2.GL_QUADS, context.culledCount * 4, GL2.GL_UNSIGNED_INT, context.cullBuffer);
+			
+			CullCounter.record(context.culledCount, indexCount / 4 - context.culledCount);
+		}
 	}
 	
 	public int getIndices(int lod)
@@ -532,23 +824,41 @@ public class Quadtree
 	}
 	
 	/**
-	 * This method returns the index of a vertex <code>p</code> if it is stored by this
-	 * quadtree's hierarchy, otherwise, an invalid index of -1 is returned.
+	 * Returns the key used to index the vertex at <code>p</code>; this is the
+	 * position of the vertex on a grid with the resolution of the maximum LOD,
+	 * relative to the bottom-left corner of the root. A negative key is returned
+	 * if the vertex is outside of the root cell.
 	 */
-	public int storesVertex(float[] p)
+	private int getKey(float[] p)
 	{
-		int index = pointOnCell(p);
-		if(index != -1) return index;
+		int cells = 1 << MAXIMUM_LOD;
+		float increment = root.getLength() / cells;
+		
+		int x = Math.round((p[0] - store.getX(root.indices[3])) / increment);
+		int z = Math.round((p[2] - store.getZ(root.indices[3])) / increment);
 		
-		int nw, ne, sw, se;
-		nw = ne = sw = se = -1;
+		if(x < 0 || x > cells || z < 0 || z > cells) return -1;
 		
-		if(north_west != null && north_west.pointInCell(p)) nw = north_west.storesVertex(p); if(nw != -1) return nw;
-		if(north_east != null && north_east.pointInCell(p)) ne = north_east.storesVertex(p); if(ne != -1) return ne;
-		if(south_west != null && south_west.pointInCell(p)) sw = south_west.storesVertex(p); if(sw != -1) return sw;
-		if(south_east != null && south_east.pointInCell(p)) se = south_east.storesVertex(p); if(se != -1) return se;
+		return x * (cells + 1) + z;
+	}
+	
+	/**
+	 * This method returns the index of the vertex at the horizontal position of
+	 * <code>p</code> if it is stored by this quadtree's hierarchy, otherwise, an
+	 * invalid index of -1 is returned. This is a constant time lookup that
+	 * ignores the height of the vertex.
+	 */
+	public int indexOf(float[] p)
+	{
+		return context.vertexIndex.get(getKey(p));
+	}
+	
+	private int addVertex(float[] p)
+	{
+		int index = store.add(p);
+		context.vertexIndex.put(getKey(p), index);
 		
-		return -1;
+		return index;
 	}
 	
 	/**
@@ -557,10 +867,10 @@ public class Quadtree
 	 */
 	public int pointOnCell(float[] p)
 	{
-		if(Vector.equal(p, vertices.get(indices[0]))) return indices[0];
-		if(Vector.equal(p, vertices.get(indices[1]))) return indices[1];
-		if(Vector.equal(p, vertices.get(indices[2]))) return indices[2];
-		if(Vector.equal(p, vertices.get(indices[3]))) return indices[3];
+		if(store.equal(indices[0], p)) return indices[0];
+		if(store.equal(indices[1], p)) return indices[1];
+		if(store.equal(indices[2], p)) return indices[2];
+		if(store.equal(indices[3], p)) return indices[3];
 		
 		else return -1;
 	}
@@ -571,13 +881,15 @@ public class Quadtree
 	 */
 	public boolean pointInCell(float[] p)
 	{
-		float x = p[0];
-		float z = p[2];
-		
-		float _x = vertices.get(indices[3])[0];
-		float _z = vertices.get(indices[3])[2];
-		float x_ = vertices.get(indices[1])[0];
-		float z_ = vertices.get(indices[1])[2];
+		return pointInCell(p[0], p[2]);
+	}
+	
+	public boolean pointInCell(float x, float z)
+	{
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		float x_ = store.getX(indices[1]);
+		float z_ = store.getZ(indices[1]);
 		
 		return ((x >= _x) && (x <= x_) && (z >= _z) && (z <= z_)); 
 	}
@@ -595,16 +907,10 @@ public class Quadtree
 		// do not subdivide if cell will exceed maximum lod
 		if(lod + 1 > MAXIMUM_LOD) return false;
 		
-		vBuffer.limit(vBuffer.capacity());
-		nBuffer.limit(nBuffer.capacity());
-		tBuffer.limit(tBuffer.capacity());
-		cBuffer.limit(cBuffer.capacity());
-		aBuffer.limit(aBuffer.capacity());
-		
-		float _x = vertices.get(indices[3])[0];
-		float _z = vertices.get(indices[3])[2];
-		float x_ = vertices.get(indices[1])[0];
-		float z_ = vertices.get(indices[1])[2];
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		float x_ = store.getX(indices[1]);
+		float z_ = store.getZ(indices[1]);
 		
 		float _x_ = (_x + x_) / 2; // horizontal centre of cell
 		float _z_ = (_z + z_) / 2; // vertical centre of cell
@@ -623,69 +929,78 @@ public class Quadtree
 		 * corresponding index is already stored within the entire quadtree hierarchy.
 		 * If possible, indices are reused, otherwise a new index is created.
 		 */
-		int iNorth  = north  = root.storesVertex(vNorth ); 
-		int iEast   = east   = root.storesVertex(vEast  ); 
-		int iSouth  = south  = root.storesVertex(vSouth ); 
-		int iWest   = west   = root.storesVertex(vWest  ); 
-		int iCentre = centre = root.storesVertex(vCentre); 
-		
-		if(iNorth  == -1) { north  = vertices.size(); vertices.add(vNorth ); vBuffer.put(vNorth ); }
-		if(iEast   == -1) { east   = vertices.size(); vertices.add(vEast  ); vBuffer.put(vEast  ); }
-		if(iSouth  == -1) { south  = vertices.size(); vertices.add(vSouth ); vBuffer.put(vSouth ); }
-		if(iWest   == -1) { west   = vertices.size(); vertices.add(vWest  ); vBuffer.put(vWest  ); }
-		if(iCentre == -1) { centre = vertices.size(); vertices.add(vCentre); vBuffer.put(vCentre); }
-		
-		// set default color to white so that final color is sampled using the texture
-		if(iNorth  == -1) { colors.add(RGB.WHITE_3F); cBuffer.put(RGB.WHITE_3F); }
-		if(iEast   == -1) { colors.add(RGB.WHITE_3F); cBuffer.put(RGB.WHITE_3F); }
-		if(iSouth  == -1) { colors.add(RGB.WHITE_3F); cBuffer.put(RGB.WHITE_3F); }
-		if(iWest   == -1) { colors.add(RGB.WHITE_3F); cBuffer.put(RGB.WHITE_3F); }
-		if(iCentre == -1) { colors.add(RGB.WHITE_3F); cBuffer.put(RGB.WHITE_3F); }
-		
-		// record original heights for use in color and deformation calculations 
-		if(iNorth  == -1) { heights.add(vNorth [1]); }
-		if(iEast   == -1) { heights.add(vEast  [1]); }
-		if(iSouth  == -1) { heights.add(vSouth [1]); }
-		if(iWest   == -1) { heights.add(vWest  [1]); }
-		if(iCentre == -1) { heights.add(vCentre[1]); }
+		int iNorth  = north  = indexOf(vNorth ); 
+		int iEast   = east   = indexOf(vEast  ); 
+		int iSouth  = south  = indexOf(vSouth ); 
+		int iWest   = west   = indexOf(vWest  ); 
+		int iCentre = centre = indexOf(vCentre); 
+		
+		/*
+		 * Adding a vertex to the store also records its original height for use in color
+		 * and deformation calculations, and sets its default color to white so that the
+		 * final color is sampled using the texture
+		 */
+		if(iNorth  == -1) north  = addVertex(vNorth );
+		if(iEast   == -1) east   = addVertex(vEast  );
+		if(iSouth  == -1) south  = addVertex(vSouth );
+		if(iWest   == -1) west   = addVertex(vWest  );
+		if(iCentre == -1) centre = addVertex(vCentre);
 
 		if(enableTexture)
 		{
-			float _s = texCoords.get(indices[3])[0];
-			float _t = texCoords.get(indices[3])[1];
-			float s_ = texCoords.get(indices[1])[0];
-			float t_ = texCoords.get(indices[1])[1];
+			float _s = store.getS(indices[3]);
+			float _t = store.getT(indices[3]);
+			float s_ = store.getS(indices[1]);
+			float t_ = store.getT(indices[1]);
 			
 			float _s_ = (_s + s_) / 2;
 			float _t_ = (_t + t_) / 2;
 			
 			// if an index was invalid, a new texture coordinate must also be added 
-			float[] tNorth  = {_s_, _t }; if(iNorth  == -1) { texCoords.add(tNorth ); tBuffer.put(tNorth ); };
-			float[] tEast   = { s_, _t_}; if(iEast   == -1) { texCoords.add(tEast  ); tBuffer.put(tEast  ); };
-			float[] tSouth  = {_s_,  t_}; if(iSouth  == -1) { texCoords.add(tSouth ); tBuffer.put(tSouth ); };
-			float[] tWest   = {_s , _t_}; if(iWest   == -1) { texCoords.add(tWest  ); tBuffer.put(tWest  ); };
-			float[] tCentre = {_s_, _t_}; if(iCentre == -1) { texCoords.add(tCentre); tBuffer.put(tCentre); };
+			if(iNorth  == -1) store.setTexCoord(north , _s_, _t );
+			if(iEast   == -1) store.setTexCoord(east  ,  s_, _t_);
+			if(iSouth  == -1) store.setTexCoord(south , _s_,  t_);
+			if(iWest   == -1) store.setTexCoord(west  , _s , _t_);
+			if(iCentre == -1) store.setTexCoord(centre, _s_, _t_);
 		}
 
 		// set children nodes; indices supplied with counter-clockwise winding starting at the bottom-left corner
-		north_west = new Quadtree(root, lod + 1, new int[] {west, centre, north, indices[3]}, enableTexture);
-		north_east = new Quadtree(root, lod + 1, new int[] {centre, east, indices[2], north}, enableTexture);
-		south_west = new Quadtree(root, lod + 1, new int[] {indices[0], south, centre, west}, enableTexture);
-		south_east = new Quadtree(root, lod + 1, new int[] {south, indices[1], east, centre}, enableTexture);
+		Quadtree nw = new Quadtree(root, lod + 1, new int[] {west, centre, north, indices[3]}, enableTexture);
+		Quadtree ne = new Quadtree(root, lod + 1, new int[] {centre, east, indices[2], north}, enableTexture);
+		Quadtree sw = new Quadtree(root, lod + 1, new int[] {indices[0], south, centre, west}, enableTexture);
+		Quadtree se = new Quadtree(root, lod + 1, new int[] {south, indices[1], east, centre}, enableTexture);
+		
+		int half = 1 << (MAXIMUM_LOD - lod - 1);
+		
+		// the children and the grid are changed together, so that the simulation never samples a partial cell
+		synchronized(root)
+		{
+			north_west = nw;
+			north_east = ne;
+			south_west = sw;
+			south_east = se;
+			
+			north_west.setPosition(this, column       , row       );
+			north_east.setPosition(this, column + half, row       );
+			south_west.setPosition(this, column       , row + half);
+			south_east.setPosition(this, column + half, row + half);
+		}
+		
+		invalidateError();
 		
-		float[] nNorth  = getNormal(north ); if(iNorth  == -1) { normals.add(nNorth ); nBuffer.put(nNorth ); };
-		float[] nEast   = getNormal(east  ); if(iEast   == -1) { normals.add(nEast  ); nBuffer.put(nEast  ); };
-		float[] nSouth  = getNormal(south ); if(iSouth  == -1) { normals.add(nSouth ); nBuffer.put(nSouth ); };
-		float[] nWest   = getNormal(west  ); if(iWest   == -1) { normals.add(nWest  ); nBuffer.put(nWest  ); };
-		float[] nCentre = getNormal(centre); if(iCentre == -1) { normals.add(nCentre); nBuffer.put(nCentre); };
+		if(iNorth  == -1) store.setNormal(north , getNormal(north ));
+		if(iEast   == -1) store.setNormal(east  , getNormal(east  ));
+		if(iSouth  == -1) store.setNormal(south , getNormal(south ));
+		if(iWest   == -1) store.setNormal(west  , getNormal(west  ));
+		if(iCentre == -1) store.setNormal(centre, getNormal(centre));
 		
 		if(enableTexture)
 		{
-			float[] aNorth  = getTangent(north ); if(iNorth  == -1) { tangents.add(aNorth ); aBuffer.put(aNorth ); };
-			float[] aEast   = getTangent(east  ); if(iEast   == -1) { tangents.add(aEast  ); aBuffer.put(aEast  ); };
-			float[] aSouth  = getTangent(south ); if(iSouth  == -1) { tangents.add(aSouth ); aBuffer.put(aSouth ); };
-			float[] aWest   = getTangent(west  ); if(iWest   == -1) { tangents.add(aWest  ); aBuffer.put(aWest  ); };
-			float[] aCentre = getTangent(centre); if(iCentre == -1) { tangents.add(aCentre); aBuffer.put(aCentre); };
+			if(iNorth  == -1) store.setTangent(north , getTangent(north ));
+			if(iEast   == -1) store.setTangent(east  , getTangent(east  ));
+			if(iSouth  == -1) store.setTangent(south , getTangent(south ));
+			if(iWest   == -1) store.setTangent(west  , getTangent(west  ));
+			if(iCentre == -1) store.setTangent(centre, getTangent(centre));
 		}
 		
 		if(lod < root.detail)
@@ -701,17 +1016,21 @@ public class Quadtree
 			south_east.offset = iBuffer.position(); iBuffer.put(south_east.indices);
 			
 			root.indexCount += 12; // one cell (4 indices) is replaced with four (16) 16 - 4 = 12
+			context.indicesChanged = true;
 		}
 		
+		// existing vertices may be shared with the children, which changes the surface
+		root.markPyramid(_x, _z, x_, z_);
+		
 		// subdivide was successful
 		return true;
 	}
 	
 	public float[] getNormal()
 	{	
-		float[] p1 = vertices.get(indices[0]);
-		float[] p2 = vertices.get(indices[1]);
-		float[] p3 = vertices.get(indices[3]);
+		float[] p1 = store.getVertex(indices[0]);
+		float[] p2 = store.getVertex(indices[1]);
+		float[] p3 = store.getVertex(indices[3]);
 		
 //		if(root.malleable)
 //		{
@@ -725,13 +1044,13 @@ public class Quadtree
 	
 	public float[] getTangent()
 	{
-		float[] p1 = vertices.get(indices[0]);
-		float[] p2 = vertices.get(indices[1]);
-		float[] p3 = vertices.get(indices[3]);
+		float[] p1 = store.getVertex(indices[0]);
+		float[] p2 = store.getVertex(indices[1]);
+		float[] p3 = store.getVertex(indices[3]);
 		
-		float[] t1 = texCoords.get(indices[0]);
-		float[] t2 = texCoords.get(indices[1]);
-		float[] t3 = texCoords.get(indices[3]);
+		float[] t1 = store.getTexCoord(indices[0]);
+		float[] t2 = store.getTexCoord(indices[1]);
+		float[] t3 = store.getTexCoord(indices[3]);
 		
 		return Vector.tangent(p1, p2, p3, t1, t2, t3);
 	}
@@ -814,47 +1133,586 @@ public class Quadtree
 	 * This method traverses the quadtree's hierarchy using depth-first search to the level
 	 * specified by the <code>lod</code> argument and returns a node that contains the vertex
 	 * <code>p</code>.
+	 * 
+	 * When called on the root, the leaf containing <code>p</code> is read from the cell
+	 * grid and the hierarchy is instead ascended to the level requested.
 	 */
 	public Quadtree getCell(float[] p, int lod)
 	{
-		if((isLeaf() || this.lod == lod) && pointInCell(p)) return this;
+		return getCell(p[0], p[2], lod);
+	}
+	
+	public Quadtree getCell(float x, float z, int lod)
+	{
+		if(this == root)
+		{
+			Quadtree cell = getLeaf(x, z);
+			
+			if(cell != null)
+			{
+				while(cell.lod > lod) cell = cell.parent;
+				return cell;
+			}
+		}
+		
+		if((isLeaf() || this.lod == lod) && pointInCell(x, z)) return this;
 		
-		if(north_west != null && north_west.pointInCell(p)) return north_west.getCell(p, lod);
-		if(north_east != null && north_east.pointInCell(p)) return north_east.getCell(p, lod);
-		if(south_west != null && south_west.pointInCell(p)) return south_west.getCell(p, lod);
-		if(south_east != null && south_east.pointInCell(p)) return south_east.getCell(p, lod);
+		if(north_west != null && north_west.pointInCell(x, z)) return north_west.getCell(x, z, lod);
+		if(north_east != null && north_east.pointInCell(x, z)) return north_east.getCell(x, z, lod);
+		if(south_west != null && south_west.pointInCell(x, z)) return south_west.getCell(x, z, lod);
+		if(south_east != null && south_east.pointInCell(x, z)) return south_east.getCell(x, z, lod);
 		
 		return null;
 	}
 	
-	public float getHeight(float[] p)
+	/**
+	 * Returns the leaf that contains the point (x, z) by reading the cell grid of
+	 * the root, or <code>null</code> if the point is outside of the quadtree. The
+	 * leaf is also tested directly, as a point that lies on the border of a cell may
+	 * be rounded into its neighbour, in which case <code>null</code> is returned
+	 * and the hierarchy must be searched instead.
+	 */
+	private Quadtree getLeaf(float x, float z)
 	{
-		return getHeight(p, root.malleable);
-	}
-	
-	// perform bilinear interpolate to get the height of the quadtree at a point 'p'
-	public float getHeight(float[] p, boolean malleable)
-	{	
-		float x = p[0];
-		float z = p[2];
-		
-		float x1 = vertices.get(indices[3])[0];
-		float z1 = vertices.get(indices[3])[2];
-		float x2 = vertices.get(indices[1])[0];
-		float z2 = vertices.get(indices[1])[2];
-		
-		float q11 = malleable ? vertices.get(indices[3])[1] : heights.get(indices[3]);
-		float q12 = malleable ? vertices.get(indices[0])[1] : heights.get(indices[0]);
-		float q21 = malleable ? vertices.get(indices[2])[1] : heights.get(indices[2]);
-		float q22 = malleable ? vertices.get(indices[1])[1] : heights.get(indices[1]);
-
-		float r1 = ((x2 - x) / (x2 - x1)) * q11 + ((x - x1) / (x2 - x1)) * q21;
-		float r2 = ((x2 - x) / (x2 - x1)) * q12 + ((x - x1) / (x2 - x1)) * q22;
+		// the grid may be discarded by setGrid(), so it is only read once
+		Quadtree[] grid = context.cellGrid;
+		if(grid == null) grid = createGrid();
 		
-		return r1 * ((z2 -  z) / (z2 - z1)) + r2 * ((z  - z1) / (z2 - z1));
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		
+		if(x < _x || z < _z) return null;
+		
+		// the number of cells along each side is found from the grid read, rather than gridLOD
+		int cells = 1 << (Integer.numberOfTrailingZeros(grid.length) / 2);
+		float scale = cells / getLength();
+		
+		int column = Math.min((int) ((x - _x) * scale), cells - 1);
+		int row    = Math.min((int) ((z - _z) * scale), cells - 1);
+		
+		Quadtree cell = grid[row * cells + column];
+		
+		return cell.pointInCell(x, z) ? cell : null;
 	}
 	
-	public void getIndices(List<int[]> _indices)
+	// the grid is only as fine as the deepest leaf, so that shallow quadtrees need little memory
+	private synchronized Quadtree[] createGrid()
+	{
+		if(context.cellGrid != null) return context.cellGrid;
+		
+		context.gridLOD = getMaximumLOD();
+		
+		int cells = 1 << context.gridLOD;
+		
+		context.cellGrid = new Quadtree[cells * cells];
+		addToGrid();
+		
+		return context.cellGrid;
+	}
+	
+	private void addToGrid()
+	{
+		if(isLeaf()) setGrid(this);
+		else
+		{
+			north_west.addToGrid();
+			north_east.addToGrid();
+			south_west.addToGrid();
+			south_east.addToGrid();
+		}
+	}
+	
+	// assigns every grid cell covered by the cell passed to that cell
+	private void setGrid(Quadtree cell)
+	{
+		Quadtree[] grid = context.cellGrid;
+		if(grid == null) return;
+		
+		int gridLOD = context.gridLOD;
+		
+		// a cell finer than the grid requires a new grid, which is created when next used
+		if(cell.lod > gridLOD) { context.cellGrid = null; return; }
+		
+		int cells = 1 << gridLOD;
+		int size  = 1 << (gridLOD - cell.lod);
+		
+		int shift  = MAXIMUM_LOD - gridLOD;
+		int column = cell.column >> shift;
+		
+		for(int row = cell.row >> shift; row < (cell.row >> shift) + size; row++)
+			Arrays.fill(grid, row * cells + column, row * cells + column + size, cell);
+	}
+	
+	private void setPosition(Quadtree parent, int column, int row)
+	{
+		this.parent = parent;
+		this.column = column;
+		this.row    = row;
+		
+		setGrid(this);
+	}
+	
+	/**
+	 * This method selects the cells to be rendered from the point of view of the
+	 * camera at <code>eye</code>, replacing the global level of detail until
+	 * <code>clearView()</code> is called. Each camera (<code>id</code>) retains
+	 * its own selection and index buffer.
+	 * 
+	 * @param height - The height of the viewport in pixels.
+	 * @param fov - The vertical field of view in degrees.
+	 * @param budget - The maximum number of cells that may be selected.
+	 */
+	public QuadtreeView selectView(int id, float[] eye, int height, float fov, int budget)
+	{
+		if(context.views == null) context.views = new QuadtreeView[id + 1];
+		else if(id >= context.views.length) context.views = Arrays.copyOf(context.views, id + 1);
+		
+		if(context.views[id] == null) context.views[id] = new QuadtreeView();
+		
+		view = context.views[id];
+		view.budget = budget;
+		view.begin(eye, height, fov, ++selections);
+		
+		select(view);
+		
+		for(int i = 0; i < view.selection.size(); i++)
+		{
+			view.setOffset(i);
+			view.selection.get(i).addCell(view);
+		}
+		view.setOffset(view.selection.size());
+		
+		view.end();
+		
+		return view;
+	}
+	
+	public void clearView() { view = null; }
+	
+	public QuadtreeView getView() { return view; }
+	
+	private void select(QuadtreeView view)
+	{
+		first = view.selection.size();
+		
+		// replacing this cell with its children adds three cells to the selection
+		if(!isLeaf() && view.cells + 3 <= view.budget && isRefined(view))
+		{
+			refined = view.pass;
+			view.cells += 3;
+			
+			north_west.select(view);
+			north_east.select(view);
+			south_west.select(view);
+			south_east.select(view);
+		}
+		else view.selection.add(this);
+		
+		count = view.selection.size() - first;
+	}
+	
+	// the cell is refined if its error would be more than the tolerance once projected
+	private boolean isRefined(QuadtreeView view)
+	{
+		float error = getError();
+		if(error <= 0) return false;
+		
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		float x_ = store.getX(indices[1]);
+		float z_ = store.getZ(indices[1]);
+		
+		float y = (minimum + maximum) / 2;
+		
+		float dx = (_x + x_) / 2 - view.x;
+		float dy =  y            - view.y;
+		float dz = (_z + z_) / 2 - view.z;
+		
+		// distance from the camera to the sphere bounding the cell
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - (x_ - _x) * 0.7072f;
+		
+		if(distance <= 1) return true;
+		
+		return error * view.scale / distance > view.tolerance;
+	}
+	
+	/**
+	 * Adds the indices used to render this cell to the view. If a neighbouring
+	 * cell has been refined, the vertices along the shared edge are added to the
+	 * border of this cell to prevent cracks, and the cell is rendered as a fan of
+	 * triangles around its centre (or first corner if it has no centre). Each
+	 * triangle is rendered as a quad with a repeated vertex.
+	 */
+	private void addCell(QuadtreeView view)
+	{
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		float x_ = store.getX(indices[1]);
+		float z_ = store.getZ(indices[1]);
+		
+		float _x_ = (_x + x_) / 2;
+		float _z_ = (_z + z_) / 2;
+		
+		view.ringSize = 0;
+		
+		// corners and edges in counter-clockwise order, starting at the south-west corner
+		view.addRing(indices[0]); addEdge(view, 0, _x_, z_ + VECTOR_OFFSET);
+		view.addRing(indices[1]); addEdge(view, 1, x_ + VECTOR_OFFSET, _z_);
+		view.addRing(indices[2]); addEdge(view, 2, _x_, _z - VECTOR_OFFSET);
+		view.addRing(indices[3]); addEdge(view, 3, _x - VECTOR_OFFSET, _z_);
+		
+		int[] ring = view.ring;
+		int n = view.ringSize;
+		
+		if(n == 4) { view.addQuad(indices[0], indices[1], indices[2], indices[3]); return; }
+		
+		if(!isLeaf())
+		{
+			int centre = north_west.indices[1];
+			
+			for(int i = 0; i < n; i++) view.addQuad(centre, ring[i], ring[(i + 1) % n], centre);
+		}
+		else for(int i = 1; i < n - 1; i++) view.addQuad(ring[0], ring[i], ring[i + 1], ring[0]);
+	}
+	
+	// adds the vertices of the neighbour across the edge that passes through (x, z)
+	private void addEdge(QuadtreeView view, int edge, float x, float z)
+	{
+		Quadtree neighbour = root.getCell(x, z, lod);
+		
+		if(neighbour != null && neighbour.lod == lod) neighbour.addSide(view, edge);
+	}
+	
+	/**
+	 * Adds the vertices of the refined cells along one side of this cell in the
+	 * order required by the neighbour across that side: the south edge of a cell
+	 * meets the north side of its neighbour, which is added from west to east, and
+	 * so on counter-clockwise.
+	 */
+	private void addSide(QuadtreeView view, int edge)
+	{
+		if(refined != view.pass) return;
+		
+		switch(edge)
+		{
+			case 0: north_west.addSide(view, edge); view.addRing(north_west.indices[2]); north_east.addSide(view, edge); break; // north
+			case 1: south_west.addSide(view, edge); view.addRing(north_west.indices[0]); north_west.addSide(view, edge); break; // west
+			case 2: south_east.addSide(view, edge); view.addRing(south_west.indices[1]); south_west.addSide(view, edge); break; // south
+			case 3: north_east.addSide(view, edge); view.addRing(north_east.indices[1]); south_east.addSide(view, edge); break; // east
+		}
+	}
+	
+	/**
+	 * Returns the maximum vertical distance between the vertices introduced by
+	 * subdividing this cell (or any of its descendants) and the surface of the
+	 * cell itself. The error is cached until the heights or the structure of the
+	 * cell are changed.
+	 */
+	private float getError()
+	{
+		if(error >= 0) return error;
+		
+		float sw = store.getRenderedY(indices[0]);
+		float se = store.getRenderedY(indices[1]);
+		float ne = store.getRenderedY(indices[2]);
+		float nw = store.getRenderedY(indices[3]);
+		
+		if(isLeaf())
+		{
+			minimum = Math.min(Math.min(sw, se), Math.min(ne, nw));
+			maximum = Math.max(Math.max(sw, se), Math.max(ne, nw));
+			
+			return error = 0;
+		}
+		
+		float e = 0;
+		
+		e = Math.max(e, Math.abs(store.getRenderedY(north_west.indices[2]) - (nw + ne) / 2)); // north
+		e = Math.max(e, Math.abs(store.getRenderedY(north_east.indices[1]) - (ne + se) / 2)); // east
+		e = Math.max(e, Math.abs(store.getRenderedY(south_west.indices[1]) - (sw + se) / 2)); // south
+		e = Math.max(e, Math.abs(store.getRenderedY(north_west.indices[0]) - (nw + sw) / 2)); // west
+		e = Math.max(e, Math.abs(store.getRenderedY(north_west.indices[1]) - (nw + ne + se + sw) / 4)); // centre
+		
+		e = Math.max(e, north_west.getError());
+		e = Math.max(e, north_east.getError());
+		e = Math.max(e, south_west.getError());
+		e = Math.max(e, south_east.getError());
+		
+		minimum = Math.min(Math.min(north_west.minimum, north_east.minimum), Math.min(south_west.minimum, south_east.minimum));
+		maximum = Math.max(Math.max(north_west.maximum, north_east.maximum), Math.max(south_west.maximum, south_east.maximum));
+		
+		return error = e;
+	}
+	
+	// the error of a cell is only valid if the errors of its descendants are
+	private void invalidateError()
+	{
+		for(Quadtree cell = this; cell != null && cell.error >= 0; cell = cell.parent) cell.error = -1;
+	}
+	
+	private void clearErrors()
+	{
+		error = -1;
+		
+		if(!isLeaf())
+		{
+			north_west.clearErrors();
+			north_east.clearErrors();
+			south_west.clearErrors();
+			south_east.clearErrors();
+		}
+	}
+	
+	/**
+	 * This method samples the height of the surface at a number of points in a
+	 * single pass. The horizontal coordinates of the points are packed into the
+	 * arrays <code>x</code> and <code>z</code>, and the height of each point is
+	 * written to the same index of the array <code>heights</code>; a height of 0
+	 * is written for points outside of the quadtree.
+	 * 
+	 * Neighbouring samples usually fall within the same cell, so the corners of the
+	 * cell found for the previous sample are kept in local variables and tested
+	 * before the hierarchy is searched again. The interpolation is the same as that
+	 * of <code>getHeight()</code>, so the results are identical.
+	 */
+	public void getHeights(float[] x, float[] z, float[] heights, int count, int lod)
+	{
+		// the cells may be subdivided or decimated by the GL thread while they are sampled
+		synchronized(root) { sampleHeights(x, z, heights, count, lod); }
+	}
+	
+	private void sampleHeights(float[] x, float[] z, float[] heights, int count, int lod)
+	{
+		boolean malleable = root.malleable;
+		
+		Quadtree cell = null;
+		
+		float x1 = 0, z1 = 0, x2 = -1, z2 = -1;
+		float q11 = 0, q12 = 0, q21 = 0, q22 = 0;
+		
+		for(int i = 0; i < count; i++)
+		{
+			float _x = x[i];
+			float _z = z[i];
+			
+			if(cell == null || _x < x1 || _x > x2 || _z < z1 || _z > z2)
+			{
+				cell = getCell(_x, _z, lod);
+				
+				if(cell == null) { heights[i] = 0; continue; }
+				
+				int[] corners = cell.indices;
+				
+				x1 = store.getX(corners[3]); z1 = store.getZ(corners[3]);
+				x2 = store.getX(corners[1]); z2 = store.getZ(corners[1]);
+				
+				q11 = malleable ? store.getY(corners[3]) : store.getHeight(corners[3]);
+				q12 = malleable ? store.getY(corners[0]) : store.getHeight(corners[0]);
+				q21 = malleable ? store.getY(corners[2]) : store.getHeight(corners[2]);
+				q22 = malleable ? store.getY(corners[1]) : store.getHeight(corners[1]);
+			}
+			
+			float r1 = ((x2 - _x) / (x2 - x1)) * q11 + ((_x - x1) / (x2 - x1)) * q21;
+			float r2 = ((x2 - _x) / (x2 - x1)) * q12 + ((_x - x1) / (x2 - x1)) * q22;
+			
+			heights[i] = r1 * ((z2 - _z) / (z2 - z1)) + r2 * ((_z - z1) / (z2 - z1));
+		}
+	}
+	
+	public void getHeights(float[] x, float[] z, float[] heights, int lod)
+	{
+		getHeights(x, z, heights, x.length, lod);
+	}
+	
+	public float getHeight(float[] p)
+	{
+		return getHeight(p, root.malleable);
+	}
+	
+	public float getHeight(float[] p, boolean malleable)
+	{
+		return getHeight(p[0], p[2], malleable);
+	}
+	
+	// perform bilinear interpolate to get the height of the quadtree at a point (x, z)
+	public float getHeight(float x, float z, boolean malleable)
+	{	
+		float x1 = store.getX(indices[3]);
+		float z1 = store.getZ(indices[3]);
+		float x2 = store.getX(indices[1]);
+		float z2 = store.getZ(indices[1]);
+		
+		float q11 = malleable ? store.getY(indices[3]) : store.getHeight(indices[3]);
+		float q12 = malleable ? store.getY(indices[0]) : store.getHeight(indices[0]);
+		float q21 = malleable ? store.getY(indices[2]) : store.getHeight(indices[2]);
+		float q22 = malleable ? store.getY(indices[1]) : store.getHeight(indices[1]);
+
+		float r1 = ((x2 - x) / (x2 - x1)) * q11 + ((x - x1) / (x2 - x1)) * q21;
+		float r2 = ((x2 - x) / (x2 - x1)) * q12 + ((x - x1) / (x2 - x1)) * q22;
+		
+		return r1 * ((z2 -  z) / (z2 - z1)) + r2 * ((z  - z1) / (z2 - z1));
+	}
+	
+	/**
+	 * Returns the height pyramid of the surface sampled by <code>getHeights()</code>
+	 * at the current detail, building it if necessary. The finest level of the
+	 * pyramid divides the root into cells at <code>PYRAMID_LOD</code>.
+	 */
+	public synchronized HeightPyramid getPyramid()
+	{
+		if(root != this) return root.getPyramid();
+		
+		if(context.pyramid == null || context.pyramidDetail != detail || context.pyramidMalleable != malleable)
+		{
+			int cells = 1 << PYRAMID_LOD;
+			float length = getLength() / cells;
+			
+			context.pyramid = new HeightPyramid(store.getX(indices[3]), store.getZ(indices[3]), length, length, cells, cells);
+			context.pyramidDetail = detail;
+			context.pyramidMalleable = malleable;
+			
+			if(context.pyramidBounds == null)
+			{
+				context.pyramidBounds = new float[3];
+				context.pyramidDirty  = new int[4];
+			}
+			
+			updatePyramid(0, 0, cells - 1, cells - 1);
+			context.pyramidDirty[0] = 0; context.pyramidDirty[2] = -1;
+		}
+		else if(context.pyramidDirty[0] <= context.pyramidDirty[2])
+		{
+			updatePyramid(context.pyramidDirty[0], context.pyramidDirty[1], context.pyramidDirty[2], context.pyramidDirty[3]);
+			context.pyramidDirty[0] = 0; context.pyramidDirty[2] = -1;
+		}
+		
+		return context.pyramid;
+	}
+	
+	// discards the bounds and the lighting found from the heights, all of which have been replaced
+	private void replaceHeights()
+	{
+		resample();
+		if(context.journal != null) context.journal.clear();
+	}
+	
+	private void resample()
+	{
+		synchronized(this) { context.pyramid = null; }
+		if(context.lightMap != null) context.lightMap.invalidate();
+	}
+	
+	// the light map is baked again around the region changed by the last deformation
+	private void markLightMap()
+	{
+		float[] bounds = context.strokeBounds;
+		
+		if(context.lightMap != null && bounds[0] <= bounds[2])
+			context.lightMap.invalidate(bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+	
+	// adds the cells of the pyramid that overlap the region [x0, x1] x [z0, z1] to the dirty region
+	private synchronized void markPyramid(float x0, float z0, float x1, float z1)
+	{
+		if(root != this) { root.markPyramid(x0, z0, x1, z1); return; }
+		if(context.pyramid == null) return;
+		
+		// cells that only share an edge with the region are included, as the vertices along it may have moved
+		int i0 = context.pyramid.getColumn(x0 - EPSILON), j0 = context.pyramid.getRow(z0 - EPSILON);
+		int i1 = context.pyramid.getColumn(x1 + EPSILON), j1 = context.pyramid.getRow(z1 + EPSILON);
+		
+		if(context.pyramidDirty[0] > context.pyramidDirty[2])
+		{
+			context.pyramidDirty[0] = i0; context.pyramidDirty[1] = j0;
+			context.pyramidDirty[2] = i1; context.pyramidDirty[3] = j1;
+		}
+		else
+		{
+			context.pyramidDirty[0] = Math.min(context.pyramidDirty[0], i0); context.pyramidDirty[1] = Math.min(context.pyramidDirty[1], j0);
+			context.pyramidDirty[2] = Math.max(context.pyramidDirty[2], i1); context.pyramidDirty[3] = Math.max(context.pyramidDirty[3], j1);
+		}
+	}
+	
+	/**
+	 * Recalculates the cells [i0, i1] x [j0, j1] at the finest level of the
+	 * pyramid. A cell covered by a single sampled cell of the quadtree is bounded
+	 * exactly by the heights at its corners, as the surface is bilinear within it,
+	 * while a cell that is divided further is bounded by the heights of the
+	 * vertices beneath it.
+	 */
+	private void updatePyramid(int i0, int j0, int i1, int j1)
+	{
+		int lod = Math.min(PYRAMID_LOD, detail);
+		
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
+		
+		float length = getLength() / (1 << PYRAMID_LOD);
+		
+		for(int i = i0; i <= i1; i++)
+		{
+			for(int j = j0; j <= j1; j++)
+			{
+				float x0 = _x + i * length, x1 = x0 + length;
+				float z0 = _z + j * length, z1 = z0 + length;
+				
+				Quadtree cell = getCell(x0 + length / 2, z0 + length / 2, lod);
+				
+				float[] bounds = context.pyramidBounds;
+				
+				if(cell.lod < PYRAMID_LOD || cell.isLeaf() || cell.lod == detail)
+				{
+					float h00 = cell.getHeight(x0, z0, malleable), h10 = cell.getHeight(x1, z0, malleable);
+					float h01 = cell.getHeight(x0, z1, malleable), h11 = cell.getHeight(x1, z1, malleable);
+					
+					bounds[0] = Math.min(Math.min(h00, h10), Math.min(h01, h11));
+					bounds[1] = Math.max(Math.max(h00, h10), Math.max(h01, h11));
+					bounds[2] = (h00 + h10 + h01 + h11) / 4;
+				}
+				else
+				{
+					bounds[0] =  Float.MAX_VALUE;
+					bounds[1] = -Float.MAX_VALUE;
+					bounds[2] = 0;
+					
+					cell.addBounds(bounds, 1);
+				}
+				
+				context.pyramid.setCell(i, j, bounds[0], bounds[1], bounds[2]);
+			}
+		}
+		
+		context.pyramid.update(i0, j0, i1, j1);
+	}
+	
+	// accumulates the range and average of the sampled cells beneath this cell, weighted by area
+	private void addBounds(float[] bounds, float weight)
+	{
+		if(isLeaf() || lod == root.detail)
+		{
+			float sw = getSampledY(indices[0]), se = getSampledY(indices[1]);
+			float ne = getSampledY(indices[2]), nw = getSampledY(indices[3]);
+			
+			bounds[0] = Math.min(bounds[0], Math.min(Math.min(sw, se), Math.min(ne, nw)));
+			bounds[1] = Math.max(bounds[1], Math.max(Math.max(sw, se), Math.max(ne, nw)));
+			bounds[2] += (sw + se + ne + nw) / 4 * weight;
+		}
+		else
+		{
+			north_west.addBounds(bounds, weight / 4);
+			north_east.addBounds(bounds, weight / 4);
+			south_west.addBounds(bounds, weight / 4);
+			south_east.addBounds(bounds, weight / 4);
+		}
+	}
+	
+	// the height of a vertex as sampled by getHeights()
+	private float getSampledY(int i)
+	{
+		return root.malleable ? store.getY(i) : store.getHeight(i);
+	}
+	
+	public void getIndices(List<int[]> _indices)
 	{
 		if(isLeaf()) _indices.add(indices);
 		else
@@ -888,8 +1746,8 @@ public class Quadtree
 		
 		int x, z;
 		
-		float _x = vertices.get(root.indices[3])[0]; // left-most x-coordinate
-		float _z = vertices.get(root.indices[3])[2]; // bottom-most z-coordinate
+		float _x = store.getX(root.indices[3]); // left-most x-coordinate
+		float _z = store.getZ(root.indices[3]); // bottom-most z-coordinate
 		
 		float length = root.getLength();
 		
@@ -910,26 +1768,155 @@ public class Quadtree
 	
 	public void setHeights(Quadtree tree)
 	{
-		int position = vBuffer.position();
-		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] vertex = vertices.get(i);
+			float[] vertex = store.getVertex(i);
 			
 			Quadtree cell = tree.getCell(vertex, getMaximumLOD());
-			vertex[1] = cell.getHeight(vertex, true);
+			float h = cell.getHeight(vertex, true);
 			
-			vBuffer.position(i * 3 + 1); vBuffer.put(vertex[1]);
-			
-			heights.set(i, vertex[1]);
+			store.setY(i, h);
+			store.setHeight(i, h);
 		}
 		
-		vBuffer.position(position);
+		clearErrors();
+		root.replaceHeights();
 	}
 
+	/**
+	 * Sets the heights of the quadtree by sampling a height field that covers the
+	 * root cell, surrounded by <code>border</code> additional samples on every side
+	 * (at least one, from which the normals along the edges are found). The normals
+	 * are found from the height field rather than the cells, so that quadtrees that
+	 * share an edge of the same field are shaded without a seam.
+	 */
+	public void setHeights(float[][] heights, int border)
+	{
+		float _x = store.getX(root.indices[3]);
+		float _z = store.getZ(root.indices[3]);
+		
+		int samples = heights.length - 1 - border * 2;
+		float spacing = root.getLength() / samples;
+		
+		for(int i = 0; i < store.size(); i++)
+		{
+			float u = (store.getX(i) - _x) / spacing + border;
+			float v = (store.getZ(i) - _z) / spacing + border;
+			
+			int a = Math.max(1, Math.min((int) u, heights.length    - 2));
+			int b = Math.max(1, Math.min((int) v, heights[0].length - 2));
+			
+			float s = u - a;
+			float t = v - b;
+			
+			float h = (1 - s) * ((1 - t) * heights[a][b    ] + t * heights[a    ][b + 1])
+					+      s  * ((1 - t) * heights[a + 1][b] + t * heights[a + 1][b + 1]);
+			
+			store.setY(i, h);
+			store.setHeight(i, h);
+			
+			float dx = (heights[a + 1][b] - heights[a - 1][b]) / (spacing * 2);
+			float dz = (heights[a][b + 1] - heights[a][b - 1]) / (spacing * 2);
+			
+			store.setNormal(i, Vector.normalize(new float[] {-dx, 1, -dz}));
+		}
+		
+		resetTangent();
+		clearErrors();
+		root.replaceHeights();
+	}
+	
 	public void setHeights()
 	{
-		for(int i = 0; i < vertices.size(); i++) heights.set(i, vertices.get(i)[1]);
+		for(int i = 0; i < store.size(); i++) store.setHeight(i, store.getY(i));
+		
+		// a malleable surface is sampled from the vertices, which are unchanged
+		if(!root.malleable) root.resample();
+		if(context.journal != null) context.journal.commit();
+	}
+	
+	/**
+	 * Copies the vertical position and the height of every vertex to the arrays
+	 * <code>ys</code> and <code>heights</code>, returning the number of vertices.
+	 */
+	int copyHeights(float[] ys, float[] heights)
+	{
+		for(int i = 0; i < store.size(); i++)
+		{
+			ys     [i] = store.getY(i);
+			heights[i] = store.getHeight(i);
+		}
+		
+		return store.size();
+	}
+	
+	/**
+	 * Restores the vertical positions and heights of the first <code>count</code>
+	 * vertices, as copied by <code>copyHeights()</code>. Any vertex added since
+	 * is placed on the surface of the smallest cell whose corners were restored,
+	 * where the surface was before it was added. Only the vertices that move are
+	 * updated, together with the surface around them.
+	 */
+	void restoreHeights(float[] ys, float[] heights, int count)
+	{
+		BitSet displaced = clearStroke();
+		boolean replaced = false;
+		
+		for(int i = 0; i < store.size(); i++)
+		{
+			float y, height;
+			
+			if(i < count)
+			{
+				y = ys[i];
+				height = heights[i];
+			}
+			else
+			{
+				float x = store.getX(i);
+				float z = store.getZ(i);
+				
+				Quadtree cell = getCell(x, z, MAXIMUM_LOD);
+				if(cell == null) continue;
+				
+				while(cell.parent != null && (cell.indices[0] >= count || cell.indices[1] >= count ||
+				                              cell.indices[2] >= count || cell.indices[3] >= count)) cell = cell.parent;
+				
+				y = cell.interpolate(x, z, ys);
+				height = cell.interpolate(x, z, heights);
+			}
+			
+			if(height != store.getHeight(i)) { store.setHeight(i, height); replaced = true; }
+			else if(y == store.getY(i)) continue;
+			
+			updateBuffers(i, y);
+			if(y >= height) store.setColor(i, RGB.WHITE_3F);
+			
+			displaced.set(i);
+		}
+		
+		updateSurface(displaced);
+		
+		float[] bounds = context.strokeBounds;
+		if(bounds[0] <= bounds[2]) markPyramid(bounds[0], bounds[1], bounds[2], bounds[3]);
+		markLightMap();
+		
+		// a surface that is not malleable is sampled from the heights
+		if(replaced && !root.malleable) root.resample();
+	}
+	
+	// interpolates the values of the corners of the cell at the point (x, z), as getHeight() does
+	private float interpolate(float x, float z, float[] values)
+	{
+		float x1 = store.getX(indices[3]);
+		float z1 = store.getZ(indices[3]);
+		float x2 = store.getX(indices[1]);
+		float z2 = store.getZ(indices[1]);
+		
+		float r1 = ((x2 - x) / (x2 - x1)) * values[indices[3]] + ((x - x1) / (x2 - x1)) * values[indices[2]];
+		float r2 = ((x2 - x) / (x2 - x1)) * values[indices[0]] + ((x - x1) / (x2 - x1)) * values[indices[1]];
+		
+		return r1 * ((z2 -  z) / (z2 - z1)) + r2 * ((z  - z1) / (z2 - z1));
 	}
 	
 	/**
@@ -939,12 +1926,12 @@ public class Quadtree
 	 */
 	public float[] getVerticalRange()
 	{
-		float min = vertices.get(0)[1];
+		float min = store.getY(0);
 		float max = min;
 		
-		for(float[] vertex : vertices)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float h = vertex[1];
+			float h = store.getY(i);
 			
 			if(h < min) min = h;
 			if(h > max) max = h; 
@@ -955,21 +1942,14 @@ public class Quadtree
 	
 	public void resetHeights()
 	{
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] vertex = vertices.get(i);
-			vertex[1] = heights.get(i);
-			
-			colors.set(i, RGB.WHITE_3F);
-			
-			int position = vBuffer.position();
-				
-			vBuffer.position(i * 3 + 1); vBuffer.put(vertex[1]);
-			vBuffer.position(position);
-				
-			cBuffer.position(i * 3); cBuffer.put(RGB.WHITE_3F);
-			cBuffer.position(position);
+			store.setY(i, store.getHeight(i));
+			store.setColor(i, RGB.WHITE_3F);
 		}
+		
+		root.clearErrors();
+		root.replaceHeights();
 	}
 	
 	public Set<Integer> getIndices(float[][] vertices)
@@ -1029,85 +2009,218 @@ public class Quadtree
 	{		
 		long start = System.nanoTime();
 		
-		for(int i = 0; i < vertices.size(); i++)
-			deformVertex(i, p, radius, peak);
+		DeformationJournal journal = context.journal;
+		
+		if(journal != null && journal.record(DeformationJournal.DEFORM_ALL, p, radius, peak, falloff, elasticity))
+		{
+			p = journal.getPoint(); radius = journal.getRadius(); peak = journal.getPeak();
+		}
+		
+		BitSet displaced = beginStroke(p, radius, peak);
+		
+		for(int i = 0; i < store.size(); i++)
+			if(displaceVertex(i, p, radius, peak)) displaced.set(i);
+		
+		updateSurface(displaced);
+		markPyramid(p[0] - radius, p[2] - radius, p[0] + radius, p[2] + radius);
+		markLightMap();
 		
 		return System.nanoTime() - start;
 	}
 	
 	public void deformVertex(int i, float[] p, float radius, float peak)
+	{
+		BitSet displaced = beginStroke(p, radius, peak);
+		
+		if(displaceVertex(i, p, radius, peak)) displaced.set(i);
+		
+		updateSurface(displaced);
+		markPyramid(p[0] - radius, p[2] - radius, p[0] + radius, p[2] + radius);
+		markLightMap();
+	}
+	
+	/**
+	 * Moves the vertex at index <code>i</code> according to the current fall-off
+	 * and updates its color, but leaves the normals and tangents of the surface
+	 * unchanged; these are recalculated once per deformation by
+	 * <code>updateSurface()</code>. Returns <code>true</code> if the vertex is
+	 * within the radius of the deformation.
+	 */
+	private boolean displaceVertex(int i, float[] p, float radius, float peak)
 	{
 		if(elasticity < 0) elasticity = 0;
 		peak *= elasticity;
 		
-		float[] vertex = vertices.get(i);
-		
-		float x = Math.abs(vertex[0] - p[0]); if(x > radius) return;
-		float z = Math.abs(vertex[2] - p[2]); if(z > radius) return;
+		float x = Math.abs(store.getX(i) - p[0]); if(x > radius) return false;
+		float z = Math.abs(store.getZ(i) - p[2]); if(z > radius) return false;
 		
 		// calculate distance from vertex to centre of deformation
 		double d = Math.sqrt(x * x + z * z);
 		
-		Random generator = new Random();
-		
 		if(d <= radius)
 		{
 			// ensure the deformation will not cause cracks
 			repairCrack(i);
 			
+			float y = store.getY(i);
+			
 			switch(falloff)
 			{
-				case LINEAR: vertex[1] += peak * (1 - (d / radius)); break;
-				case SMOOTH: vertex[1] += peak * 0.5f * (Math.cos(d / radius * Math.PI) + 1); break;
-				case RANDOM: vertex[1] += peak * (-0.30f + generator.nextFloat()); break;
+				case LINEAR: y += peak * (1 - (d / radius)); break;
+				case SMOOTH: y += peak * 0.5f * (Math.cos(d / radius * Math.PI) + 1); break;
+				case RANDOM: y += peak * (-0.30f + context.brushGenerator.nextFloat()); break;
 			}
 			
-			if(vertex[1] < heights.get(i) - MAX_TROUGH)
-			   vertex[1] = heights.get(i) - MAX_TROUGH;
+			float height = store.getHeight(i);
+			
+			if(y < height - MAX_TROUGH)
+			   y = height - MAX_TROUGH;
 			
-			if(vertex[1] > MAX_HEIGHT) vertex[1] = MAX_HEIGHT;
+			if(y > MAX_HEIGHT) y = MAX_HEIGHT;
 			
-			updateBuffers(i, vertex);
+			updateBuffers(i, y);
+			
+			return true;
 		}
+		
+		return false;
 	}
 
-	private void updateBuffers(int i, float[] vertex)
+	private void updateBuffers(int i, float y)
 	{
-		int position = vBuffer.position();
+		// the rendered geometry is only altered if the surface is malleable
+		store.setY(i, y, root.malleable);
 		
-		if(root.malleable)
-		{
-			vBuffer.position(i * 3 + 1); vBuffer.put(vertex[1]);
-			vBuffer.position(position);
-		}
+		float height = store.getHeight(i);
 		
-		if(vertex[1] < heights.get(i))
+		if(y < height)
 		{
-			float[] color = gradient.interpolate((heights.get(i) - vertex[1]) / MAX_TROUGH);
-			colors.set(i, color);
-			
-			cBuffer.position(i * 3); cBuffer.put(color);
-			cBuffer.position(position);
+			float[] color = gradient.interpolate((height - y) / MAX_TROUGH);
+			store.setColor(i, color);
 		}
+	}
+	
+	/**
+	 * Recalculates the normal and tangent of every vertex on the surface of the
+	 * displaced vertices. Vertices shared by several displaced neighbours are
+	 * only recalculated once.
+	 */
+	private void updateSurface(BitSet displaced)
+	{
+		if(!root.malleable) return;
+		
+		BitSet surface = context.brushSurface;
+		surface.clear();
+		
+		Quadtree[] cells = context.surfaceCells;
+		float[] bounds = context.strokeBounds;
 		
-		if(root.malleable)
+		for(int i = displaced.nextSetBit(0); i >= 0; i = displaced.nextSetBit(i + 1))
 		{
-			Set<Integer> indices = getSurface(i);
-				
-			for(Integer index : indices)
+			for(Quadtree cell : getAdjacent(i, cells))
 			{
-				float[] normal = getNormal(index);
-				normals.set(index, normal);
-				nBuffer.position(index * 3); nBuffer.put(normal);
-				
-				float[] tangent = getTangent(index);
-				tangents.set(index, tangent);
-				aBuffer.position(index * 3); aBuffer.put(tangent);
+				if(cell != null)
+				{
+					cell.invalidateError();
+					
+					surface.set(cell.indices[0]);
+					surface.set(cell.indices[1]);
+					surface.set(cell.indices[2]);
+					surface.set(cell.indices[3]);
+					
+					bounds[0] = Math.min(bounds[0], store.getX(cell.indices[3]));
+					bounds[1] = Math.min(bounds[1], store.getZ(cell.indices[3]));
+					bounds[2] = Math.max(bounds[2], store.getX(cell.indices[1]));
+					bounds[3] = Math.max(bounds[3], store.getZ(cell.indices[1]));
+				}
 			}
-			
-			nBuffer.position(position);
-			aBuffer.position(position);
 		}
+		
+		for(int i = surface.nextSetBit(0); i >= 0; i = surface.nextSetBit(i + 1))
+			updateNormal(i, cells, context.surfaceVector);
+	}
+	
+	/**
+	 * Sets the normal and tangent of the vertex at index <code>i</code> to the
+	 * average of its neighbouring cells. The result is the same as that of
+	 * <code>getNormal(i)</code> and <code>getTangent(i)</code>, but the cells and
+	 * vector passed are used as working storage rather than creating new arrays.
+	 */
+	private void updateNormal(int i, Quadtree[] cells, float[] vector)
+	{
+		getAdjacent(i, cells);
+		
+		int count = 0;
+		
+		vector[0] = vector[1] = vector[2] = 0;
+		
+		for(Quadtree cell : cells)
+			if(cell != null) { cell.addNormal(vector); count++; }
+		
+		float k = 1.0f / count;
+		
+		vector[0] *= k; vector[1] *= k; vector[2] *= k;
+		
+		store.setNormal(i, vector);
+		
+		// tangents cannot be calculated without texture coordinates
+		if(!store.textured) return;
+		
+		vector[0] = vector[1] = vector[2] = 0;
+		
+		for(Quadtree cell : cells)
+			if(cell != null) cell.addTangent(vector);
+		
+		vector[0] *= k; vector[1] *= k; vector[2] *= k;
+		
+		float magnitude = (float) Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+		
+		vector[0] /= magnitude; vector[1] /= magnitude; vector[2] /= magnitude;
+		
+		store.setTangent(i, vector);
+	}
+	
+	// adds the normal returned by getNormal() to the vector n
+	private void addNormal(float[] n)
+	{
+		int a = indices[0], b = indices[1], c = indices[3];
+		
+		float x = store.getX(a), y = store.getY(a), z = store.getZ(a);
+		
+		float ux = store.getX(b) - x, uy = store.getY(b) - y, uz = store.getZ(b) - z;
+		float vx = store.getX(c) - x, vy = store.getY(c) - y, vz = store.getZ(c) - z;
+		
+		float nx = uy * vz - uz * vy;
+		float ny = uz * vx - ux * vz;
+		float nz = ux * vy - uy * vx;
+		
+		float magnitude = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		
+		n[0] += nx / magnitude;
+		n[1] += ny / magnitude;
+		n[2] += nz / magnitude;
+	}
+	
+	// adds the tangent returned by getTangent() to the vector t
+	private void addTangent(float[] t)
+	{
+		int a = indices[0], b = indices[1], c = indices[3];
+		
+		float x = store.getX(a), y = store.getY(a), z = store.getZ(a);
+		
+		float q1x = store.getX(b) - x, q1y = store.getY(b) - y, q1z = store.getZ(b) - z;
+		float q2x = store.getX(c) - x, q2y = store.getY(c) - y, q2z = store.getZ(c) - z;
+		
+		float s = store.getS(a), _t = store.getT(a);
+		
+		float u1s = store.getS(b) - s, u1t = store.getT(b) - _t;
+		float u2s = store.getS(c) - s, u2t = store.getT(c) - _t;
+		
+		float r = 1.0f / (u1s * u2t - u2s * u1t);
+		
+		t[0] += (u2t * q1x - u1t * q2x) * r;
+		t[1] += (u2t * q1y - u1t * q2y) * r;
+		t[2] += (u2t * q1z - u1t * q2z) * r;
 	}
 	
 	public Set<Integer> getSurface(int i)
@@ -1132,32 +2245,17 @@ public class Quadtree
 	
 	public void resetNormals()
 	{
-		int position = nBuffer.position();
-		
-		for(int i = 0; i < normals.size(); i++)
-		{	
-			float[] normal = getNormal(i);
-			
-			normals.set(i, normal);
-			nBuffer.position(i * 3); nBuffer.put(normal);
-		}
-		
-		nBuffer.position(position);
+		for(int i = 0; i < store.size(); i++)
+			store.setNormal(i, getNormal(i));
 	}
 	
 	public void resetTangent()
 	{
-		int position = aBuffer.position();
-		
-		for(int i = 0; i < tangents.size(); i++)
-		{	
-			float[] tangent = getTangent(i);
-			
-			tangents.set(i, tangent);
-			aBuffer.position(i * 3); aBuffer.put(tangent);
-		}
+		// tangents cannot be calculated without texture coordinates
+		if(!store.textured) return;
 		
-		aBuffer.position(position);
+		for(int i = 0; i < store.size(); i++)
+			store.setTangent(i, getTangent(i));
 	}
 	
 	public Set<Integer> getIndices(float[] p, float radius)
@@ -1192,73 +2290,173 @@ public class Quadtree
 		return indices;
 	}
 	
-	public long deform(float[] p, float radius, float peak)
+	/**
+	 * Sets the indices of the vertices of every cell at the maximum LOD touched by
+	 * the square brush of <code>radius</code> centred at <code>p</code>; this is
+	 * the same as <code>getIndices(p, radius)</code> without creating any objects.
+	 */
+	private void getIndices(float[] p, float radius, BitSet indices)
+	{
+		float increment = (float) (root.getLength() / Math.pow(2, MAXIMUM_LOD));
+		int steps = (int) Math.ceil((2 * radius) / increment);
+		
+		float x = p[0] + -radius;
+		float z = p[2] + -radius;
+		
+		for(int i = 0; i <= steps; i++)
+		{
+			for(int j = 0; j <= steps; j++)
+			{
+				x += increment;
+				
+				Quadtree cell = getCell(x, z, MAXIMUM_LOD);
+				if(cell == null) continue;
+				int[] _indices = cell.indices;
+				
+				indices.set(_indices[0]);
+				indices.set(_indices[1]);
+				indices.set(_indices[2]);
+				indices.set(_indices[3]);
+			}
+			
+			x = p[0] - radius;
+			z += increment;
+		}
+	}
+	
+	/**
+	 * Prepares the working storage of the root for a new stroke and returns the
+	 * (cleared) set used to record the displaced vertices. The random generator
+	 * is seeded from the stroke itself, so that repeating a stroke on the same
+	 * surface always produces the same result.
+	 */
+	private BitSet beginStroke(float[] p, float radius, float peak)
+	{
+		BitSet displaced = clearStroke();
+		
+		long seed = Float.floatToIntBits(p[0]);
+		seed = seed * 31 + Float.floatToIntBits(p[2]);
+		seed = seed * 31 + Float.floatToIntBits(radius);
+		seed = seed * 31 + Float.floatToIntBits(peak);
+		
+		context.brushGenerator.setSeed(seed);
+		
+		return displaced;
+	}
+	
+	// allocates the working storage of the root if necessary and clears the displaced vertices and the changed region
+	private BitSet clearStroke()
+	{
+		if(context.brushIndices == null)
+		{
+			context.brushIndices   = new BitSet(store.capacity());
+			context.brushDisplaced = new BitSet(store.capacity());
+			context.brushSurface   = new BitSet(store.capacity());
+			context.brushGenerator = new Random();
+			
+			context.surfaceCells  = new Quadtree[4];
+			context.surfaceVector = new float[3];
+			context.strokeBounds  = new float[4];
+		}
+		
+		context.brushDisplaced.clear();
+		
+		float[] bounds = context.strokeBounds;
+		bounds[0] = bounds[1] =  Float.MAX_VALUE;
+		bounds[2] = bounds[3] = -Float.MAX_VALUE;
+		
+		return context.brushDisplaced;
+	}
+	
+	public long deform(float[] p, float radius, float peak) { return deform(p, radius, peak, true); }
+	
+	/**
+	 * Deforms the surface around the point <code>p</code>, recording the stroke
+	 * in the journal only if <code>record</code> is <code>true</code>.
+	 */
+	public long deform(float[] p, float radius, float peak, boolean record)
 	{		
 		long start = System.nanoTime();
 		
-		int size = vertices.size();
+		DeformationJournal journal = record ? context.journal : null;
 		
-		Set<Integer> indices = getIndices(p, radius);
+		// the stroke is applied as it is recorded, so that replaying it is exact
+		if(journal != null && journal.record(DeformationJournal.DEFORM, p, radius, peak, falloff, elasticity))
+		{
+			p = journal.getPoint(); radius = journal.getRadius(); peak = journal.getPeak();
+		}
+		
+		int size = store.size();
+		
+		BitSet displaced = beginStroke(p, radius, peak);
 		
-		for(int i : indices)
-			deformVertex(i, p, radius, peak);
+		BitSet indices = context.brushIndices;
+		indices.clear();
 		
-		while(vertices.size() - size > 0)
+		getIndices(p, radius, indices);
+		
+		for(int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1))
+			if(displaceVertex(i, p, radius, peak)) displaced.set(i);
+		
+		// vertices added while repairing cracks must also be displaced
+		while(store.size() - size > 0)
 		{
-			size = vertices.size();
+			int first = size;
+			size = store.size();
 			
-			for(int i = size; i < vertices.size(); i++)
-				deformVertex(i, p, radius, peak);
+			for(int i = first; i < size; i++)
+				if(displaceVertex(i, p, radius, peak)) displaced.set(i);
 		}
 		
+		updateSurface(displaced);
+		markPyramid(p[0] - radius, p[2] - radius, p[0] + radius, p[2] + radius);
+		markLightMap();
+		
 		return System.nanoTime() - start;
 	}
 	
+	/**
+	 * Returns the region of the surface that was changed by the last deformation
+	 * as {x0, z0, x1, z1}; this covers every cell that shares a displaced vertex.
+	 * The region is empty (x0 > x1) if no vertex of a malleable surface was moved,
+	 * and <code>null</code> is returned if the surface has never been deformed.
+	 */
+	public float[] getStrokeBounds() { return context.strokeBounds; }
+	
+	public LightMap getLightMap() { return context.lightMap; }
+	
+	public void setLightMap(LightMap lightMap) { context.lightMap = lightMap; }
+	
+	public DeformationJournal getJournal() { return context.journal; }
+	
+	public void setJournal(DeformationJournal journal) { context.journal = journal; }
+	
 	public void setGradient(Gradient gradient)
 	{
 		if(gradient != null) this.gradient = gradient;
 		else gradient = this.gradient;
 		
-		int position = cBuffer.position();
-		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{	
-			float[] vertex = vertices.get(i);
-			float[] color = gradient.interpolate((heights.get(i) - vertex[1]) / MAX_TROUGH);
-				
-			cBuffer.position(i * 3); cBuffer.put(color);
-	
-			colors.set(i, color);
+			float[] color = gradient.interpolate((store.getHeight(i) - store.getY(i)) / MAX_TROUGH);
+			store.setColor(i, color);
 		}
-		
-		cBuffer.position(position);
 	}
 	
 	public void scaleTexture(float scale)
 	{
 		float length = root.getLength();
 		
-		float _x = root.vertices.get(indices[3])[0];
-		float _z = root.vertices.get(indices[3])[2];
-		
-		int position = tBuffer.position();
+		float _x = store.getX(indices[3]);
+		float _z = store.getZ(indices[3]);
 		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{	
-			float[] vertex = vertices.get(i);
+			float s = Math.abs(store.getX(i) - _x) / length;
+			float t = Math.abs(store.getZ(i) - _z) / length;
 			
-			float s = Math.abs(vertex[0] - _x) / length;
-			float t = Math.abs(vertex[2] - _z) / length;
-			
-			float[] texCoord = {s * scale, t * scale};
-				
-			tBuffer.position(i * 2);
-			tBuffer.put(texCoord);
-				
-			texCoords.set(i, texCoord);
+			store.setTexCoord(i, s * scale, t * scale);
 		}
-		
-		tBuffer.position(position);
 	}
 	
 	public int getMaximumLOD()
@@ -1286,10 +2484,15 @@ public class Quadtree
 		return width;
 	}
 	
+	// the corner of the cell with the least coordinates
+	public float getMinimumX() { return store.getX(indices[3]); }
+	
+	public float getMinimumZ() { return store.getZ(indices[3]); }
+	
 	public float getLength()
 	{
-		float _x = vertices.get(indices[3])[0];
-		float x_ = vertices.get(indices[1])[0];
+		float _x = store.getX(indices[3]);
+		float x_ = store.getX(indices[1]);
 		
 		return Math.abs(_x - x_);
 	}
@@ -1341,10 +2544,19 @@ public class Quadtree
 	
 	public void decimate()
 	{
-		north_west = null;
-		north_east = null;
-		south_west = null;
-		south_east = null;
+		synchronized(root)
+		{
+			north_west = null;
+			north_east = null;
+			south_west = null;
+			south_east = null;
+			
+			setGrid(this);
+		}
+		
+		invalidateError();
+		
+		root.markPyramid(store.getX(indices[3]), store.getZ(indices[3]), store.getX(indices[1]), store.getZ(indices[1]));
 	}
 	
 	/**
@@ -1366,12 +2578,20 @@ public class Quadtree
 	
 	public int cellCount  () { return indexCount / 4;  }
 	
-	public int vertexCount() { return vertices.size(); }
-	public int normalCount() { return normals.size();  }
+	public int vertexCount() { return store.size(); }
+	public int normalCount() { return store.size(); }
 	
 	public static float timer  = 1.0f;
 	private TimeQuery timeQuery = new TimeQuery(TimeQuery.TERRAIN_ID);
 	
+	/**
+	 * Returns the average time in nanoseconds taken by the GPU to render the
+	 * quadtree since the timer was last reset, as measured by TERRAIN_ID.
+	 */
+	public float getRenderTime() { return timeQuery.getAverage(); }
+	
+	public void resetRenderTime() { timeQuery.resetAverage(); }
+	
 	public void render(GL2 gl)
 	{
 		timeQuery.getResult(gl);
@@ -1406,6 +2626,11 @@ public class Quadtree
 					shader.setUniform(gl, "texScale", new float[] {1.0f / (Scene.canvasWidth * 12), 1.0f / (Scene.canvasHeight * 12)});
 				}
 				else shader.setUniform(gl, "enableShadow", 0);
+				
+				boolean baked = context.lightMap != null && context.lightMap.enabled && context.lightMap.isReady();
+				
+				shader.setUniform(gl, "enableLightMap", baked);
+				if(baked) context.lightMap.bind(gl, shader);
 			}
 			
 			if(enableCaustic && Shader.enabled && shader != null)
@@ -1467,35 +2692,45 @@ public class Quadtree
 		
 		if(enableBumpmap || enableCaustic) gl.glEnableVertexAttribArray(1);
 		
-		if(aBuffer == null && (enableBumpmap || enableCaustic))
-		{
-			aBuffer = Buffers.newDirectFloatBuffer(getVertexCapacity() * 3);
-			for(int i = 0; i < vertices.size(); i++) aBuffer.put(getTangent(i));
-		}
+		if(enableTexture) texture.bind(gl);
 		
-		vBuffer.flip(); // read data from start of buffer
-		nBuffer.flip();
-		cBuffer.flip();
-		tBuffer.flip();
-		iBuffer.flip();
-		aBuffer.flip();
-		
-		if((enableBumpmap || enableCaustic) && Shader.enabled)
+		if(useVBO(gl))
 		{
-			gl.glVertexAttribPointer(1, 3, GL2.GL_FLOAT, true, 0, aBuffer);
+			uploadBuffers(gl);
+			
+			if((enableBumpmap || enableCaustic) && Shader.enabled)
+			{
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[TANGENT_BUFFER]);
+				gl.glVertexAttribPointer(1, 3, GL2.GL_FLOAT, true, 0, 0);
+			}
+			
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[VERTEX_BUFFER]);
+			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, 0);
+			
+			if(enableShading ) { gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[NORMAL_BUFFER ]); gl.glNormalPointer(   GL2.GL_FLOAT, 0, 0); }
+			if(enableColoring) { gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[COLOR_BUFFER  ]); gl.glColorPointer (3, GL2.GL_FLOAT, 0, 0); }
+			if(enableTexture ) { gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[TEXTURE_BUFFER]); gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, 0); }
+			
+			drawCells(gl, true);
+			
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
 		}
-		
-		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, vBuffer);
-		if(enableShading ) gl.glNormalPointer(   GL2.GL_FLOAT, 0, nBuffer);
-		if(enableColoring) gl.glColorPointer (3, GL2.GL_FLOAT, 0, cBuffer);
-		if(enableTexture )
+		else
 		{
-			gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, tBuffer);
-			texture.bind(gl);
+			if((enableBumpmap || enableCaustic) && Shader.enabled)
+			{
+				gl.glVertexAttribPointer(1, 3, GL2.GL_FLOAT, true, 0, store.aBuffer);
+			}
+			
+			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, store.vBuffer);
+			if(enableShading ) gl.glNormalPointer(   GL2.GL_FLOAT, 0, store.nBuffer);
+			if(enableColoring) gl.glColorPointer (3, GL2.GL_FLOAT, 0, store.cBuffer);
+			if(enableTexture ) gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, store.tBuffer);
+			
+			drawCells(gl, false);
 		}
 		
-		gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, iBuffer);
-		
 		gl.glDisableClientState(GL_VERTEX_ARRAY);
 		if(enableShading ) gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
 		if(enableColoring) gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
@@ -1503,13 +2738,6 @@ public class Quadtree
 		
 		if(enableBumpmap || enableCaustic) gl.glDisableVertexAttribArray(1);
 		
-		vBuffer.position(vBuffer.limit()); vBuffer.limit(vBuffer.capacity());
-		nBuffer.position(nBuffer.limit()); nBuffer.limit(nBuffer.capacity());
-		tBuffer.position(tBuffer.limit()); tBuffer.limit(tBuffer.capacity());
-		cBuffer.position(cBuffer.limit()); cBuffer.limit(cBuffer.capacity());
-		iBuffer.position(iBuffer.limit()); iBuffer.limit(iBuffer.capacity());
-		aBuffer.position(aBuffer.limit()); aBuffer.limit(aBuffer.capacity());
-		
 		gl.glEnable(GL2.GL_LIGHTING);
 		gl.glEnable(GL2.GL_TEXTURE_2D);
 		
@@ -1536,12 +2764,29 @@ public class Quadtree
 		
 		gl.glEnableClientState(GL_VERTEX_ARRAY);
 		
-		vBuffer.flip();
-		iBuffer.flip();
-		
-		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, vBuffer);
-		
-		gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, iBuffer);
+		if(useVBO(gl))
+		{
+			uploadBuffers(gl);
+			
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, context.bufferIDs[VERTEX_BUFFER]);
+			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, 0);
+			
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, context.bufferIDs[INDEX_BUFFER]);
+			gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, 0);
+			
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+		}
+		else
+		{
+			iBuffer.flip();
+			
+			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, store.vBuffer);
+			
+			gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, iBuffer);
+			
+			iBuffer.position(iBuffer.limit()); iBuffer.limit(iBuffer.capacity());
+		}
 		
 		gl.glDisableClientState(GL_VERTEX_ARRAY);
 		
@@ -1550,9 +2795,6 @@ public class Quadtree
 		gl.glEnable (GL2.GL_TEXTURE_2D);	
 		gl.glEnable (GL2.GL_LIGHTING);
 		
-		vBuffer.position(vBuffer.limit()); vBuffer.limit(vBuffer.capacity());
-		iBuffer.position(iBuffer.limit()); iBuffer.limit(iBuffer.capacity());
-		
 		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
 	}
 	
@@ -1567,19 +2809,18 @@ public class Quadtree
 		
 		float[] range = getVerticalRange();
 		
-		FloatBuffer _colors = Buffers.newDirectFloatBuffer(colors.size() * 3);
+		FloatBuffer _colors = Buffers.newDirectFloatBuffer(store.size() * 3);
 		
-		for(float[] vertex : vertices)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] color = gradient.interpolate(1 - ((vertex[1] - range[0]) / range[2]));
+			float[] color = gradient.interpolate(1 - ((store.getY(i) - range[0]) / range[2]));
 			_colors.put(color);
 		}
 		_colors.position(0);
 		
-		vBuffer.flip();
 		iBuffer.flip();
 		
-		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, vBuffer);
+		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, store.vBuffer);
 		gl.glColorPointer (3, GL2.GL_FLOAT, 0, _colors);
 		
 		gl.glDrawElements(GL2.GL_QUADS, indexCount, GL2.GL_UNSIGNED_INT, iBuffer);
@@ -1587,7 +2828,6 @@ public class Quadtree
 		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
 		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
 		
-		vBuffer.position(vBuffer.limit()); vBuffer.limit(vBuffer.capacity());
 		iBuffer.position(iBuffer.limit()); iBuffer.limit(iBuffer.capacity());
 		
 		gl.glEnable(GL_TEXTURE_2D);	
@@ -1607,10 +2847,10 @@ public class Quadtree
 		
 		gl.glBegin(GL2.GL_LINES);
 		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] p1 = vertices.get(i);
-			float[] p2 = Vector.add(p1, Vector.multiply(normals.get(i), scale));
+			float[] p1 = store.getVertex(i);
+			float[] p2 = Vector.add(p1, Vector.multiply(store.getNormal(i), scale));
 			
 			gl.glVertex3f(p1[0], p1[1], p1[2]);
 			gl.glVertex3f(p2[0], p2[1], p2[2]);
@@ -1640,10 +2880,10 @@ public class Quadtree
 		
 		gl.glBegin(GL2.GL_LINES);
 		
-		for(int i = 0; i < vertices.size(); i++)
+		for(int i = 0; i < store.size(); i++)
 		{
-			float[] p1 = vertices.get(i);
-			float[] p2 = Vector.add(p1, Vector.multiply(tangents.get(i), scale));
+			float[] p1 = store.getVertex(i);
+			float[] p2 = Vector.add(p1, Vector.multiply(store.getTangent(i), scale));
 			
 			gl.glVertex3f(p1[0], p1[1], p1[2]);
 			gl.glVertex3f(p2[0], p2[1], p2[2]);
@@ -0,0 +1,93 @@
+package bates.jamie.graphics.entity;
+
+import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import javax.media.opengl.GLContext;
+
+import bates.jamie.graphics.util.Frustum;
+
+/**
+ * This class holds the state of a quadtree that belongs to the hierarchy as a
+ * whole rather than to any one cell. It is created by the root and shared by
+ * every cell, so that a cell only stores a reference to it rather than a copy
+ * of each field.
+ */
+class QuadtreeContext
+{
+	/*
+	 * Maps each cell at the grid's LOD to the leaf that covers it, so that a point
+	 * can be located without traversing the hierarchy. The grid is only allocated
+	 * once a cell is first looked up, and is then kept up to date as cells are
+	 * subdivided and decimated; it is discarded and created again at a finer LOD
+	 * if a cell is subdivided below the grid.
+	 *
+	 * The simulation samples the surface while the GL thread subdivides and
+	 * decimates it, so the children of a cell and the grid are only changed while
+	 * holding the lock of the root, which getHeights() also holds while sampling.
+	 */
+	Quadtree[] cellGrid;
+	int gridLOD;
+	
+	/*
+	 * Working storage used to deform the surface; this is reused by every stroke
+	 * so that deforming an already detailed region does not create any objects.
+	 */
+	BitSet brushIndices;
+	BitSet brushDisplaced;
+	BitSet brushSurface;
+	Random brushGenerator;
+	
+	Quadtree[] crackCells;
+	Quadtree[] surfaceCells;
+	float[] surfaceVector;
+	
+	// the region of the surface changed by the last stroke {x0, z0, x1, z1}, which is empty if x0 > x1
+	float[] strokeBounds;
+	
+	/*
+	 * The bounds of the surface sampled by getHeights(), created when first
+	 * requested. The cells changed by deforming, subdividing or decimating the
+	 * surface are recorded as a dirty region and only updated when the pyramid is
+	 * next requested. The pyramid is discarded whenever the heights are replaced,
+	 * or if the detail sampled or the surface sampled (malleable or not) no longer
+	 * matches that from which it was built. The pyramid is read by the simulation
+	 * while the surface is changed on the GL thread, so it is only built, updated
+	 * or discarded while holding the lock of the root.
+	 */
+	HeightPyramid pyramid;
+	int pyramidDetail;
+	boolean pyramidMalleable;
+	float[] pyramidBounds;
+	
+	// the dirty region of the pyramid {i0, j0, i1, j1}, which is empty if i0 > i1
+	int[] pyramidDirty;
+	
+	// the level of detail selected for each camera
+	QuadtreeView[] views;
+	
+	// maps the grid position of each vertex at the maximum LOD to its index
+	VertexIndex vertexIndex = new VertexIndex();
+	
+	// the lighting of the surface baked for the root, which replaces the shadow map where the surface is shadowed
+	LightMap lightMap;
+	
+	// the deformations recorded so that they can be undone and replayed
+	DeformationJournal journal;
+	
+	// created when the tree is first culled
+	Frustum frustum;
+	
+	// the indices of the cells that survive culling when no view is selected
+	IntBuffer cullBuffer;
+	int culledCount;
+	
+	// the GL context in which the availability of buffer objects was last queried
+	GLContext glContext;
+	boolean vboAvailable;
+	
+	int[] bufferIDs;
+	int bufferCapacity = 0; // the number of vertices allocated on the GPU
+	boolean indicesChanged = true;
+}
@@ -0,0 +1,211 @@
+package bates.jamie.graphics.entity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class divides the area covered by the layers of a terrain into a grid,
+ * each cell of which records the quadtrees whose extent overlaps it, so that a
+ * query at a point only samples the quadtrees that may contain it. Quadtrees
+ * used for blending are excluded when the index is built, as they are never
+ * sampled.
+ *
+ * The results are identical to sampling every layer: a layer that does not
+ * contain a point is sampled as 0, and where layers are equally high, the one
+ * that comes first is chosen. The index must be built again if the collection
+ * of quadtrees, the extent of any quadtree or the layers used for blending are
+ * changed.
+ */
+public class QuadtreeIndex
+{
+	// the greatest number of cells along each side of the grid
+	public static final int MAXIMUM_CELLS = 64;
+	
+	// the extents are expanded so that points on the border of a quadtree are never missed
+	private static final float EPSILON = 0.05f;
+	
+	private Quadtree[] layers;
+	
+	// the corner of the grid and the size of a cell
+	private float x, z;
+	private float width, depth;
+	private int columns, rows;
+	
+	// whether each layer overlaps each cell, stored cell by cell
+	private boolean[] covers;
+	
+	// the cell and candidate heights of the points being sampled
+	private int  [] cells     = new int  [0];
+	private float[] sampleX   = new float[0];
+	private float[] sampleZ   = new float[0];
+	private float[] samples   = new float[0];
+	private int  [] positions = new int  [0];
+	
+	public QuadtreeIndex(Collection<Quadtree> trees)
+	{
+		List<Quadtree> layers = new ArrayList<Quadtree>();
+		
+		for(Quadtree tree : trees)
+			if(!tree.enableBlending) layers.add(tree);
+		
+		this.layers = layers.toArray(new Quadtree[layers.size()]);
+		
+		if(this.layers.length == 0) return;
+		
+		float x0 =  Float.MAX_VALUE, z0 =  Float.MAX_VALUE;
+		float x1 = -Float.MAX_VALUE, z1 = -Float.MAX_VALUE;
+		float smallest = Float.MAX_VALUE;
+		
+		for(Quadtree tree : this.layers)
+		{
+			float length = tree.getLength();
+			
+			x0 = Math.min(x0, tree.getMinimumX()); x1 = Math.max(x1, tree.getMinimumX() + length);
+			z0 = Math.min(z0, tree.getMinimumZ()); z1 = Math.max(z1, tree.getMinimumZ() + length);
+			
+			smallest = Math.min(smallest, length);
+		}
+		
+		x = x0 - EPSILON;
+		z = z0 - EPSILON;
+		
+		// the smallest layer is divided into at least two cells along each side
+		columns = Math.max(1, Math.min((int) Math.ceil(2 * (x1 - x0) / smallest), MAXIMUM_CELLS));
+		rows    = Math.max(1, Math.min((int) Math.ceil(2 * (z1 - z0) / smallest), MAXIMUM_CELLS));
+		
+		width = (x1 - x0 + 2 * EPSILON) / columns;
+		depth = (z1 - z0 + 2 * EPSILON) / rows;
+		
+		covers = new boolean[columns * rows * this.layers.length];
+		
+		for(int k = 0; k < this.layers.length; k++)
+		{
+			Quadtree tree = this.layers[k];
+			
+			int i0 = getColumn(tree.getMinimumX() - EPSILON);
+			int j0 = getRow   (tree.getMinimumZ() - EPSILON);
+			int i1 = getColumn(tree.getMinimumX() + tree.getLength() + EPSILON);
+			int j1 = getRow   (tree.getMinimumZ() + tree.getLength() + EPSILON);
+			
+			for(int i = i0; i <= i1; i++)
+				for(int j = j0; j <= j1; j++) covers[(i * rows + j) * this.layers.length + k] = true;
+		}
+	}
+	
+	private int getColumn(float x) { return Math.max(0, Math.min((int) Math.floor((x - this.x) / width), columns - 1)); }
+	
+	private int getRow(float z) { return Math.max(0, Math.min((int) Math.floor((z - this.z) / depth), rows - 1)); }
+	
+	// the cell that contains the point (x, z), or -1 if the point is outside of every layer
+	private int getCell(float x, float z)
+	{
+		if(layers.length == 0 || x < this.x || z < this.z ||
+		   x > this.x + columns * width || z > this.z + rows * depth) return -1;
+		
+		return getColumn(x) * rows + getRow(z);
+	}
+	
+	private boolean covers(int cell, int layer)
+	{
+		return cell >= 0 && covers[cell * layers.length + layer];
+	}
+	
+	/**
+	 * Samples the highest layer at a number of points packed into the arrays
+	 * <code>x</code> and <code>z</code>; no height lower than the argument
+	 * <code>floor</code> is returned. If the array <code>sources</code> is not
+	 * <code>null</code>, the quadtree that provided each height is stored. Each
+	 * layer is only sampled at the points it may contain, which are passed to it
+	 * together so that it can reuse the cell found for the previous point.
+	 */
+	public void getHeights(float[] x, float[] z, float[] heights, int count, float floor, Quadtree[] sources)
+	{
+		if(cells.length < count)
+		{
+			cells     = new int  [count];
+			sampleX   = new float[count];
+			sampleZ   = new float[count];
+			samples   = new float[count];
+			positions = new int  [count];
+		}
+		
+		for(int i = 0; i < count; i++)
+		{
+			heights[i] = floor;
+			if(sources != null) sources[i] = null;
+			
+			cells[i] = getCell(x[i], z[i]);
+		}
+		
+		for(int k = 0; k < layers.length; k++)
+		{
+			Quadtree tree = layers[k];
+			int n = 0;
+			
+			for(int i = 0; i < count; i++)
+			{
+				if(covers(cells[i], k))
+				{
+					sampleX[n] = x[i];
+					sampleZ[n] = z[i];
+					positions[n++] = i;
+				}
+				// a layer that cannot contain the point is sampled as 0
+				else if(0 > heights[i])
+				{
+					heights[i] = 0;
+					if(sources != null) sources[i] = tree;
+				}
+			}
+			
+			if(n == 0) continue;
+			
+			tree.getHeights(sampleX, sampleZ, samples, n, tree.detail);
+			
+			for(int s = 0; s < n; s++)
+			{
+				int i = positions[s];
+				
+				if(samples[s] > heights[i])
+				{
+					heights[i] = samples[s];
+					if(sources != null) sources[i] = tree;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the bounds of the height that <code>getHeights()</code> would return
+	 * at the point (x, z) to the array <code>bounds</code> as {lower, upper,
+	 * average}, using the height pyramid of each layer at the level of precision
+	 * passed as a parameter. The exact height is never below the lower bound nor
+	 * above the upper bound.
+	 */
+	public void getBounds(float x, float z, int level, float floor, float[] bounds)
+	{
+		float lower = floor, upper = floor, average = floor;
+		int cell = getCell(x, z);
+		
+		for(int k = 0; k < layers.length; k++)
+		{
+			if(covers(cell, k) && layers[k].getPyramid().getBounds(x, z, level, bounds))
+			{
+				lower   = Math.max(lower  , bounds[0]);
+				upper   = Math.max(upper  , bounds[1]);
+				average = Math.max(average, bounds[2]);
+			}
+			else
+			{
+				lower   = Math.max(lower  , 0);
+				upper   = Math.max(upper  , 0);
+				average = Math.max(average, 0);
+			}
+		}
+		
+		bounds[0] = lower;
+		bounds[1] = upper;
+		bounds[2] = average;
+	}
+}
@@ -0,0 +1,251 @@
+package bates.jamie.graphics.entity;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * This class stores the cells of a quadtree selected for rendering from the
+ * point of view of a single camera, and the index buffer used to render them.
+ *
+ * A cell is refined while its geometric error, projected onto the screen, is
+ * greater than the tolerance (in pixels). The number of cells selected never
+ * exceeds the budget; if a selection comes close to the budget the tolerance is
+ * raised for the following frame, and it is lowered again once the selection
+ * falls well below the budget.
+ *
+ * Before the selection is drawn it is culled against the view frustum, and the
+ * indices of the visible cells are drawn as a list of contiguous ranges.
+ */
+public class QuadtreeView
+{
+	public static final float MINIMUM_TOLERANCE = 2.0f;
+	
+	public float tolerance = MINIMUM_TOLERANCE;
+	public int budget = 16384;
+	
+	// the position of the camera and the number of pixels per unit of error at unit distance
+	float x, y, z;
+	float scale;
+	
+	int pass;
+	int cells;
+	
+	List<Quadtree> selection = new ArrayList<Quadtree>();
+	
+	// the vertices around the border of a cell
+	int[] ring = new int[16];
+	int ringSize;
+	
+	private int[] indices = new int[4096];
+	private int indexCount = 0;
+	
+	// the first index of each selected cell, followed by the total
+	private int[] offsets = new int[1024];
+	
+	// the ranges of indices that survive culling {start, end}
+	private int[] ranges = new int[256];
+	int rangeCount;
+	
+	int drawn, culled;
+	
+	// the indices uploaded by the previous selection
+	private int[] previous = new int[0];
+	private int previousCount = 0;
+	
+	private IntBuffer iBuffer;
+	
+	private int bufferID = 0;
+	private int bufferCapacity = 0;
+	
+	// set once a new selection has been made until it is uploaded
+	private boolean selected = false;
+	
+	void begin(float[] eye, int height, float fov, int pass)
+	{
+		x = eye[0];
+		y = eye[1];
+		z = eye[2];
+		
+		scale = (float) (height / (2 * Math.tan(Math.toRadians(fov) / 2)));
+		
+		this.pass = pass;
+		
+		cells = 1;
+		selection.clear();
+		indexCount = 0;
+		
+		selected = true;
+	}
+	
+	// adjusts the tolerance used by the next selection to keep within the budget
+	void end()
+	{
+		     if(cells > budget * 0.9f) tolerance *= 1.1f;
+		else if(cells < budget * 0.6f) tolerance = Math.max(tolerance / 1.1f, MINIMUM_TOLERANCE);
+	}
+	
+	void addRing(int index)
+	{
+		if(ringSize == ring.length) ring = Arrays.copyOf(ring, ringSize * 2);
+		ring[ringSize++] = index;
+	}
+	
+	void addQuad(int a, int b, int c, int d)
+	{
+		if(indexCount + 4 > indices.length) indices = Arrays.copyOf(indices, indices.length * 2);
+		
+		indices[indexCount++] = a;
+		indices[indexCount++] = b;
+		indices[indexCount++] = c;
+		indices[indexCount++] = d;
+	}
+	
+	void setOffset(int cell)
+	{
+		if(cell >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		offsets[cell] = indexCount;
+	}
+	
+	void clearRanges()
+	{
+		rangeCount = 0;
+		drawn = 0;
+		culled = 0;
+	}
+	
+	// adds the indices of the selected cells [first, first + count) to the ranges drawn
+	void addRange(int first, int count)
+	{
+		int start = offsets[first];
+		int end   = offsets[first + count];
+		
+		drawn += count;
+		
+		// extend the last range if the two are contiguous
+		if(rangeCount > 0 && ranges[rangeCount * 2 - 1] == start)
+		{
+			ranges[rangeCount * 2 - 1] = end;
+			return;
+		}
+		
+		if(rangeCount * 2 == ranges.length) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+		
+		ranges[rangeCount * 2    ] = start;
+		ranges[rangeCount * 2 + 1] = end;
+		rangeCount++;
+	}
+	
+	int getRangeStart(int range) { return ranges[range * 2    ]; }
+	
+	int getRangeEnd  (int range) { return ranges[range * 2 + 1]; }
+	
+	public int cellCount() { return cells; }
+	
+	public int indexCount() { return indexCount; }
+	
+	/**
+	 * Copies the indices that differ from those last uploaded into the index
+	 * buffer, and into the buffer object if <code>vbo</code> is <code>true</code>.
+	 * The buffers are only reallocated when the number of indices outgrows them,
+	 * and nothing is copied if the selection has not changed.
+	 */
+	void upload(GL2 gl, boolean vbo)
+	{
+		if(!selected && iBuffer != null && (!vbo || bufferCapacity > 0)) return;
+		
+		selected = false;
+		
+		int length = Math.min(indexCount, previousCount);
+		
+		int first = 0;
+		while(first < length && indices[first] == previous[first]) first++;
+		
+		int last = indexCount - 1;
+		while(last >= first && last < length && indices[last] == previous[last]) last--;
+		
+		boolean changed = last >= first;
+		
+		if(changed)
+		{
+			if(previous.length < indexCount) previous = Arrays.copyOf(previous, indices.length);
+			System.arraycopy(indices, first, previous, first, indexCount - first);
+		}
+		
+		previousCount = indexCount;
+		
+		if(iBuffer == null || iBuffer.capacity() < indexCount)
+		{
+			iBuffer = Buffers.newDirectIntBuffer(indices.length);
+			iBuffer.put(indices, 0, indexCount);
+		}
+		else if(changed)
+		{
+			iBuffer.limit(iBuffer.capacity());
+			iBuffer.position(first);
+			iBuffer.put(indices, first, last - first + 1);
+		}
+		
+		iBuffer.limit(iBuffer.capacity());
+		iBuffer.position(0);
+		
+		if(!vbo) return;
+		
+		if(bufferID == 0)
+		{
+			int[] ids = new int[1];
+			gl.glGenBuffers(1, ids, 0);
+			bufferID = ids[0];
+		}
+		
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, bufferID);
+		
+		if(bufferCapacity < iBuffer.capacity())
+		{
+			gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, iBuffer.capacity() * Buffers.SIZEOF_INT, iBuffer, GL2.GL_DYNAMIC_DRAW);
+			bufferCapacity = iBuffer.capacity();
+		}
+		else if(changed)
+		{
+			iBuffer.position(first);
+			gl.glBufferSubData(GL2.GL_ELEMENT_ARRAY_BUFFER, first * Buffers.SIZEOF_INT, (last - first + 1) * Buffers.SIZEOF_INT, iBuffer);
+			iBuffer.position(0);
+		}
+		
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	int getBufferID() { return bufferID; }
+	
+	IntBuffer getBuffer()
+	{
+		iBuffer.position(0);
+		iBuffer.limit(indexCount);
+		
+		return iBuffer;
+	}
+	
+	// returns the index buffer with its position and limit set to the indices [start, end)
+	IntBuffer getBuffer(int start, int end)
+	{
+		iBuffer.limit(end);
+		iBuffer.position(start);
+		
+		return iBuffer;
+	}
+	
+	void deleteBuffers(GL2 gl)
+	{
+		if(bufferID != 0) gl.glDeleteBuffers(1, new int[] {bufferID}, 0);
+		
+		bufferID = 0;
+		bufferCapacity = 0;
+		iBuffer = null;
+		previousCount = 0;
+	}
+}
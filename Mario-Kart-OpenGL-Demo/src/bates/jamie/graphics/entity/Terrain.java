@@ -5,14 +5,11 @@ import static bates.jamie.graphics.util.Renderer.displayWireframeObject;
 
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
@@ -59,9 +56,8 @@ public class Terrain
 	public static float sy = 3.0f;
 	public static float sz = 6.0f;
 	
-	private static final int LIGHT_MAP_SIZE = 128;
-	
-	private boolean createLightMap = false;
+	// the number of texels along each side of the light map baked for the base quadtree
+	private static final int LIGHT_MAP_SIZE = 256;
 	
 	public int terrainList;
 	public int renderMode = 3;
@@ -69,6 +65,13 @@ public class Terrain
 	public float[][] heights;
 	public int length;
 	
+	// the seed used to generate the heights; the same seed produces the same map
+	public long seed;
+	
+	// the bounds of the heights in map units, built when first requested
+	private HeightPyramid pyramid;
+	private float[][] pyramidSource;
+	
 	float[][] vertices;
 	float[][] normals;
 	float[][] texCoords;
@@ -94,11 +97,27 @@ public class Terrain
 	public HashMap<String, Quadtree> trees = new HashMap<String, Quadtree>();
 	public Quadtree tree;
 	
+	// the extents of the quadtrees sampled for height queries, built when first requested
+	private volatile QuadtreeIndex index;
+	
 	public boolean enableQuadtree = true;
 	public boolean enableWater = false;
 	
+	// select the detail of the quadtrees separately for each camera
+	public boolean enableLOD = true;
+	
+	// the maximum number of cells rendered by each quadtree across all viewports
+	public static final int CELL_BUDGET = 65536;
+	
 	public Terrain(GL2 gl, int length, int i)
+	{
+		this(gl, length, i, new Random().nextLong());
+	}
+	
+	public Terrain(GL2 gl, int length, int i, long seed)
 	{	
+		this.seed = seed;
+		
 		setHeights(length, i);
 		
 		this.length = length;
@@ -107,8 +126,6 @@ public class Terrain
 		
 		loadTextures(gl);
 		
-		if(createLightMap) createLightMap();
-		
 		createGeometry(TEXTURE_LENGTH);
 		
 		displayList(gl);
@@ -116,6 +133,13 @@ public class Terrain
 	
 	public Terrain(GL2 gl, int length, int i, int r0, int r1, float p, float h)
 	{
+		this(gl, length, i, r0, r1, p, h, new Random().nextLong());
+	}
+	
+	public Terrain(GL2 gl, int length, int i, int r0, int r1, float p, float h, long seed)
+	{
+		this.seed = seed;
+		
 		min_radius = r0;
 		max_radius = r1;
 		
@@ -124,6 +148,43 @@ public class Terrain
 		
 		loadTextures(gl);
 		
+		generate(length, i);
+		
+		setScale();
+		
+		displayList(gl);
+	}
+	
+	/**
+	 * This constructor does not make any OpenGL calls so that the terrain can be
+	 * generated on a background thread; the textures of the terrain passed as a
+	 * parameter are reused rather than loaded again. The method upload() must be
+	 * called on the GL thread before the terrain is rendered.
+	 */
+	public Terrain(Terrain terrain, int length, int i, int r0, int r1, float p, float h, long seed)
+	{
+		this.seed = seed;
+		
+		min_radius = r0;
+		max_radius = r1;
+		
+		peak_inc = p;
+		hill_inc = h;
+		
+		textures    = terrain.textures;
+		bumpmaps    = terrain.bumpmaps;
+		baseTexture = terrain.baseTexture;
+		
+		generate(length, i);
+	}
+	
+	public Terrain(Terrain terrain, int length, int i, long seed)
+	{
+		this(terrain, length, i, MIN_RADIUS, MAX_RADIUS, PEAK_INC, HILL_INC, seed);
+	}
+	
+	private void generate(int length, int i)
+	{
 		System.out.println("Terrain:\n{");
 		
 		long start = System.nanoTime();
@@ -133,13 +194,10 @@ public class Terrain
 		long end = System.nanoTime();
 			
 		System.out.printf("\tDeformation: %.3f ms\n", (end - start) / 1E6);
+		System.out.printf("\tSeed       : %d\n", seed);
 			
 		this.length = length;
 			
-		sx = sz = WORLD_LENGTH / length;
-			
-		if(createLightMap) createLightMap();
-			
 		start = System.currentTimeMillis();
 			
 		createGeometry(TEXTURE_LENGTH);
@@ -148,13 +206,36 @@ public class Terrain
 			
 		System.out.println("\tGeometry: " + (System.currentTimeMillis() - start) + " ms\n}");
 			
-		displayList(gl);
-			
 		toModel();
 		
 		generateQuadtree();
 	}
 	
+	/**
+	 * Sets the scale at which the height map is rendered; as this is shared by
+	 * all terrains, it should only be set once the terrain is in use.
+	 */
+	public void setScale()
+	{
+		sx = sz = WORLD_LENGTH / length;
+	}
+	
+	/**
+	 * Creates the OpenGL resources of a terrain generated by a background thread.
+	 * Each call performs a single stage so that the work can be spread across a
+	 * number of frames; <code>true</code> is returned once every stage is complete.
+	 */
+	public boolean upload(GL2 gl, int stage)
+	{
+		if(stage == 0) { displayList(gl); return trees.isEmpty(); }
+		
+		List<Quadtree> _trees = new ArrayList<Quadtree>(trees.values());
+		
+		if(stage <= _trees.size()) _trees.get(stage - 1).upload(gl);
+		
+		return stage >= _trees.size();
+	}
+	
 	public void generateQuadtree()
 	{	
 		gradients.add(Gradient.MUD);
@@ -167,6 +248,8 @@ public class Terrain
 		base.setHeights(1000, 1.25f);
 		base.specular = new float[] {0.3f, 0.3f, 0.3f, 1};
 		base.enableCaustic = false;
+		base.setLightMap(new LightMap(base, LIGHT_MAP_SIZE));
+		base.setJournal(new DeformationJournal(base));
 		
 		tree = base;
 		
@@ -182,13 +265,56 @@ public class Terrain
 		trees.put("Base", base);
 //		trees.put("Road", road);
 		
+		invalidateIndex();
+	}
+	
+	/**
+	 * Returns the index of the quadtrees that are sampled for height queries,
+	 * which ignores those used for blending. The method invalidateIndex() must be
+	 * called whenever the quadtrees are added, removed, moved or set to blend.
+	 */
+	public QuadtreeIndex getIndex()
+	{
+		QuadtreeIndex index = this.index;
+		if(index == null) this.index = index = new QuadtreeIndex(trees.values());
+		
+		return index;
 	}
 	
+	public void invalidateIndex() { index = null; }
+	
 	public void selectQuadtree(String key)
 	{
 		tree = trees.get(key);
 	}
 	
+	/**
+	 * Selects the detail of each quadtree to be rendered from the point of view
+	 * of a camera; the cell budget is divided evenly between the viewports.
+	 */
+	public void selectView(int camera, int cameras, float[] eye, int height, float fov)
+	{
+		for(Quadtree tree : trees.values())
+		{
+			if(enableLOD && !tree.enableBlending)
+				 tree.selectView(camera, eye, height, fov, CELL_BUDGET / cameras);
+			else tree.clearView();
+		}
+	}
+	
+	public void clearView()
+	{
+		for(Quadtree tree : trees.values()) tree.clearView();
+	}
+	
+	public void deleteBuffers(GL2 gl)
+	{
+		for(Quadtree tree : trees.values()) tree.deleteBuffers(gl);
+		
+		if(terrainList != 0) gl.glDeleteLists(terrainList, 1);
+		terrainList = 0;
+	}
+	
 	public void toModel()
 	{
 		long start = System.currentTimeMillis();
@@ -228,10 +354,13 @@ public class Terrain
 			}
 		}
 		
+		// the scale is calculated here as the static scale may still be used by another terrain
+		float scale = WORLD_LENGTH / length;
+		
 		for(int i = 0; i < _vertices.size(); i++)
 		{
 			float[] vertex = _vertices.get(i);
-			_vertices.set(i, new float[] {vertex[0] * sx, vertex[1] * sy, vertex[2] * sz});
+			_vertices.set(i, new float[] {vertex[0] * scale, vertex[1] * sy, vertex[2] * scale});
 		}
 		
 		model = new Model(_vertices, _texCoords, indices, indices, baseTexture, 4);
@@ -239,19 +368,34 @@ public class Terrain
 		System.out.println("Terrain Model Indexed: " + (System.currentTimeMillis() - start) + " ms");
 	}
 
-	public Terrain(GL2 gl, String fileName)
+	/**
+	 * Loads the terrain from a file in the texture directory; a file with the
+	 * extension <code>.hmap</code> is read as a raw height map, otherwise the file
+	 * is read as a grayscale image. An error reading the file is passed on to the
+	 * caller rather than leaving the terrain without heights.
+	 */
+	public Terrain(GL2 gl, String fileName) throws IOException
 	{
-		importMap(fileName);
+		if(HeightMap.isHeightMap(fileName)) importHeights(fileName);
+		else importMap(fileName);
 		
 		loadTextures(gl);
 		
-		if(createLightMap) createLightMap();
-		
 		createGeometry(TEXTURE_LENGTH);
 		
 		displayList(gl);
 	}
 
+	/**
+	 * Creates a terrain from its heights alone, without textures or geometry, so
+	 * that its height queries can be used without a GL context.
+	 */
+	Terrain(float[][] heights)
+	{
+		this.heights = heights;
+		this.length  = heights.length - 1;
+	}
+
 	private void loadTextures(GL2 gl)
 	{
 		try
@@ -290,98 +434,45 @@ public class Terrain
 
 	/**
 	 * This method uses a hill-raising algorithm to randomly generate the heights
-	 * of the map; this map is of the length passed as a parameter
+	 * of the map; this map is of the length passed as a parameter. The map is
+	 * generated in parallel and is determined entirely by the seed of the terrain.
 	 */
 	private void setHeights(int length, int iterations)
 	{
-		float[][] heights = new float[length + 1][length + 1];
+		TerrainGenerator generator = new TerrainGenerator(
+			length, iterations, seed, min_radius, max_radius, peak_inc, hill_inc);
 		
-		Random generator = new Random();
+		heights = generator.generate();
+	}
+
+	private void importMap(String fileName) throws IOException
+	{
+		BufferedImage map = ImageIO.read(new File("tex/" + fileName));
 		
-		int x, z;
+		if(map == null) throw new IOException("Unsupported image format: " + fileName);
 		
-		double[][] distances = new double[max_radius + 1][max_radius + 1];
+		int width  = map.getWidth();
+		int height = map.getHeight();
 		
-		for(int i = 0; i <= max_radius; i++)
-			for(int j = 0; j <= max_radius ; j++)
-				distances[i][j] = Math.sqrt((i * i) + (j * j));
+		float[][] heights = new float[width + 1][height + 1];
 		
-		for (int i = 0; i < iterations; i++)
+		for (int i = 0; i < width; i++)
 		{
-			x = (int) (generator.nextDouble() * length);
-			z = (int) (generator.nextDouble() * length);
-
-			if(generator.nextBoolean())
+			for (int j = 0; j < height; j++)
 			{
-				 increaseRadius(x, z, 2, peak_inc, heights, length, distances);
+				float intensity = RGB.getIntensity(map.getRGB(i, j));
+				heights[i][j] = intensity * MAX_HEIGHT;
 			}
-			else increaseRadius(x, z, generator, heights, length, distances);
 		}
 		
 		this.heights = heights;
-	}
-	
-	private void increaseRadius(int x, int z, int radius, float peak, float[][] heights, int length, double[][] distances)
-	{
-		/*
-		 * calculate extent of the deformation mask in terms of the top-left (_x, _z),
-		 * bottom-right (x_, z_), and centre (x, z) vertices 
-		 */
-		int _x = (x - radius) < 0 ? 0 : x - radius;
-		int _z = (z - radius) < 0 ? 0 : z - radius;
-		int x_ = (x + radius) > length ? length : x + radius;
-		int z_ = (z + radius) > length ? length : z + radius;
-		
-		float offset = 0.5f / radius;
-		
-		for(int a = _x; a <= x_; a++)
-		{
-			for(int b = _z; b <= z_; b++)
-			{
-				int _x_ = Math.abs(x - a);
-				int _z_ = Math.abs(z - b);
-				
-				double d = distances[_x_][_z_];
-				d = (d > radius) ? radius : d;
-				
-				if(a == x && b == z) heights[a][b] += peak * (1 - offset);
-				else heights[a][b] += peak * (1 - (d / radius));
-			}
-		}
-	}
-	
-	private void increaseRadius(int x, int z, Random generator, float[][] heights, int length, double[][] distances)
-	{	
-		int radius = min_radius + generator.nextInt(max_radius - min_radius + 1);
-		float peak = generator.nextFloat() * hill_inc;
-		
-		increaseRadius(x, z, radius, peak, heights, length, distances);
+		this.length = width; //TODO works with square images only
 	}
 
-	private void importMap(String fileName)
+	private void importHeights(String fileName) throws IOException
 	{
-		try
-		{
-			BufferedImage map = ImageIO.read(new File("tex/" + fileName));
-			
-			int width  = map.getWidth();
-			int height = map.getHeight();
-			
-			float[][] heights = new float[width + 1][height + 1];
-			
-			for (int i = 0; i < width; i++)
-			{
-				for (int j = 0; j < height; j++)
-				{
-					float intensity = RGB.getIntensity(map.getRGB(i, j));
-					heights[i][j] = intensity * MAX_HEIGHT;
-				}
-			}
-			
-			this.heights = heights;
-			this.length = width; //TODO works with square images only
-		}
-		catch (IOException e) { e.printStackTrace(); }
+		heights = HeightMap.read("tex/" + fileName);
+		length = heights.length - 1;
 	}
 
 	private void displayList(GL2 gl)
@@ -392,7 +483,20 @@ public class Terrain
 	    gl.glEndList();
 	}
 	
-	public void export()
+	/**
+	 * Writes the heights to <code>tex/heightMap.hmap</code> without any loss of
+	 * precision; a grayscale preview is also written to <code>tex/heightMap.jpg</code>
+	 * if requested.
+	 */
+	public void export(boolean preview)
+	{
+		try { HeightMap.write(heights, "tex/heightMap" + HeightMap.EXTENSION); }
+		catch (IOException e) { e.printStackTrace(); }
+		
+		if(preview) exportPreview();
+	}
+	
+	public void exportPreview()
 	{
 		float max_height = getMaxHeight();
 		
@@ -514,18 +618,65 @@ public class Terrain
 		return h * sy;
 	}
 	
-	public float getHeight(Collection<Quadtree> trees, float[] p)
+	/**
+	 * Samples the height of the map at a number of points packed into the arrays
+	 * <code>x</code> and <code>z</code> by the same bilinear interpolation as
+	 * <code>getHeight()</code>, but without recording the samples used by the
+	 * debugging visuals; a height of 0 is written for points outside of the map.
+	 */
+	public void getHeights(float[] x, float[] z, float[] heights, int count)
 	{
-		float max = 0;
+		float[][] map = this.heights;
+		
+		float scaleX = 1 / sx;
+		float scaleZ = 1 / sz;
+		float offset = length / 2;
 		
-		for(Quadtree tree : trees)
+		for(int i = 0; i < count; i++)
 		{
-			Quadtree cell = tree.getCell(p, tree.detail);
-			float h = (cell != null) ? cell.getHeight(p) : 0;
-			if(h > max && !tree.enableBlending) max = h;
+			float u = x[i] * scaleX + offset;
+			float v = z[i] * scaleZ + offset;
+			
+			int a = (int) Math.floor(u);
+			int b = (int) Math.floor(v);
+			
+			if(a < 0 || b < 0 || a >= length || b >= length) { heights[i] = 0; continue; }
+			
+			float s = u - a;
+			float t = v - b;
+			
+			float[] column0 = map[a    ];
+			float[] column1 = map[a + 1];
+			
+			float r1 = (1 - s) * column0[b    ] + s * column1[b    ];
+			float r2 = (1 - s) * column0[b + 1] + s * column1[b + 1];
+			
+			heights[i] = (r1 * (1 - t) + r2 * t) * sy;
 		}
-
-		return max;
+	}
+	
+	/**
+	 * Writes bounds of the height returned by <code>getHeight()</code> at the point
+	 * (x, z) to the array <code>bounds</code> as {minimum, maximum, average}, read
+	 * from the height pyramid at the level of precision passed as a parameter.
+	 * 
+	 * @return <code>false</code> if the point is outside of the map.
+	 */
+	public boolean getBounds(float x, float z, int level, float[] bounds)
+	{
+		if(pyramid == null || pyramidSource != heights)
+		{
+			pyramid = new HeightPyramid(heights, 0, 0, 1, 1, 1);
+			pyramidSource = heights;
+		}
+		
+		if(!pyramid.getBounds((x / sx) + length / 2, (z / sz) + length / 2, level, bounds)) return false;
+		
+		bounds[0] *= sy;
+		bounds[1] *= sy;
+		bounds[2] *= sy;
+		
+		return true;
 	}
 	
 	public void createGeometry(int textureLength)
@@ -793,39 +944,28 @@ public class Terrain
 		gl.glEnd();
 	}
 	
-	private void createLightMap()
+	/**
+	 * Bakes the lighting of the quadtrees that have a light map for the light
+	 * passed as a parameter in the background, and uploads the tiles of any bake
+	 * that has finished; this must be called on the GL thread once per frame
+	 * before the terrain is rendered.
+	 * The light maps are left unchanged, and not used, if <code>enable</code> is
+	 * <code>false</code>.
+	 */
+	public void updateLightMap(GL2 gl, float[] light, boolean parallel, boolean enable)
 	{
-		BufferedImage map = new BufferedImage(LIGHT_MAP_SIZE, LIGHT_MAP_SIZE, BufferedImage.TYPE_INT_RGB);
-		Graphics2D graphics = map.createGraphics();
-		
-		graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-								  RenderingHints.VALUE_ANTIALIAS_ON);
-		
-		graphics.setColor(Color.GRAY);
-		graphics.fillRect(0, 0, LIGHT_MAP_SIZE, LIGHT_MAP_SIZE);
-		
-		int[] centre = {LIGHT_MAP_SIZE / 2, LIGHT_MAP_SIZE / 2};
-		
-		int diameter = (LIGHT_MAP_SIZE * 7) / 10;
-		graphics.setColor(Color.LIGHT_GRAY);
-		graphics.fillOval(centre[0] - (diameter / 2), centre[1] - (diameter / 2), diameter, diameter);
-		
-		diameter = (LIGHT_MAP_SIZE * 4) / 10;
-		graphics.setColor(Color.WHITE);
-		graphics.fillOval(centre[0] - (diameter / 2), centre[1] - (diameter / 2), diameter, diameter);
-		
-		diameter = (LIGHT_MAP_SIZE * 2) / 10;
-		graphics.setColor(Color.LIGHT_GRAY);
-		graphics.fillOval(centre[0] - (diameter / 2), centre[1] - (diameter / 2), diameter, diameter);
-		
-		diameter = (LIGHT_MAP_SIZE * 15) / 100;
-		graphics.setColor(Color.GRAY);
-		graphics.fillOval(centre[0] - (diameter / 2), centre[1] - (diameter / 2), diameter, diameter);
-		
-		graphics.dispose();
-		
-		try { ImageIO.write(map, "png", new File("tex/lightMap.png")); }
-		catch (IOException e) { e.printStackTrace(); }
+		for(Quadtree tree : trees.values())
+		{
+			LightMap lightMap = tree.getLightMap();
+			if(lightMap == null) continue;
+			
+			lightMap.enabled = enable;
+			if(!enable) continue;
+			
+			lightMap.setLight(light, parallel);
+			
+			lightMap.update(gl);
+		}
 	}
 	
 }
@@ -0,0 +1,267 @@
+package bates.jamie.graphics.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class generates a height map using the hill-raising algorithm; a number
+ * of circular hills (splats) of random position, radius and height are added to
+ * an initially flat grid.
+ *
+ * The splats are first generated sequentially from a seed and then sorted into
+ * square tiles according to the area that they cover; a splat that crosses the
+ * border of a tile is added to each tile that it overlaps. The tiles are then
+ * raised in parallel, each task only writing to the heights within its own tile.
+ *
+ * As every height receives its splats in the order that they were generated,
+ * the same seed produces an identical map regardless of the number of threads.
+ * The tiles are raised by a pool of threads shared by every generator, and an
+ * exception raised by any tile is thrown to the caller of generate().
+ */
+public class TerrainGenerator
+{
+	private static final int TILE_LENGTH = 64;
+	
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	
+	private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+		new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Terrain Generator");
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		});
+	
+	private int length;
+	private int iterations;
+	private long seed;
+	
+	private int min_radius;
+	private int max_radius;
+	
+	private float peak_inc;
+	private float hill_inc;
+	
+	// the centre, radius and peak of each splat
+	private int  [] x;
+	private int  [] z;
+	private int  [] radii;
+	private float[] peaks;
+	
+	private double[][] distances;
+	
+	public TerrainGenerator(int length, int iterations, long seed, int r0, int r1, float p, float h)
+	{
+		this.length     = length;
+		this.iterations = iterations;
+		this.seed       = seed;
+		
+		min_radius = r0;
+		max_radius = r1;
+		
+		peak_inc = p;
+		hill_inc = h;
+	}
+	
+	public float[][] generate()
+	{
+		return generate(THREADS);
+	}
+	
+	/**
+	 * Generates the height map on the calling thread if <code>threads</code> is
+	 * 1 or less, otherwise on the shared pool. Any exception raised while raising
+	 * a tile is thrown once every tile has finished.
+	 */
+	public float[][] generate(int threads)
+	{
+		float[][] heights = new float[length + 1][length + 1];
+		
+		createSplats();
+		
+		int tiles = (length + TILE_LENGTH) / TILE_LENGTH; // tiles along each side
+		
+		int[][] splats = sortSplats(tiles);
+		
+		List<Tile> tasks = new ArrayList<Tile>();
+		
+		for(int i = 0; i < tiles; i++)
+			for(int j = 0; j < tiles; j++)
+				tasks.add(new Tile(i, j, splats[i * tiles + j], heights));
+		
+		if(threads <= 1)
+		{
+			for(Tile task : tasks) task.call();
+			
+			return heights;
+		}
+		
+		try
+		{
+			// rethrow any exception raised by a tile
+			for(Future<Object> future : executor.invokeAll(tasks)) future.get();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			
+			throw new RuntimeException(cause);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Terrain generation interrupted", e);
+		}
+		
+		return heights;
+	}
+	
+	/**
+	 * Generates the splats using the same sequence of random numbers as the
+	 * original single-threaded algorithm, so that a seed always yields the
+	 * same map.
+	 */
+	private void createSplats()
+	{
+		Random generator = new Random(seed);
+		
+		x     = new int  [iterations];
+		z     = new int  [iterations];
+		radii = new int  [iterations];
+		peaks = new float[iterations];
+		
+		for(int i = 0; i < iterations; i++)
+		{
+			x[i] = (int) (generator.nextDouble() * length);
+			z[i] = (int) (generator.nextDouble() * length);
+			
+			if(generator.nextBoolean())
+			{
+				radii[i] = 2;
+				peaks[i] = peak_inc;
+			}
+			else
+			{
+				radii[i] = min_radius + generator.nextInt(max_radius - min_radius + 1);
+				peaks[i] = generator.nextFloat() * hill_inc;
+			}
+		}
+		
+		int radius = Math.max(max_radius, 2);
+		
+		distances = new double[radius + 1][radius + 1];
+		
+		for(int i = 0; i <= radius; i++)
+			for(int j = 0; j <= radius; j++)
+				distances[i][j] = Math.sqrt((i * i) + (j * j));
+	}
+	
+	/**
+	 * Returns, for each tile, the indices of the splats that overlap it in the
+	 * order in which they were generated.
+	 */
+	private int[][] sortSplats(int tiles)
+	{
+		int[][] splats = new int[tiles * tiles][16];
+		int  [] counts = new int[tiles * tiles];
+		
+		for(int s = 0; s < iterations; s++)
+		{
+			int _i = Math.max(x[s] - radii[s], 0)      / TILE_LENGTH;
+			int _j = Math.max(z[s] - radii[s], 0)      / TILE_LENGTH;
+			int i_ = Math.min(x[s] + radii[s], length) / TILE_LENGTH;
+			int j_ = Math.min(z[s] + radii[s], length) / TILE_LENGTH;
+			
+			for(int i = _i; i <= i_; i++)
+			{
+				for(int j = _j; j <= j_; j++)
+				{
+					int tile = i * tiles + j;
+					
+					if(counts[tile] == splats[tile].length)
+						splats[tile] = Arrays.copyOf(splats[tile], counts[tile] * 2);
+					
+					splats[tile][counts[tile]++] = s;
+				}
+			}
+		}
+		
+		for(int t = 0; t < splats.length; t++)
+			splats[t] = Arrays.copyOf(splats[t], counts[t]);
+		
+		return splats;
+	}
+	
+	private class Tile implements Callable<Object>
+	{
+		int _x, _z, x_, z_; // inclusive bounds of the tile
+		int[] splats;
+		float[][] heights;
+		
+		public Tile(int i, int j, int[] splats, float[][] heights)
+		{
+			_x = i * TILE_LENGTH;
+			_z = j * TILE_LENGTH;
+			x_ = Math.min(_x + TILE_LENGTH - 1, length);
+			z_ = Math.min(_z + TILE_LENGTH - 1, length);
+			
+			this.splats  = splats;
+			this.heights = heights;
+		}
+		
+		public Object call()
+		{
+			for(int s : splats) increaseRadius(s);
+			
+			return null;
+		}
+		
+		/**
+		 * Raises the part of splat <code>s</code> that lies within this tile; this
+		 * is the same as the original algorithm with the deformation mask clipped
+		 * to the bounds of the tile rather than the bounds of the map.
+		 */
+		private void increaseRadius(int s)
+		{
+			int x = TerrainGenerator.this.x[s];
+			int z = TerrainGenerator.this.z[s];
+			
+			int radius = radii[s];
+			float peak = peaks[s];
+			
+			int a0 = Math.max(x - radius, _x);
+			int b0 = Math.max(z - radius, _z);
+			int a1 = Math.min(x + radius, x_);
+			int b1 = Math.min(z + radius, z_);
+			
+			float offset = 0.5f / radius;
+			
+			for(int a = a0; a <= a1; a++)
+			{
+				for(int b = b0; b <= b1; b++)
+				{
+					double d = distances[Math.abs(x - a)][Math.abs(z - b)];
+					d = (d > radius) ? radius : d;
+					
+					if(a == x && b == z) heights[a][b] += peak * (1 - offset);
+					else heights[a][b] += peak * (1 - (d / radius));
+				}
+			}
+		}
+	}
+}
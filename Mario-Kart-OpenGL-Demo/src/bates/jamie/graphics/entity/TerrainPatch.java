@@ -32,15 +32,35 @@ public class TerrainPatch
 	public Texture texture;
 	private Texture alphaMap;
 	
-	public boolean colliding = false;
-	
 	public float friction = 1;
 	
 	private static Texture[] textures;
 	private static Texture[] alphaMaps;
 	
+	// the pixels of the alpha maps, used to find the shape of each splash on the CPU
+	private static final String[] ALPHA_MAP_FILES = {"tex/splatter.png", "tex/splatter2.png"};
+	private static int[][] alphaPixels;
+	private static int alphaWidth, alphaHeight;
+	
+	private int alphaIndex = 0;
+	
 	static
 	{
+		try
+		{
+			alphaPixels = new int[ALPHA_MAP_FILES.length][];
+			
+			for(int i = 0; i < ALPHA_MAP_FILES.length; i++)
+			{
+				BufferedImage image = ImageIO.read(new File(ALPHA_MAP_FILES[i]));
+				
+				alphaWidth  = image.getWidth();
+				alphaHeight = image.getHeight();
+				alphaPixels[i] = image.getRGB(0, 0, alphaWidth, alphaHeight, null, 0, alphaWidth);
+			}
+		}
+		catch (Exception e) { e.printStackTrace(); }
+		
 		try
 		{
 			textures = new Texture[3];
@@ -53,10 +73,10 @@ public class TerrainPatch
 //			textures[5] = TextureIO.newTexture(new File("tex/cobbles.jpg"), true);
 //			textures[6] = TextureIO.newTexture(new File("tex/grass.jpg"), true);
 			
-			alphaMaps = new Texture[2];
+			alphaMaps = new Texture[ALPHA_MAP_FILES.length];
 			
-			alphaMaps[0] = TextureIO.newTexture(new File("tex/splatter.png"), true);
-			alphaMaps[1] = TextureIO.newTexture(new File("tex/splatter2.png"), true);
+			for(int i = 0; i < ALPHA_MAP_FILES.length; i++)
+				alphaMaps[i] = TextureIO.newTexture(new File(ALPHA_MAP_FILES[i]), true);
 		}
 		catch (Exception e) { e.printStackTrace(); }
 	}
@@ -64,6 +84,9 @@ public class TerrainPatch
 	private int floorLength;
 
 	private int splashSize;
+	
+	// the corner of the splash on the height map
+	private int[] start;
 
 	private float[][] vertices;
 	private float[][] texCoords;
@@ -91,8 +114,8 @@ public class TerrainPatch
 
 		if(createAlphaMap) createAlphaMap();
 		
-		int a = generator.nextInt(alphaMaps.length);
-		alphaMap = alphaMaps[a];
+		alphaIndex = generator.nextInt(alphaMaps.length);
+		alphaMap = alphaMaps[alphaIndex];
 
 		createGeometry(heights);
 	}
@@ -107,7 +130,7 @@ public class TerrainPatch
 		
 		try
 		{
-			alphaMap = TextureIO.newTexture(new File("tex/splatter.png"), true);
+			alphaMap = TextureIO.newTexture(new File(ALPHA_MAP_FILES[0]), true);
 		}
 		catch (Exception e) { e.printStackTrace(); }
 		
@@ -138,14 +161,13 @@ public class TerrainPatch
 
 	private void createGeometry(float[][] heights)
 	{
-		int[] start = getStartPoint();
-
-		vertices = createVertices(start, heights);
-		texCoords = createTexCoords(start);
+		createGeometry(heights, getStartPoint());
 	}
 	
 	private void createGeometry(float[][] heights, int[] start)
 	{
+		this.start = start;
+		
 		vertices = createVertices(start, heights);
 		texCoords = createTexCoords(start);
 	}
@@ -268,8 +290,6 @@ public class TerrainPatch
 		gl.glEnable(GL2.GL_LIGHTING);
 		gl.glDisable(GL2.GL_BLEND);
 		
-//		if(colliding) renderWireframe(gl);
-		
 		gl.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
 	}
 	
@@ -382,6 +402,27 @@ public class TerrainPatch
 		return map;
 	}
 	
+	public int getX() { return start[0]; }
+	
+	public int getZ() { return start[2]; }
+	
+	public int getSize() { return splashSize; }
+	
+	/**
+	 * Returns the opacity of the splash at (s, t), where both coordinates range
+	 * from 0 to 1 across the patch in the same way as its texture coordinates.
+	 */
+	public float getAlpha(float s, float t)
+	{
+		int[] pixels = (alphaPixels == null) ? null : alphaPixels[alphaIndex];
+		if(pixels == null) return 1;
+		
+		int x = Math.max(0, Math.min((int) (s * alphaWidth ), alphaWidth  - 1));
+		int y = Math.max(0, Math.min((int) (t * alphaHeight), alphaHeight - 1));
+		
+		return (pixels[y * alphaWidth + x] >>> 24) / 255.0f;
+	}
+	
 	public boolean isColliding(float[] p)
 	{
 		float x = p[0];
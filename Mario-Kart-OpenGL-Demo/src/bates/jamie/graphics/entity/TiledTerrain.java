@@ -0,0 +1,380 @@
+package bates.jamie.graphics.entity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.opengl.util.texture.Texture;
+
+/**
+ * This class renders a height map that is too large to be held in memory as a
+ * grid of square tiles, each of which is a separate quadtree. Only the tiles
+ * around the cars are kept; as the cars move, the tiles that come within range
+ * are read from the mapped height map and built on a background thread, and
+ * the tiles that have not been used for the longest time are released once the
+ * number of tiles on the heap or on the GPU exceeds its budget. The tiles nearest
+ * the cars are kept first, and no more tiles are kept around the cars than both
+ * budgets allow, so that the tiles in use can always be kept within them.
+ *
+ * Neighbouring tiles share the heights along their common edge, and each tile
+ * is built at the same level of detail with normals found from the height map
+ * itself, so the borders between tiles are seamless. A limited number of tiles
+ * are uploaded to the GPU each frame so that the frame time remains steady while
+ * new tiles are paged in.
+ *
+ * The tiles are only paged on the GL thread. The heights of the tiles on the
+ * heap are published to other threads, such as the simulation, as a read-only
+ * map that is replaced whenever a tile is added or released.
+ */
+public class TiledTerrain
+{
+	// the number of cells along each side of a tile; tiles share their edges
+	public static final int TILE_CELLS = 64;
+	public static final int TILE_LOD   = 6;
+	
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+		new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Tile Loader");
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		});
+	
+	private HeightMap map;
+	
+	private float spacing; // the distance between heights
+	private float tileLength;
+	
+	private int columns; // the number of tiles along each axis
+	private int rows;
+	
+	public Texture texture;
+	
+	// the number of tiles kept around each car in each direction
+	public int radius = 3;
+	
+	public int heapBudget = 96;
+	public int  gpuBudget = 64;
+	
+	public int uploadsPerFrame = 1;
+	
+	// the tiles on the heap, ordered from the least to the most recently used
+	private LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(256, 0.75f, true);
+	
+	// the tiles that have been uploaded, ordered from the least to the most recently used
+	private LinkedHashMap<Long, Tile> uploaded = new LinkedHashMap<Long, Tile>(128, 0.75f, true);
+	
+	private Set<Long> pending = new HashSet<Long>();
+	private Set<Long> visible = new HashSet<Long>();
+	
+	private ConcurrentLinkedQueue<Tile> loaded = new ConcurrentLinkedQueue<Tile>();
+	
+	// the keys of the tiles that could not be loaded, and the last error raised by the loader
+	private ConcurrentLinkedQueue<Long> failed = new ConcurrentLinkedQueue<Long>();
+	private volatile Exception error;
+	
+	// the tiles that failed to load while visible, which are requested again once next visible
+	private Set<Long> broken = new HashSet<Long>();
+	private int failures = 0;
+	
+	// the heights of the tiles on the heap, as last published by the GL thread
+	private volatile Map<Long, float[][]> resident = Collections.emptyMap();
+	private boolean changed = false;
+	
+	public TiledTerrain(String fileName, float spacing, Texture texture) throws IOException
+	{
+		map = new HeightMap(fileName);
+		
+		this.spacing = spacing;
+		this.texture = texture;
+		
+		tileLength = spacing * TILE_CELLS;
+		
+		columns = (map.getColumns() - 1 + TILE_CELLS - 1) / TILE_CELLS;
+		rows    = (map.getRows()    - 1 + TILE_CELLS - 1) / TILE_CELLS;
+	}
+	
+	public float getLength() { return (map.getColumns() - 1) * spacing; }
+	
+	public float getWidth() { return (map.getRows() - 1) * spacing; }
+	
+	private static long getKey(int i, int j) { return ((long) i << 32) | (j & 0xFFFFFFFFL); }
+	
+	/**
+	 * Pages in the tiles around the positions passed as parameters and releases
+	 * those that exceed the budgets; this method must be called on the GL thread
+	 * once per frame before the terrain is rendered. Returns the number of tiles
+	 * that have failed to load since the last call, the cause of which is given by
+	 * <code>getError()</code>.
+	 */
+	public int update(GL2 gl, List<float[]> positions)
+	{
+		selectTiles(positions, Math.min(heapBudget, gpuBudget));
+		
+		Tile tile;
+		
+		while((tile = loaded.poll()) != null)
+		{
+			pending.remove(tile.key);
+			tiles.put(tile.key, tile);
+			changed = true;
+		}
+		
+		Long failure;
+		int failedTiles = 0;
+		
+		while((failure = failed.poll()) != null)
+		{
+			pending.remove(failure);
+			broken.add(failure);
+			failedTiles++;
+		}
+		
+		failures += failedTiles;
+		
+		// a tile that failed is not requested again until it has left the view
+		broken.retainAll(visible);
+		
+		int uploads = 0;
+		
+		for(Long key : visible)
+		{
+			tile = tiles.get(key); // marks the tile as recently used
+			
+			if(tile == null)
+			{
+				if(!broken.contains(key) && pending.add(key))
+					executor.execute(new Loader((int) (key >> 32), (int) (long) key));
+			}
+			else if(uploaded.get(key) == null && uploads < uploadsPerFrame)
+			{
+				tile.tree.upload(gl);
+				uploaded.put(key, tile);
+				uploads++;
+			}
+		}
+		
+		evict(gl, uploaded, gpuBudget, false);
+		evict(gl, tiles, heapBudget, true);
+		
+		if(changed) publish();
+		
+		return failedTiles;
+	}
+	
+	// the number of tiles that have failed to load, and the last exception raised by doing so
+	public int getFailures() { return failures; }
+	
+	public Exception getError() { return error; }
+	
+	/**
+	 * Marks as visible the tiles within the radius of each position, ring by ring
+	 * outwards from the tile beneath each, until <code>limit</code> tiles have been
+	 * marked; the cars share the tiles nearest to them before any further tiles.
+	 */
+	private void selectTiles(List<float[]> positions, int limit)
+	{
+		visible.clear();
+		
+		for(int ring = 0; ring <= radius; ring++)
+		{
+			for(float[] p : positions)
+			{
+				int _i = (int) Math.floor(p[0] / tileLength);
+				int _j = (int) Math.floor(p[2] / tileLength);
+				
+				for(int i = Math.max(_i - ring, 0); i <= Math.min(_i + ring, columns - 1); i++)
+				{
+					for(int j = Math.max(_j - ring, 0); j <= Math.min(_j + ring, rows - 1); j++)
+					{
+						// the tiles inside the ring have already been marked
+						if(Math.max(Math.abs(i - _i), Math.abs(j - _j)) != ring) continue;
+						
+						if(visible.size() == limit) return;
+						visible.add(getKey(i, j));
+					}
+				}
+			}
+		}
+	}
+	
+	// replaces the heights read by getHeights() with those of the tiles now on the heap
+	private void publish()
+	{
+		Map<Long, float[][]> heights = new HashMap<Long, float[][]>();
+		for(Tile tile : tiles.values()) heights.put(tile.key, tile.heights);
+		
+		resident = Collections.unmodifiableMap(heights);
+		changed = false;
+	}
+	
+	// releases the least recently used tiles that are not visible until within the budget
+	private void evict(GL2 gl, LinkedHashMap<Long, Tile> tiles, int budget, boolean heap)
+	{
+		Iterator<Tile> iterator = tiles.values().iterator();
+		
+		while(tiles.size() > budget && iterator.hasNext())
+		{
+			Tile tile = iterator.next();
+			if(visible.contains(tile.key)) continue;
+			
+			tile.tree.deleteBuffers(gl);
+			iterator.remove();
+			
+			if(heap) { uploaded.remove(tile.key); changed = true; }
+		}
+	}
+	
+	public void render(GL2 gl)
+	{
+		for(Long key : visible)
+		{
+			Tile tile = uploaded.get(key);
+			if(tile != null) tile.tree.render(gl);
+		}
+	}
+	
+	// releases every tile along with its buffer objects
+	public void delete(GL2 gl)
+	{
+		for(Tile tile : tiles.values()) tile.tree.deleteBuffers(gl);
+		
+		tiles.clear();
+		uploaded.clear();
+		visible.clear();
+		loaded.clear();
+		pending.clear();
+		failed.clear();
+		broken.clear();
+		
+		publish();
+	}
+	
+	public int tileCount() { return tiles.size(); }
+	
+	public int uploadCount() { return uploaded.size(); }
+	
+	/**
+	 * Samples the height of the terrain at each point (x, z) by bilinear
+	 * interpolation. The heights are read from the tile covering the point if it
+	 * was on the heap when the tiles were last published, so that they match the
+	 * geometry rendered, otherwise from the mapped height map. This method may be
+	 * called from any thread.
+	 */
+	public void getHeights(float[] x, float[] z, float[] heights, int count)
+	{
+		Map<Long, float[][]> resident = this.resident;
+		
+		for(int k = 0; k < count; k++)
+		{
+			float u = x[k] / spacing;
+			float v = z[k] / spacing;
+			
+			int a = (int) Math.floor(u);
+			int b = (int) Math.floor(v);
+			
+			float s = u - a;
+			float t = v - b;
+			
+			int i = Math.max(0, Math.min(a / TILE_CELLS, columns - 1));
+			int j = Math.max(0, Math.min(b / TILE_CELLS, rows    - 1));
+			
+			float[][] tile = resident.get(getKey(i, j));
+			
+			float h00, h01, h10, h11;
+			
+			if(tile != null)
+			{
+				// the heights of the tile are offset by its border
+				int _a = Math.max(0, Math.min(a - i * TILE_CELLS + 1, TILE_CELLS + 1));
+				int _b = Math.max(0, Math.min(b - j * TILE_CELLS + 1, TILE_CELLS + 1));
+				
+				h00 = tile[_a    ][_b    ]; h01 = tile[_a    ][_b + 1];
+				h10 = tile[_a + 1][_b    ]; h11 = tile[_a + 1][_b + 1];
+			}
+			else
+			{
+				h00 = map.getHeight(a    , b    ); h01 = map.getHeight(a    , b + 1);
+				h10 = map.getHeight(a + 1, b    ); h11 = map.getHeight(a + 1, b + 1);
+			}
+			
+			heights[k] = (1 - s) * ((1 - t) * h00 + t * h01) + s * ((1 - t) * h10 + t * h11);
+		}
+	}
+	
+	private class Tile
+	{
+		long key;
+		
+		// the heights of the tile surrounded by a border of one height
+		float[][] heights;
+		
+		Quadtree tree;
+	}
+	
+	/**
+	 * Reads the heights of a tile and builds its quadtree off the GL thread. If
+	 * the tile cannot be loaded its key and the exception are posted back to the
+	 * GL thread, which reports the failure from update() and requests the tile
+	 * again once it has left the view and returned.
+	 */
+	private class Loader implements Runnable
+	{
+		int i, j;
+		
+		public Loader(int i, int j)
+		{
+			this.i = i;
+			this.j = j;
+		}
+		
+		public void run()
+		{
+			try
+			{
+				Tile tile = new Tile();
+				tile.key = getKey(i, j);
+				
+				tile.heights = new float[TILE_CELLS + 3][TILE_CELLS + 3];
+				map.read(i * TILE_CELLS - 1, j * TILE_CELLS - 1, tile.heights);
+				
+				float half = tileLength / 2;
+				
+				Quadtree tree = new Quadtree(half, TILE_CELLS / 2, 0, texture, TILE_LOD);
+				tree.enableTexture = texture != null;
+				tree.translate(new float[] {i * tileLength + half, 0, j * tileLength + half});
+				tree.setHeights(tile.heights, 1);
+				tree.trimIndices();
+				
+				tree.malleable = false;
+				tree.enableBumpmap = false;
+				tree.enableCaustic = false;
+				
+				tile.tree = tree;
+				
+				loaded.add(tile);
+			}
+			catch(Exception e)
+			{
+				error = e;
+				failed.add(getKey(i, j));
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package bates.jamie.graphics.entity;
+
+import java.util.Arrays;
+
+/**
+ * This class maps integer keys to vertex indices using an open-addressed hash
+ * table with linear probing. Keys and values are stored in primitive arrays so
+ * that no objects are created per vertex, and lookups are performed in constant
+ * time regardless of the size of the quadtree hierarchy.
+ *
+ * Keys must be non-negative; a negative key is used to mark an empty slot.
+ */
+public class VertexIndex
+{
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private int[] keys;
+	private int[] values;
+	
+	private int size = 0;
+	private int mask;
+	
+	public VertexIndex()
+	{
+		allocate(INITIAL_CAPACITY);
+	}
+	
+	private void allocate(int capacity)
+	{
+		keys   = new int[capacity];
+		values = new int[capacity];
+		
+		Arrays.fill(keys, EMPTY);
+		
+		mask = capacity - 1;
+	}
+	
+	private static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Returns the vertex index associated with <code>key</code>, or an invalid
+	 * index of -1 if the key is not stored.
+	 */
+	public int get(int key)
+	{
+		if(key < 0) return -1;
+		
+		for(int i = hash(key) & mask; ; i = (i + 1) & mask)
+		{
+			if(keys[i] == key  ) return values[i];
+			if(keys[i] == EMPTY) return -1;
+		}
+	}
+	
+	public void put(int key, int value)
+	{
+		if(key < 0) return;
+		
+		// keep the load factor at or below one half
+		if((size + 1) * 2 > keys.length) rehash(keys.length * 2);
+		
+		int i = hash(key) & mask;
+		
+		while(keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+		
+		if(keys[i] == EMPTY) size++;
+		
+		keys  [i] = key;
+		values[i] = value;
+	}
+	
+	private void rehash(int capacity)
+	{
+		int[] _keys   = keys;
+		int[] _values = values;
+		
+		allocate(capacity);
+		
+		for(int i = 0; i < _keys.length; i++)
+		{
+			if(_keys[i] == EMPTY) continue;
+			
+			int j = hash(_keys[i]) & mask;
+			while(keys[j] != EMPTY) j = (j + 1) & mask;
+			
+			keys  [j] = _keys  [i];
+			values[j] = _values[i];
+		}
+	}
+	
+	public int size() { return size; }
+	
+	public void clear()
+	{
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+}
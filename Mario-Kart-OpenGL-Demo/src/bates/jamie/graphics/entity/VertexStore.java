@@ -0,0 +1,290 @@
+package bates.jamie.graphics.entity;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import bates.jamie.graphics.util.RGB;
+import bates.jamie.graphics.util.Vector;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * This class stores the vertex attributes of an entire quadtree hierarchy as
+ * flat, primitive arrays rather than as a list of small arrays per vertex.
+ *
+ * Each attribute is held in a single direct buffer that is passed straight to
+ * OpenGL, so there is no separate copy of the geometry to keep synchronised.
+ * Vertices are referenced by index, and the buffers are grown (doubled) as the
+ * quadtree is subdivided rather than being allocated at the maximum LOD.
+ *
+ * Every write marks the vertex as dirty so that modified data can later be
+ * copied to the GPU as a small number of contiguous ranges.
+ */
+public class VertexStore
+{
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	// clean vertices separating two dirty ranges before they are merged
+	private static final int MERGE_GAP = 32;
+
+	private int size = 0;
+	private int capacity;
+
+	FloatBuffer vBuffer; // positions      (x, y, z)
+	FloatBuffer nBuffer; // normals        (x, y, z)
+	FloatBuffer tBuffer; // texture coords (s, t)
+	FloatBuffer cBuffer; // colors         (r, g, b)
+	FloatBuffer aBuffer; // tangents       (x, y, z)
+
+	// original heights used for color and deformation calculations
+	private float[] heights;
+
+	/*
+	 * Heights of vertices that have been deformed while the quadtree was not
+	 * malleable; these are used for coloring but are not rendered. The array
+	 * is only allocated once such a deformation occurs.
+	 */
+	private float[] detached;
+
+	boolean textured;
+	
+	private BitSet dirty = new BitSet();
+
+	public VertexStore(int capacity, boolean textured)
+	{
+		this.capacity = Math.max(capacity, 4);
+		this.textured = textured;
+
+		vBuffer = Buffers.newDirectFloatBuffer(this.capacity * 3);
+		nBuffer = Buffers.newDirectFloatBuffer(this.capacity * 3);
+		tBuffer = Buffers.newDirectFloatBuffer(this.capacity * 2);
+		cBuffer = Buffers.newDirectFloatBuffer(this.capacity * 3);
+		aBuffer = Buffers.newDirectFloatBuffer(this.capacity * 3);
+
+		heights = new float[this.capacity];
+	}
+
+	public VertexStore(boolean textured)
+	{
+		this(INITIAL_CAPACITY, textured);
+	}
+
+	public int size() { return size; }
+
+	public int capacity() { return capacity; }
+
+	/**
+	 * Appends a new vertex to the store and returns its index. The original
+	 * height of the vertex is recorded and its color is set to white so that
+	 * the final color is sampled using the texture.
+	 */
+	public int add(float x, float y, float z)
+	{
+		if(size == capacity) ensureCapacity(capacity * 2);
+
+		int i = size++;
+
+		vBuffer.put(i * 3, x); vBuffer.put(i * 3 + 1, y); vBuffer.put(i * 3 + 2, z);
+		setColor(i, RGB.WHITE_3F);
+		dirty.set(i);
+
+		heights[i] = y;
+		if(detached != null) detached[i] = y;
+
+		return i;
+	}
+
+	public int add(float[] vertex)
+	{
+		return add(vertex[0], vertex[1], vertex[2]);
+	}
+
+	public void ensureCapacity(int capacity)
+	{
+		if(capacity <= this.capacity) return;
+
+		vBuffer = grow(vBuffer, capacity * 3, size * 3);
+		nBuffer = grow(nBuffer, capacity * 3, size * 3);
+		tBuffer = grow(tBuffer, capacity * 2, size * 2);
+		cBuffer = grow(cBuffer, capacity * 3, size * 3);
+		aBuffer = grow(aBuffer, capacity * 3, size * 3);
+
+		heights = Arrays.copyOf(heights, capacity);
+		if(detached != null) detached = Arrays.copyOf(detached, capacity);
+
+		this.capacity = capacity;
+	}
+
+	private static FloatBuffer grow(FloatBuffer buffer, int capacity, int length)
+	{
+		FloatBuffer _buffer = Buffers.newDirectFloatBuffer(capacity);
+
+		buffer.position(0);
+		buffer.limit(length);
+
+		_buffer.put(buffer);
+		_buffer.position(0);
+
+		return _buffer;
+	}
+
+	public float getX(int i) { return vBuffer.get(i * 3    ); }
+	public float getZ(int i) { return vBuffer.get(i * 3 + 2); }
+
+	/**
+	 * Returns the current height of the vertex at index <code>i</code>; this
+	 * includes any deformation made while the quadtree was not malleable.
+	 */
+	public float getY(int i)
+	{
+		return (detached != null) ? detached[i] : vBuffer.get(i * 3 + 1);
+	}
+
+	// returns the height of the vertex as it is rendered
+	public float getRenderedY(int i) { return vBuffer.get(i * 3 + 1); }
+	
+	public float[] getVertex(int i)
+	{
+		return new float[] {getX(i), getY(i), getZ(i)};
+	}
+
+	public void setVertex(int i, float x, float y, float z)
+	{
+		vBuffer.put(i * 3, x); vBuffer.put(i * 3 + 2, z);
+		setY(i, y);
+		dirty.set(i);
+	}
+
+	public void setY(int i, float y)
+	{
+		setY(i, y, true);
+	}
+
+	/**
+	 * Sets the height of the vertex at index <code>i</code>. If the argument
+	 * <code>render</code> is <code>false</code>, the rendered geometry is left
+	 * unchanged and only the height used for coloring is updated.
+	 */
+	public void setY(int i, float y, boolean render)
+	{
+		if(render)
+		{
+			vBuffer.put(i * 3 + 1, y);
+			if(detached != null) detached[i] = y;
+			dirty.set(i);
+		}
+		else
+		{
+			if(detached == null) detach();
+			detached[i] = y;
+		}
+	}
+
+	private void detach()
+	{
+		detached = new float[capacity];
+
+		for(int i = 0; i < size; i++) detached[i] = vBuffer.get(i * 3 + 1);
+	}
+
+	public float getHeight(int i) { return heights[i]; }
+
+	public void setHeight(int i, float height) { heights[i] = height; }
+
+	/**
+	 * This method returns <code>true</code> if the vertex at index <code>i</code>
+	 * is equal to the point <code>p</code> within the tolerance used by the
+	 * <code>Vector.equal()</code> method.
+	 */
+	public boolean equal(int i, float[] p)
+	{
+		return Math.abs(p[0] - getX(i)) <= Vector.EPSILON &&
+			   Math.abs(p[1] - getY(i)) <= Vector.EPSILON &&
+			   Math.abs(p[2] - getZ(i)) <= Vector.EPSILON;
+	}
+
+	public float[] getNormal(int i)
+	{
+		return new float[] {nBuffer.get(i * 3), nBuffer.get(i * 3 + 1), nBuffer.get(i * 3 + 2)};
+	}
+
+	public void setNormal(int i, float[] normal)
+	{
+		nBuffer.put(i * 3, normal[0]); nBuffer.put(i * 3 + 1, normal[1]); nBuffer.put(i * 3 + 2, normal[2]);
+		dirty.set(i);
+	}
+
+	public float getS(int i) { return tBuffer.get(i * 2    ); }
+	public float getT(int i) { return tBuffer.get(i * 2 + 1); }
+
+	public float[] getTexCoord(int i)
+	{
+		return new float[] {getS(i), getT(i)};
+	}
+
+	public void setTexCoord(int i, float s, float t)
+	{
+		tBuffer.put(i * 2, s); tBuffer.put(i * 2 + 1, t);
+		dirty.set(i);
+	}
+
+	public void setTexCoord(int i, float[] texCoord)
+	{
+		setTexCoord(i, texCoord[0], texCoord[1]);
+	}
+
+	public void setColor(int i, float[] color)
+	{
+		cBuffer.put(i * 3, color[0]); cBuffer.put(i * 3 + 1, color[1]); cBuffer.put(i * 3 + 2, color[2]);
+		dirty.set(i);
+	}
+
+	public float[] getTangent(int i)
+	{
+		return new float[] {aBuffer.get(i * 3), aBuffer.get(i * 3 + 1), aBuffer.get(i * 3 + 2)};
+	}
+
+	public void setTangent(int i, float[] tangent)
+	{
+		aBuffer.put(i * 3, tangent[0]); aBuffer.put(i * 3 + 1, tangent[1]); aBuffer.put(i * 3 + 2, tangent[2]);
+		dirty.set(i);
+	}
+	
+	public boolean isDirty() { return !dirty.isEmpty(); }
+	
+	public void markDirty(int i) { dirty.set(i); }
+	
+	/**
+	 * Returns the modified vertices as a list of <code>{first, count}</code>
+	 * pairs in ascending order. Ranges separated by only a few clean vertices
+	 * are merged, as a single larger copy is cheaper than many small ones.
+	 */
+	public List<int[]> getDirtyRanges()
+	{
+		List<int[]> ranges = new ArrayList<int[]>();
+		
+		int first = dirty.nextSetBit(0);
+		
+		while(first >= 0)
+		{
+			int last = dirty.nextClearBit(first);
+			int next = dirty.nextSetBit(last);
+			
+			while(next >= 0 && next - last <= MERGE_GAP)
+			{
+				last = dirty.nextClearBit(next);
+				next = dirty.nextSetBit(last);
+			}
+			
+			ranges.add(new int[] {first, last - first});
+			first = next;
+		}
+		
+		return ranges;
+	}
+	
+	public void clearDirty() { dirty.clear(); }
+}
@@ -111,21 +111,80 @@ public class Console
 	private void parseQuadtree(Scanner cmd)
 	{
 		String _cmd = cmd.next();
-		Quadtree tree = scene.getTerrain().tree;
+		final Quadtree tree = scene.getTerrain().tree;
 		
 		     if(_cmd.equalsIgnoreCase( "wireframe")) parseWireframe(cmd);
-		else if(_cmd.equalsIgnoreCase( "subdivide")) tree.subdivideAll();
-		else if(_cmd.equalsIgnoreCase(  "decimate")) tree.decimateAll(); 
+		else if(_cmd.equalsIgnoreCase( "subdivide"))
+		{
+			scene.queueTerrainEdit(new Runnable()
+			{
+				public void run() { tree.subdivideAll(); }
+			});
+		}
+		else if(_cmd.equalsIgnoreCase(  "decimate"))
+		{
+			scene.queueTerrainEdit(new Runnable()
+			{
+				public void run() { tree.decimateAll(); }
+			});
+		}
 		else if(_cmd.equalsIgnoreCase(       "lod")) tree.detail = cmd.nextInt();
 		else if(_cmd.equalsIgnoreCase(   "texture")) tree.scaleTexture(cmd.nextFloat());
 		else if(_cmd.equalsIgnoreCase("elasticity")) tree.elasticity = cmd.nextFloat();
+		else if(_cmd.equalsIgnoreCase(       "vbo")) tree.enableVBO = !tree.enableVBO;
+		else if(_cmd.equalsIgnoreCase(      "clod")) scene.getTerrain().enableLOD = !scene.getTerrain().enableLOD;
+		else if(_cmd.equalsIgnoreCase(      "cull")) tree.enableCulling = !tree.enableCulling;
+		else if(_cmd.equalsIgnoreCase(    "timing"))
+		{
+			System.out.printf("Quadtree Render (%s): %.0f ns\n", tree.enableVBO ? "VBO" : "client arrays", tree.getRenderTime());
+			tree.resetRenderTime();
+		}
+		else if(_cmd.equalsIgnoreCase(      "undo")) scene.undoDeformation();
+		else if(_cmd.equalsIgnoreCase(      "redo")) scene.redoDeformation();
+		else if(_cmd.equalsIgnoreCase(      "save"))
+		{
+			final File file = new File(cmd.next());
+			
+			scene.queueTerrainEdit(new Runnable()
+			{
+				public void run()
+				{
+					try { tree.getJournal().save(file); }
+					catch(Exception e) { e.printStackTrace(); }
+				}
+			});
+		}
+		else if(_cmd.equalsIgnoreCase(      "load"))
+		{
+			final File file = new File(cmd.next());
+			
+			scene.queueTerrainEdit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						tree.getJournal().load(file);
+						scene.grassPatch.update = true;
+					}
+					catch(Exception e) { e.printStackTrace(); }
+				}
+			});
+		}
 		else if(_cmd.equalsIgnoreCase( "translate"))
 		{
-			float x = cmd.nextFloat();
-			float y = cmd.nextFloat();
-			float z = cmd.nextFloat();
+			final float x = cmd.nextFloat();
+			final float y = cmd.nextFloat();
+			final float z = cmd.nextFloat();
 			
-			tree.translate(new float[] {x, y, z});
+			scene.queueTerrainEdit(new Runnable()
+			{
+				public void run()
+				{
+					tree.translate(new float[] {x, y, z});
+					scene.getTerrain().invalidateIndex();
+				}
+			});
 		}
 	}
 	
@@ -191,6 +250,7 @@ public class Console
 		else if(_cmd.equalsIgnoreCase("heightMap")) parseHeightMap(cmd);
 		else if(_cmd.equalsIgnoreCase(  "foliage")) parseFoliage(cmd);
 		else if(_cmd.equalsIgnoreCase(  "texture")) map.scaleTexCoords(cmd.nextInt());
+		else if(_cmd.equalsIgnoreCase(   "stream")) scene.worldCommand = cmd.nextLine();
 	}
 	
 	private void parseFoliage(Scanner cmd)
@@ -285,6 +345,7 @@ public class Console
 			scene.background = new float[] {r, g, b};
 		}
 		else if(_cmd.equalsIgnoreCase("attenuation")) Scene.attenuation = cmd.nextFloat();  
+		else if(_cmd.equalsIgnoreCase(   "tickrate")) scene.getSimulation().setTickRate(cmd.nextInt());
 	}
 	
 	private void parseLight(Scanner cmd)
@@ -353,7 +414,7 @@ public class Console
 		String _cmd = cmd.next();
 		Terrain map = scene.getTerrain();
 		     
-		     if(_cmd.equalsIgnoreCase( "export")) map.export();
+		     if(_cmd.equalsIgnoreCase( "export")) map.export(cmd.hasNext() && cmd.next().equalsIgnoreCase("preview"));
 		else if(_cmd.equalsIgnoreCase("display")) map.displayMap();
 	}
 	
@@ -26,6 +26,7 @@ import bates.jamie.graphics.entity.Terrain;
 import bates.jamie.graphics.item.ItemRoulette;
 import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.RGB;
+import bates.jamie.graphics.util.CullCounter;
 import bates.jamie.graphics.util.TimeQuery;
 import bates.jamie.graphics.util.Vec3;
 import bates.jamie.graphics.util.Vector;
@@ -119,6 +120,7 @@ public class HUD
 				case RENDER_TIME_COMPONENTS: renderFrameTimeComponents(gl); break;
 				case UPDATE_TIMES: renderUpdateTimes(gl); break;
 				case UPDATE_TIME_COMPONENTS: renderUpdateTimeComponents(gl); break;
+				case CELL_COUNTS: renderCellCounts(gl); break;
 			}
 			
 			gl.glEnable(GL_LIGHTING);
@@ -273,6 +275,14 @@ public class HUD
 		renderer.draw("Banana Render: " + TimeQuery.getCache()[Scene.frameIndex][TimeQuery.ITEM_ID], 40, y - 490);
 		renderer.draw("Occlusion: " + (Scene.enableOcclusion ? "Enabled" : "Disabled"), 40, y - 520);
 		
+		if(mode == GraphMode.CELL_COUNTS)
+		{
+			int[][] counts = CullCounter.getCache()[Scene.frameIndex];
+			
+			for(int i = 0; i < counts.length; i++)
+				renderer.draw(CullCounter.PASS_NAMES[i] + " Cells: " + counts[i][0] + " / " + (counts[i][0] + counts[i][1]), 40, y - 550 - i * 30);
+		}
+		
 		Vec3 p = car.getPosition();
 		
 		int x = scene.getWidth() - 200;
@@ -458,6 +468,60 @@ public class HUD
 		gl.glEnd();
 	}
 	
+	/**
+	 * Renders the number of terrain cells drawn by each pass as stacked bars, each
+	 * followed by the number of cells culled in a darker shade. The bars are scaled
+	 * to the largest total over the frames displayed.
+	 */
+	private void renderCellCounts(GL2 gl)
+	{
+		int frameIndex = Scene.frameIndex;
+		int[][][] counts = CullCounter.getCache();
+		
+		int height = scene.getHeight();
+		
+		float[][] colors = {RGB.GREEN, RGB.BLUE, RGB.YELLOW, RGB.VIOLET};
+		float[] color = {};
+		
+		int maximum = 1;
+		
+		for(int i = 0; i < counts.length; i++)
+		{
+			int total = 0;
+			for(int j = 0; j < counts[0].length; j++) total += counts[i][j][0] + counts[i][j][1];
+			maximum = Math.max(maximum, total);
+		}
+		
+		float scale = 200.0f / maximum;
+		
+		gl.glBegin(GL_LINES);
+		{
+			for(int i = 0; i < counts.length; i++)
+			{
+				float y = height - 50;
+				
+				for(int j = 0; j < counts[0].length; j++)
+				{
+					for(int k = 0; k < 2; k++)
+					{
+						     if(i == frameIndex    ) color = RGB.RED;
+						else if(i == frameIndex - 1) color = RGB.ORANGE;
+						
+						else color = colors[j];
+						
+						float shade = (k == 0) ? 1.0f : 0.4f; // culled cells are darker
+						
+						gl.glColor3f(color[0]/255 * shade, color[1]/255 * shade, color[2]/255 * shade);
+						
+						gl.glVertex2f(50 + (i * 2), y);
+						gl.glVertex2f(50 + (i * 2), y -= (counts[i][j][k] * scale));
+					}
+				}	
+			}
+		}
+		gl.glEnd();
+	}
+	
 	public void setTextColor(Color color) { textColor = color; }
 	
 	public void nextComponent()
@@ -499,7 +563,8 @@ public class HUD
 		RENDER_TIMES,
 		RENDER_TIME_COMPONENTS,
 		UPDATE_TIMES,
-		UPDATE_TIME_COMPONENTS;
+		UPDATE_TIME_COMPONENTS,
+		CELL_COUNTS;
 		
 		public static GraphMode cycle(GraphMode mode)
 		{
@@ -515,6 +580,7 @@ public class HUD
 				case RENDER_TIME_COMPONENTS: return "Render Times";
 				case UPDATE_TIMES:           return "Update Times";
 				case UPDATE_TIME_COMPONENTS: return "Update Times (Components)";
+				case CELL_COUNTS:            return "Cells Drawn (Main, Shadow, Depth, Environment)";
 			}
 			
 			return name();
@@ -164,8 +164,13 @@ public class Banana extends Item
 	@Override
 	public void update()
 	{
-		if(thrown && falling) setPosition(getPositionVector());
-		if(falling) fall();
+		if(falling)
+		{
+			Vec3 p = thrown ? getPositionVector() : new Vec3(getPosition());
+			p.y -= getFallDistance();
+			
+			sweep(p);
+		}
 		
 		detectCollisions();
 		resolveCollisions();
@@ -178,7 +178,7 @@ public class BlueShell extends Shell
 			setPosition(getPositionVector());
 			if(falling) fall();
 	
-			for(Bound bound : scene.getBounds())
+			for(Bound bound : scene.getBounds(this.bound))
 				if(bound.testBound(this.bound))
 					{ destroy(); break; }
 			
@@ -188,14 +188,14 @@ public class BlueShell extends Shell
 				if(bound.c.y - bound.getMaximumExtent() <= h) destroy();
 			}
 	
-			rotation += 10 * velocity;
+			rotation += 10 * velocity * Scene.timeStep;
 		}
 		else if(blastDuration > 0)
 		{
 			bound = new Sphere(getPosition(), blastRadius);
-			blastRadius += blastSpeed;
-			blastSpeed *= 0.9f;
-			blastDuration--;
+			blastRadius += blastSpeed * Scene.timeStep;
+			blastSpeed *= (float) Math.pow(0.9, Scene.timeStep);
+			blastDuration = Math.max(0, blastDuration - Scene.stepFrames);
 			
 			List<Particle> toRemove = new ArrayList<Particle>();
 			
@@ -87,7 +87,7 @@ public class FakeItemBox extends Item
 		velocity = 1.0f;
 	}
 	
-	public static void increaseRotation() { rotation -= 4; }
+	public static void increaseRotation() { rotation -= 4 * Scene.timeStep; }
 	
 	@Override
 	public void rebound(Bound b)
@@ -219,8 +219,13 @@ public class FakeItemBox extends Item
 	@Override
 	public void update()
 	{
-		if(thrown && falling) setPosition(getPositionVector());
-		if(falling) fall();
+		if(falling)
+		{
+			Vec3 p = thrown ? getPositionVector() : new Vec3(getPosition());
+			p.y -= getFallDistance();
+			
+			sweep(p);
+		}
 		
 		detectCollisions();
 		resolveCollisions();
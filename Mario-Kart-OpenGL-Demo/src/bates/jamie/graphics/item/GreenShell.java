@@ -107,13 +107,15 @@ public class GreenShell extends Shell
 		durability--;
 	}
 	
-	public void decelerate() { if(velocity > MIN_VELOCITY) velocity -= ACCELERATION; }
+	public void decelerate() { if(velocity > MIN_VELOCITY) velocity -= ACCELERATION * Scene.timeStep; }
 	
 	@Override
 	public void update()
 	{
-		setPosition(getPositionVector());
-		if(falling) fall();
+		Vec3 p = getPositionVector();
+		if(falling) p.y -= getFallDistance();
+		
+		sweep(p);
 		
 		detectCollisions();
 		resolveCollisions();
@@ -123,7 +125,7 @@ public class GreenShell extends Shell
 		float[] heights = scene.enableTerrain ? getHeights(scene.getTerrain()) : getHeights();
 
 		setRotation(getRotationAngles(heights));
-		rotation += 10 * velocity;
+		rotation += 10 * velocity * Scene.timeStep;
 		
 		if(durability < 1) destroy();
 	}
@@ -14,6 +14,7 @@ import bates.jamie.graphics.collision.Bound;
 import bates.jamie.graphics.collision.OBB;
 import bates.jamie.graphics.entity.Car;
 import bates.jamie.graphics.entity.Quadtree;
+import bates.jamie.graphics.entity.QuadtreeIndex;
 import bates.jamie.graphics.entity.Terrain;
 import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.OccludeQuery;
@@ -57,12 +58,28 @@ public abstract class Item
 	public List<Bound> collisions = new ArrayList<Bound>();
 	protected float[] heights = {0, 0, 0, 0};
 	
+	// the axis vectors written by getAxisVectors(float[]), and their horizontal coordinates packed for height sampling
+	private float[] axisVectors = new float[12];
+	private float[] sampleX = new float[4];
+	private float[] sampleZ = new float[4];
+	private Vec3 corner = new Vec3();
+	
+	// the level of the height pyramids used to tell whether the item is clearly above the terrain
+	public static final int HEIGHT_PRECISION = 0;
+	
+	private float[] bounds = new float[3];
+	
 	protected float[] boundColor;
 	
 	public boolean thrown = true;
 	
 	public boolean dead = false;
 	
+	// items are moved slightly into the first bound they strike, so that the collision is then detected
+	public static final float CONTACT_DEPTH = 0.01f;
+	
+	private Vec3 displacement = new Vec3();
+	
 	public static void toggleBoundFrames() { boundFrames = !boundFrames; }
 	public static void toggleBoundSolids() { boundSolids = !boundSolids; }
 	
@@ -174,11 +191,66 @@ public abstract class Item
 	
 	public abstract void collide(Car car);
 	
-	public void fall()
+	public void fall() { bound.c.y -= getFallDistance(); }
+	
+	protected float getFallDistance()
+	{
+		if(fallRate < TOP_FALL_RATE) fallRate += gravity * Scene.timeStep;
+		return fallRate * Scene.timeStep;
+	}
+	
+	/**
+	 * Moves the item to the position <code>p</code>, unless it would strike a
+	 * static bound or a car on the way, however far it moves in one update. The
+	 * item is then stopped just inside the first bound it strikes, so that the
+	 * collision is handled as usual by <code>detectCollisions()</code> and
+	 * <code>update(cars)</code>. Bounds that the item already intersects are
+	 * ignored, as these are found by the same tests.
+	 */
+	public void sweep(Vec3 p)
 	{
-		if(fallRate < TOP_FALL_RATE) fallRate += gravity;
-		bound.c.y -= fallRate;
-	} 
+		Vec3 d = displacement;
+		
+		d.x = p.x - bound.c.x;
+		d.y = p.y - bound.c.y;
+		d.z = p.z - bound.c.z;
+		
+		float length = d.magnitude();
+		float t = 1;
+		
+		if(length > 0)
+		{
+			List<Bound> bounds = scene.getBounds(bound, d);
+			
+			for(int i = 0; i < bounds.size(); i++)
+			{
+				float impact = bound.sweepBound(bounds.get(i), d);
+				if(impact > 0 && impact < t) t = impact;
+			}
+			
+			List<Car> cars = scene.getCars();
+			
+			for(int i = 0; i < cars.size(); i++)
+			{
+				Car car = cars.get(i);
+				if(car.isInvisible()) continue;
+				
+				float impact = bound.sweepBound(car.bound, d);
+				if(impact > 0 && impact < t) t = impact;
+			}
+		}
+		
+		if(t < 1)
+		{
+			t = Math.min(t + CONTACT_DEPTH / length, 1);
+			
+			p.x = bound.c.x + d.x * t;
+			p.y = bound.c.y + d.y * t;
+			p.z = bound.c.z + d.z * t;
+		}
+		
+		setPosition(p);
+	}
 	
 	public abstract void update();
 	
@@ -253,6 +325,35 @@ public abstract class Item
 			bound.c.subtract(u.zAxis.multiply(radius)), // front
 		};
 	}
+	
+	/**
+	 * Writes the points returned by <code>getAxisVectors()</code> to the array
+	 * <code>vertices</code> as {x, y, z} triples, without creating any vectors.
+	 */
+	public void getAxisVectors(float[] vertices)
+	{
+		float radius = getMaximumExtent();
+		
+		setVertex(vertices, 0, u.xAxis, -radius); // left
+		setVertex(vertices, 1, u.xAxis,  radius); // right
+		setVertex(vertices, 2, u.zAxis,  radius); // back
+		setVertex(vertices, 3, u.zAxis, -radius); // front
+	}
+	
+	private void setVertex(float[] vertices, int i, Vec3 axis, float distance)
+	{
+		vertices[i * 3    ] = bound.c.x + axis.x * distance;
+		vertices[i * 3 + 1] = bound.c.y + axis.y * distance;
+		vertices[i * 3 + 2] = bound.c.z + axis.z * distance;
+	}
+	
+	// packs the horizontal coordinates of the axis vectors for height sampling
+	private void sampleAxisVectors()
+	{
+		getAxisVectors(axisVectors);
+		
+		for(int i = 0; i < 4; i++) { sampleX[i] = axisVectors[i * 3]; sampleZ[i] = axisVectors[i * 3 + 2]; }
+	}
 	 
 	public void rebound(Bound b)
 	{
@@ -301,11 +402,15 @@ public abstract class Item
 		
 		if(face.equals(obb.getUpVector(1)))
 		{
-			Vec3[] vertices = getAxisVectors();
+			getAxisVectors(axisVectors);
 
 			for(int i = 0; i < 4; i++)
 			{
-				float h = obb.closestPointOnPerimeter(vertices[i]).y;
+				corner.x = axisVectors[i * 3];
+				corner.y = axisVectors[i * 3 + 1];
+				corner.z = axisVectors[i * 3 + 2];
+				
+				float h = obb.closestPointOnPerimeter(corner).y;
 				if(h > heights[i]) heights[i] = h;
 			}
 
@@ -321,18 +426,14 @@ public abstract class Item
 	
 	public float[] getHeights(Terrain map)
 	{
-		if(map.enableQuadtree) return getHeights(map.trees.values());
+		if(map.enableQuadtree) return getHeights(map.getIndex());
+		
+		sampleAxisVectors();
+		
+		if(isAirborne(map, null)) return heights;
+		
+		map.getHeights(sampleX, sampleZ, heights, 4);
 		
-		Vec3[] vertices = getAxisVectors();
-
-		for(int i = 0; i < 4; i++)
-		{
-			float[] vertex = vertices[i].toArray();
-			
-			float h = map.getHeight(vertex);
-			heights[i] = h;
-		}
-
 		setHeight();
 
 		return heights;
@@ -352,45 +453,49 @@ public abstract class Item
 		}
 	}
 	
-	public float[] getHeights(Collection<Quadtree> trees)
+	public float[] getHeights(QuadtreeIndex index)
 	{
-		Vec3[] vertices = getAxisVectors();
+		sampleAxisVectors();
 		
-		Quadtree[] _trees = new Quadtree[4];
+		if(isAirborne(null, index)) return heights;
 		
-		for(int i = 0; i < 4; i++)
-		{
-			float max = 0;
-			float[] vertex = vertices[i].toArray();
-			
-			for(Quadtree tree : trees)
-			{
-				Quadtree cell = tree.getCell(vertex, tree.detail);
-				float h = (cell != null) ? cell.getHeight(vertex) : 0;
-				if(h > max && !tree.enableBlending) { max = h; _trees[i] = tree; }
-			}
-
-			heights[i] = max;
-		}
+		index.getHeights(sampleX, sampleZ, heights, 4, 0, null);
 		
 		setHeight();
 		
 		return heights;
 	}
 	
-	public float[] getHeights(Quadtree tree, int lod)
+	/**
+	 * Returns <code>true</code> if the bottom of the item is above the highest
+	 * point of the terrain beneath each of its corners, according to the height
+	 * pyramids of the quadtrees (or of the map if <code>index</code> is null), in
+	 * which case it cannot land and the terrain need not be sampled exactly; the
+	 * average heights beneath the corners are used to orientate the item instead.
+	 */
+	private boolean isAirborne(Terrain map, QuadtreeIndex index)
 	{
-		Vec3[] vertices = getAxisVectors();
+		float bottom = bound.c.y - bound.getMaximumExtent();
 		
 		for(int i = 0; i < 4; i++)
 		{
-			float[] vertex = vertices[i].toArray();
+			if(index != null) index.getBounds(sampleX[i], sampleZ[i], HEIGHT_PRECISION, 0, bounds);
+			else if(!map.getBounds(sampleX[i], sampleZ[i], HEIGHT_PRECISION, bounds)) bounds[1] = bounds[2] = 0;
+			
+			if(bottom <= bounds[1]) return false;
 			
-			Quadtree cell = tree.getCell(vertex, lod);
-			float h = (cell == null) ? 0 : cell.getHeight(vertex);
-			heights[i] = h;
+			heights[i] = bounds[2];
 		}
 		
+		return true;
+	}
+	
+	public float[] getHeights(Quadtree tree, int lod)
+	{
+		sampleAxisVectors();
+		
+		tree.getHeights(sampleX, sampleZ, heights, 4, lod);
+		
 		setHeight();
 		
 		return heights;
@@ -400,10 +505,8 @@ public abstract class Item
 	{
 		collisions.clear();
 
-		for(Bound bound : scene.getBounds())
-			if(bound.testBound(this.bound))
-				collisions.add(bound);
+		bound.testBounds(scene.getBounds(bound), collisions);
 	}
 	
-	public Vec3 getPositionVector() { return bound.c.subtract(u.zAxis.multiply(velocity)); }
+	public Vec3 getPositionVector() { return bound.c.subtract(u.zAxis.multiply(velocity * Scene.timeStep)); }
 }
\ No newline at end of file
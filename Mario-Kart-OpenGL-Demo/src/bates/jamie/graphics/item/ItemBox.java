@@ -15,6 +15,7 @@ import bates.jamie.graphics.collision.Sphere;
 import bates.jamie.graphics.entity.Car;
 import bates.jamie.graphics.particle.Particle;
 import bates.jamie.graphics.particle.ParticleGenerator;
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Face;
 import bates.jamie.graphics.util.OBJParser;
 import bates.jamie.graphics.util.Vec3;
@@ -62,7 +63,7 @@ public class ItemBox
 	
 	public Vec3 getPosition() { return bound.c; }
 	
-	public static void increaseRotation() { rotation += 4; }
+	public static void increaseRotation() { rotation += 4 * Scene.timeStep; }
 	
 	public void render(GL2 gl, float trajectory)
 	{
@@ -136,10 +136,12 @@ public class RedShell extends Shell
 		if(target != null)
 			if(target.isInvisible()) locked = false; 
 		
-		if(velocity < TOP_SPEED && !locked) velocity += acceleration;
+		if(velocity < TOP_SPEED && !locked) velocity += acceleration * Scene.timeStep;
 		
-		setPosition(getPositionVector());
-		if(falling) fall();
+		Vec3 p = getPositionVector();
+		if(falling) p.y -= getFallDistance();
+		
+		sweep(p);
 		
 		detectCollisions();
 		resolveCollisions();
@@ -149,7 +151,7 @@ public class RedShell extends Shell
 		float[] heights = scene.enableTerrain ? getHeights(scene.getTerrain()) : getHeights();
 		
 		setRotation(getRotationAngles(heights));
-		rotation += 10 * velocity;	
+		rotation += 10 * velocity * Scene.timeStep;	
 	}
 	
 	@Override
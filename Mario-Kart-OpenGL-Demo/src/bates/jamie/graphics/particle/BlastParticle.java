@@ -17,6 +17,7 @@ import java.util.List;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 import com.jogamp.common.nio.Buffers;
@@ -175,6 +176,6 @@ public class BlastParticle extends Particle
 	public void update()
 	{
 		super.update();
-		t = t.multiply(0.9f);
+		t = t.multiply((float) Math.pow(0.9, Scene.timeStep));
 	}
 }
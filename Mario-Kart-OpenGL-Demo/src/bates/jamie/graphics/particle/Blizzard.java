@@ -13,9 +13,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.entity.QuadtreeIndex;
 import bates.jamie.graphics.entity.Terrain;
 import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
@@ -34,13 +36,26 @@ public class Blizzard
 	public FloatBuffer vBuffer;
 	public FloatBuffer cBuffer;
 	
-	Collection<Particle> droplets = new ArrayList<Particle>();
+	// splashes are added by the simulation and removed by the renderer
+	Collection<Particle> droplets = new ConcurrentLinkedQueue<Particle>();
 	
 	public Vec3 wind;
 	
 	public boolean enableSettling  = false;
 	public boolean enableSplashing = true; 
 	
+	// flakes that must be tested against the terrain, and their packed coordinates
+	private int  [] sampled       = new int  [0];
+	private float[] sampleX       = new float[0];
+	private float[] sampleZ       = new float[0];
+	private float[] sampleHeights = new float[0];
+	
+	// the level of the height pyramids used to rule out flakes that are clearly above or below the terrain
+	public int precision = 0;
+	public boolean enableBounds = true;
+	
+	private float[] bounds = new float[3];
+	
 	public static final int PRECIPITATION_RATE = 20;
 	
 	public enum StormType
@@ -125,6 +140,16 @@ public class Blizzard
 		
 		addParticles();
 		
+		if(sampled.length < flakes.size())
+		{
+			sampled       = new int  [flakes.size()];
+			sampleX       = new float[flakes.size()];
+			sampleZ       = new float[flakes.size()];
+			sampleHeights = new float[flakes.size()];
+		}
+		
+		int samples = 0;
+		
 		for(int i = 0; i < flakes.size(); i++)
 		{
 			WeatherParticle flake = flakes.get(i);
@@ -151,18 +176,83 @@ public class Blizzard
 				vBuffer.position(position);
 			}
 			
-			     if(type == StormType.SNOW && enableSettling && generator.nextBoolean() && flake.falling) settle(flake, i);
-			else if(type == StormType.RAIN && enableSplashing && generator.nextFloat() < 0.1f) splash(flake);
+			     if(type == StormType.SNOW && enableSettling && generator.nextBoolean() && flake.falling) sampled[samples++] = i;
+			else if(type == StormType.RAIN && enableSplashing && generator.nextFloat() < 0.1f) sampled[samples++] = i;
+		}
+		
+		Terrain terrain = scene.getTerrain();
+		
+		if(enableBounds && samples > 0) samples = cull(terrain.getIndex(), samples);
+		
+		if(samples > 0)
+		{
+			// sample the terrain beneath every flake that may settle or splash at once
+			for(int i = 0; i < samples; i++)
+			{
+				Vec3 c = flakes.get(sampled[i]).c;
+				sampleX[i] = c.x;
+				sampleZ[i] = c.z;
+			}
+			
+			terrain.getIndex().getHeights(sampleX, sampleZ, sampleHeights, samples, 0, null);
+			
+			for(int i = 0; i < samples; i++)
+			{
+				WeatherParticle flake = flakes.get(sampled[i]);
+				
+				switch(type)
+				{
+					case SNOW: settle(flake, sampled[i], sampleHeights[i]); break;
+					case RAIN: splash(flake, sampleHeights[i]); break;
+				}
+			}
 		}
 		
 		return System.nanoTime() - start;
 	}
 
-	private void splash(WeatherParticle flake)
+	/**
+	 * Removes the flakes whose outcome is decided by the bounds of the terrain
+	 * beneath them from those sampled, and returns the number that remain. Flakes
+	 * more than a unit above the surface can neither settle nor splash, while rain
+	 * more than a unit below it is returned to the sky.
+	 */
+	private int cull(QuadtreeIndex index, int samples)
 	{
-		Terrain terrain = scene.getTerrain();
-		float h = terrain.getHeight(terrain.trees.values(), flake.c.toArray());
+		int remaining = 0;
+		
+		for(int i = 0; i < samples; i++)
+		{
+			WeatherParticle flake = flakes.get(sampled[i]);
+			
+			index.getBounds(flake.c.x, flake.c.z, precision, 0, bounds);
+			
+			float y = flake.c.y;
+			
+			switch(type)
+			{
+				case SNOW: if(y > bounds[1]) continue; break;
+				case RAIN:
+				{
+					if(y > bounds[1] + 1) continue;
+					if(y < bounds[0] - 1)
+					{
+						flake.c = getSource();
+						flake.t = getRandomVector(0.25f);
+						continue;
+					}
+					break;
+				}
+			}
+			
+			sampled[remaining++] = sampled[i];
+		}
 		
+		return remaining;
+	}
+
+	private void splash(WeatherParticle flake, float h)
+	{
 		if(flake.c.y <= h + 1 && flake.c.y > h - 1)
 		{
 			for(int j = 0; j < 10; j++)
@@ -181,11 +271,8 @@ public class Blizzard
 		}
 	}
 
-	private void settle(WeatherParticle flake, int index)
+	private void settle(WeatherParticle flake, int index, float h)
 	{
-		Terrain terrain = scene.getTerrain();
-		float h = terrain.getHeight(terrain.trees.values(), flake.c.toArray());
-		
 		if(flake.c.y <= h)
 		{
 			flake.falling = false;
@@ -287,16 +374,11 @@ public class Blizzard
 			gl.glPointSize(6);
 			gl.glHint(GL2.GL_POINT_SMOOTH_HINT, GL2.GL_NICEST);
 			
-			vBuffer.flip();
-			cBuffer.flip();
-			
-			gl.glVertexPointer(3, GL_FLOAT, 0, vBuffer);
-			gl.glColorPointer (4, GL_FLOAT, 0, cBuffer);
+			// the buffers are read through copies of their positions, as the simulation may be writing to them
+			gl.glVertexPointer(3, GL_FLOAT, 0, rewind(vBuffer));
+			gl.glColorPointer (4, GL_FLOAT, 0, rewind(cBuffer));
 			gl.glDrawArrays(GL_POINTS, 0, flakes.size());
 			
-			vBuffer.position(vBuffer.limit()); vBuffer.limit(vBuffer.capacity());
-			cBuffer.position(cBuffer.limit()); cBuffer.limit(cBuffer.capacity());
-			
 			gl.glDisable(GL_BLEND);
 			gl.glEnable(GL_LIGHTING);
 			
@@ -324,16 +406,11 @@ public class Blizzard
 			gl.glPointSize(6);
 			gl.glHint(GL2.GL_POINT_SMOOTH_HINT, GL2.GL_NICEST);
 			
-			vBuffer.flip();
-			cBuffer.flip();
-			
-			gl.glVertexPointer(3, GL_FLOAT, 0, vBuffer);
-			gl.glColorPointer (4, GL_FLOAT, 0, cBuffer);
+			// the buffers are read through copies of their positions, as the simulation may be writing to them
+			gl.glVertexPointer(3, GL_FLOAT, 0, rewind(vBuffer));
+			gl.glColorPointer (4, GL_FLOAT, 0, rewind(cBuffer));
 			gl.glDrawArrays(GL2.GL_LINES, 0, flakes.size() * 2);
 			
-			vBuffer.position(vBuffer.limit()); vBuffer.limit(vBuffer.capacity());
-			cBuffer.position(cBuffer.limit()); cBuffer.limit(cBuffer.capacity());
-			
 			gl.glDisable(GL_BLEND);
 			gl.glEnable(GL_LIGHTING);
 			
@@ -349,6 +426,14 @@ public class Blizzard
 		if(!droplets.isEmpty()) renderDroplets(gl);
 	}
 
+	private static FloatBuffer rewind(FloatBuffer buffer)
+	{
+		FloatBuffer _buffer = buffer.duplicate();
+		_buffer.position(0);
+		
+		return _buffer;
+	}
+
 	private void renderDroplets(GL2 gl)
 	{
 		gl.glPushMatrix();
@@ -366,13 +451,15 @@ public class Blizzard
 			
 			gl.glColor4f(1, 1, 1, 0.2f);
 			
-			FloatBuffer vBuffer = Buffers.newDirectFloatBuffer(droplets.size() * 3);
-			for(Particle drop : droplets) { drop.update(); vBuffer.put(drop.c.toArray()); }
+			Particle[] drops = droplets.toArray(new Particle[0]);
+			
+			FloatBuffer vBuffer = Buffers.newDirectFloatBuffer(drops.length * 3);
+			for(Particle drop : drops) { drop.update(); vBuffer.put(drop.c.toArray()); }
 			
 			vBuffer.position(0);
 			
 			gl.glVertexPointer(3, GL_FLOAT, 0, vBuffer);
-			gl.glDrawArrays(GL2.GL_POINTS, 0, droplets.size());
+			gl.glDrawArrays(GL2.GL_POINTS, 0, drops.length);
 			
 			gl.glDisable(GL_BLEND);
 			gl.glEnable(GL_LIGHTING);
@@ -8,6 +8,7 @@ import java.util.Random;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 import com.jogamp.opengl.util.texture.Texture;
@@ -83,6 +84,6 @@ public class BoostParticle extends Particle
 	public void update()
 	{
 		super.update();
-		scale /= 2;
+		scale /= (float) Math.pow(2, Scene.timeStep);
 	}
 }
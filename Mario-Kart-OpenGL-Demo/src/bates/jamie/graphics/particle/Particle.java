@@ -7,6 +7,7 @@ import java.util.List;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 import com.jogamp.opengl.util.texture.Texture;
@@ -99,8 +100,8 @@ public abstract class Particle
 	
 	public void update()
 	{
-		c = c.add(t);
-		duration--;
+		c = c.add(t.multiply(Scene.timeStep));
+		duration -= Scene.stepFrames;
 	}
 	
 	public static void resetTexture() { current = reset; }
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Random;
 
 import bates.jamie.graphics.entity.Car;
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.RGB;
 import bates.jamie.graphics.util.Vec3;
 import bates.jamie.graphics.util.Vector;
@@ -49,12 +50,14 @@ public class ParticleGenerator
 	
 	public void setQuantity(int quantity) { this.quantity = quantity; }
 	
+	// returns true once every pulse frames
 	public boolean update()
 	{
-		counter++;
-		counter %= pulse;
+		counter += Scene.stepFrames;
+		if(counter < pulse) return false;
 		
-		return counter == 0;
+		counter %= pulse;
+		return true;
 	}
 	
 	public List<Particle> generate()
@@ -7,6 +7,7 @@ import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_LIGHTING;
 import javax.media.opengl.GL2;
 
 import bates.jamie.graphics.entity.Car;
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 public class SparkParticle extends Particle
@@ -77,9 +78,9 @@ public class SparkParticle extends Particle
 	@Override
 	public void update()
 	{
-		duration--;
+		duration -= Scene.stepFrames;
 		
-		if(car != null) origin = origin.subtract(car.getVector());
-		timer++;
+		if(car != null) origin = origin.subtract(car.getVector().multiply(Scene.timeStep));
+		timer += Scene.stepFrames;
 	}
 }
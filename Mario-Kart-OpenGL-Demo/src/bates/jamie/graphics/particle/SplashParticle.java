@@ -6,6 +6,7 @@ import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_LIGHTING;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 public class SplashParticle extends Particle
@@ -54,7 +55,7 @@ public class SplashParticle extends Particle
 	{
 		super.update();
 		
-		if(fallRate < TOP_FALL_RATE) fallRate += gravity;
-		c.y -= fallRate;
+		if(fallRate < TOP_FALL_RATE) fallRate += gravity * Scene.timeStep;
+		c.y -= fallRate * Scene.timeStep;
 	}
 }
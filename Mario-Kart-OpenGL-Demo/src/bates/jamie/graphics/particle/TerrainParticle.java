@@ -2,6 +2,7 @@ package bates.jamie.graphics.particle;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 import com.jogamp.opengl.util.texture.Texture;
@@ -56,8 +57,8 @@ public class TerrainParticle extends Particle
 	{
 		super.update();
 		
-		if(fallRate < TOP_FALL_RATE) fallRate += gravity;
-		c.y -= fallRate;
+		if(fallRate < TOP_FALL_RATE) fallRate += gravity * Scene.timeStep;
+		c.y -= fallRate * Scene.timeStep;
 	}
 }
 
@@ -2,6 +2,7 @@ package bates.jamie.graphics.particle;
 
 import javax.media.opengl.GL2;
 
+import bates.jamie.graphics.scene.Scene;
 import bates.jamie.graphics.util.Vec3;
 
 public class WeatherParticle extends Particle
@@ -24,7 +25,7 @@ public class WeatherParticle extends Particle
 	
 	public void update(Vec3 wind)
 	{
-		c = c.add(t).add(wind);
+		c = c.add(t.add(wind).multiply(Scene.timeStep));
 	}
 	
 	public Vec3 getDirectionVector(Vec3 wind, float scalar)
@@ -45,15 +45,19 @@ import java.awt.event.WindowEvent;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
@@ -87,17 +91,22 @@ import javax.swing.event.ListSelectionListener;
 
 import bates.jamie.graphics.collision.Bound;
 import bates.jamie.graphics.collision.BoundParser;
+import bates.jamie.graphics.collision.BoundingVolumeHierarchy;
 import bates.jamie.graphics.collision.OBB;
+import bates.jamie.graphics.collision.SpatialHash;
 import bates.jamie.graphics.collision.Sphere;
 import bates.jamie.graphics.entity.BillBoard;
 import bates.jamie.graphics.entity.BlockFort;
 import bates.jamie.graphics.entity.Car;
+import bates.jamie.graphics.entity.DeformationJournal;
+import bates.jamie.graphics.entity.FrictionMap;
 import bates.jamie.graphics.entity.GrassPatch;
 import bates.jamie.graphics.entity.LightingStrike;
 import bates.jamie.graphics.entity.Quadtree;
 import bates.jamie.graphics.entity.SkyBox;
 import bates.jamie.graphics.entity.Terrain;
 import bates.jamie.graphics.entity.TerrainPatch;
+import bates.jamie.graphics.entity.TiledTerrain;
 import bates.jamie.graphics.entity.Water;
 import bates.jamie.graphics.io.Console;
 import bates.jamie.graphics.io.GamePad;
@@ -118,6 +127,7 @@ import bates.jamie.graphics.particle.ParticleGenerator;
 import bates.jamie.graphics.particle.StarParticle;
 import bates.jamie.graphics.scene.ShadowCaster.ShadowQuality;
 import bates.jamie.graphics.sound.MP3;
+import bates.jamie.graphics.util.CullCounter;
 import bates.jamie.graphics.util.Face;
 import bates.jamie.graphics.util.Matrix;
 import bates.jamie.graphics.util.OBJParser;
@@ -254,6 +264,9 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	
 	private final FPSAnimator animator;
 	
+	// the simulation of the cars, items and particles, which is run apart from rendering
+	private Simulation simulation = new Simulation(this);
+	
 	public float fov = 90.0f;
 	
 	private GLU glu;
@@ -264,6 +277,16 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	public static boolean enableAnimation = true;
 	private boolean normalize = true;
 	
+	/*
+	 * The game time advanced by the current tick, in frames at the default tick
+	 * rate, by which the motion of the cars, items and particles is scaled. Counters
+	 * kept in frames are instead advanced by the whole frames that have elapsed,
+	 * the remainder of which is carried over to the next tick.
+	 */
+	public static float timeStep = 1;
+	public static int stepFrames = 1;
+	private float frameRemainder = 0;
+	
 	private Calendar execution;
 	
 	private int frames = 0;      // frame counter for current second
@@ -347,6 +370,15 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	public boolean enableObstacles = false;
 	
 	private List<OBB> wallBounds;
+	
+	// the static bounds, the hierarchy built over them and the bounds last found to overlap another
+	private List<Bound> obstacles = new ArrayList<Bound>();
+	private BoundingVolumeHierarchy obstacleTree;
+	private boolean obstaclesEnabled;
+	private List<Bound> candidates = new ArrayList<Bound>();
+	
+	// a copy of the static bounds published by the simulation for the renderer
+	private volatile List<Bound> publishedBounds = Collections.emptyList();
 	public BlockFort fort;
 	
 	
@@ -356,13 +388,14 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			"file:///" + System.getProperty("user.dir") + "//music//Mute City.mp3";
 	
 	
-	private List<Particle> particles = new ArrayList<Particle>();
+	// these lists are read by the renderer while the simulation changes them
+	private List<Particle> particles = new CopyOnWriteArrayList<Particle>();
 	public List<ParticleGenerator> generators = new ArrayList<ParticleGenerator>();
 
 	
 	private boolean enableItems = true;
 	private Queue<Integer> itemQueue = new ArrayBlockingQueue<Integer>(100);
-	private List<Item> itemList = new ArrayList<Item>();
+	private List<Item> itemList = new CopyOnWriteArrayList<Item>();
 	
 	
 	private int boostCounter = 0;
@@ -373,10 +406,25 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	
 	private Terrain terrain;
 	private TerrainPatch[] terrainPatches;
+	private FrictionMap frictionMap;
+	
+	// the vertices of the bound of the car being tested against the terrain
+	private float[] carVertices = new float[24];
 	public List<BillBoard> foliage;
+	
+	private TerrainLoader terrainLoader;
+	private String terrainProgress = "";
 	public GrassPatch grassPatch;
 	
 	public String terrainCommand = "";
+	
+	// changes to the surface of the terrain requested off the GL thread, applied at the start of the next frame
+	private Queue<Runnable> terrainEdits = new ConcurrentLinkedQueue<Runnable>();
+	
+	// a tiled height map that is streamed around the cars in place of the terrain
+	private TiledTerrain world;
+	public String worldCommand = "";
+	
 	public static final String DEFAULT_TERRAIN = "128 1000 20 6 18 0.125 1.0";
 	
 	public boolean enableReflection = false;
@@ -411,6 +459,7 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	
 	public boolean enableBloom = false;
 	public static boolean enableParallax = true;
+	public static boolean enableLightMap = true;
 	public static boolean enableFocalBlur = true;
 	
 	private LightingStrike[] bolts;
@@ -461,6 +510,7 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 				{
 					public void run()
 					{
+						simulation.stop();
 						animator.stop();
 						System.exit(0);
 					}
@@ -1183,6 +1233,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	    
 	    startTime = System.currentTimeMillis();
 	    //records the time prior to the rendering of the first frame after initialization
+	    
+	    simulation.start();
 	}
 	
 	private void setCheckBoxes()
@@ -1286,15 +1338,42 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		
 		registerItems(gl);
 		
-		if(enableAnimation) update(gl);
-		else cars.get(0).updateController();
+		if(!enableAnimation) cars.get(0).updateController();
+		
+		interpolateCars();
+		
+		applyTerrainEdits();
+		
+		if(enableAnimation && mousePressed) modifyTerrain();
 		
 		if(enableTerrain && !terrainCommand.equals(""))
 		{	
-			generateTerrain(gl, terrainCommand);	
+			if(terrain == null) generateTerrain(gl, terrainCommand);
+			else loadTerrain(terrainCommand);
+			
 			terrainCommand = "";
 		}
 		
+		if(terrainLoader != null) swapTerrain(gl);
+		
+		if(!worldCommand.equals(""))
+		{
+			loadWorld(gl, worldCommand);
+			worldCommand = "";
+		}
+		
+		if(world != null)
+		{
+			List<float[]> positions = new ArrayList<float[]>();
+			for(Car car : cars) positions.add(car.getPosition().toArray());
+			
+			if(world.update(gl, positions) > 0)
+			{
+				world.getError().printStackTrace();
+				cars.get(0).getHUD().broadcast("Tile Failed to Load");
+			}
+		}
+		
 		renderTime = System.currentTimeMillis();
 		
 		caster.disable(gl); // prevent reflections from being darkened by shadow
@@ -1361,6 +1440,7 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	private void render(GL2 gl)
 	{	
 		TimeQuery.resetCache();
+		CullCounter.resetCache();
 		
 		int[] order = new int[cars.size()];
 		
@@ -1368,6 +1448,10 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		int _i = i; //temporary variable _i used to store the boost count this frame
 		
 		if(mousePressed) selecter.selectModel(gl);
+		
+		// the lighting of the terrain is not baked for headlights, which follow the car
+		if(enableTerrain && terrain != null)
+			terrain.updateLightMap(gl, light.getPosition().toArray(), light.parallel, enableLightMap && !headlight);
 
 		for(int index : order)
 		{
@@ -1376,6 +1460,12 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			setupViewport(gl, index);
 			car.setupCamera(gl, glu);
 			
+			if(terrain != null && terrain.enableQuadtree)
+			{
+				int height = (cars.size() < 2) ? canvasHeight : canvasHeight / 2;
+				terrain.selectView(index, cars.size(), car.camera.getPosition().toArray(), height, fov);
+			}
+			
 			light.setup(gl, headlight);
 				
 			if(headlight)
@@ -1471,6 +1561,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		if(enableBlur && _i != boostCounter) gl.glAccum(GL_LOAD, 1.0f);
 		boostCounter = _i;
 		
+		if(terrain != null) terrain.clearView();
+		
 		if(shadowMap) displayMap(gl, focalBlur.getDepthTexture(), 0.0f, 0.0f, 1.0f, 1.0f);
 	}
 	
@@ -1574,11 +1666,61 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		}
 	}
 
-	private long update(GL2 gl)
+	/**
+	 * Positions each car for rendering between the last two snapshots published
+	 * by the simulation, according to the time since the latest of them.
+	 */
+	private void interpolateCars()
+	{
+		Snapshot[] snapshots = simulation.getSnapshots();
+		if(snapshots == null) return;
+		
+		Snapshot previous = snapshots[0];
+		Snapshot latest   = snapshots[1];
+		
+		float alpha = simulation.getAlpha(latest, System.nanoTime());
+		
+		for(int i = 0; i < cars.size() && i < latest.size(); i++)
+			cars.get(i).interpolate(previous, latest, alpha, i);
+	}
+	
+	public Simulation getSimulation() { return simulation; }
+	
+	/**
+	 * Queues a change to the surface of the terrain, such as a deformation, to be
+	 * made on the GL thread at the start of the next frame. The quadtrees of the
+	 * terrain must only be changed there, as that is where their vertex buffers
+	 * are uploaded, their cells are culled and their light maps are baked.
+	 */
+	public void queueTerrainEdit(Runnable edit) { terrainEdits.add(edit); }
+	
+	private void applyTerrainEdits()
+	{
+		Runnable edit;
+		
+		while((edit = terrainEdits.poll()) != null)
+		{
+			try { edit.run(); }
+			catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+
+	/**
+	 * Advances the cars, items and particles of the scene by a single tick; this
+	 * is called by the simulation on its own thread, so it must not use the GL
+	 * context.
+	 */
+	public long update()
 	{	
 		long start = System.currentTimeMillis();
 		
-		if(mousePressed) modifyTerrain(gl);
+		timeStep = simulation.getTimeStep();
+		
+		frameRemainder += timeStep;
+		stepFrames = (int) frameRemainder;
+		frameRemainder -= stepFrames;
+		
+		updateBounds();
 		
 		removeItems();
 		
@@ -1627,7 +1769,12 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		return System.currentTimeMillis() - start;
 	}
 
-	private void modifyTerrain(GL2 gl)
+	/**
+	 * Deforms the terrain beneath the mouse while a button is held. The mouse is
+	 * projected through the camera of the first car, both of which are read by the
+	 * renderer, so this is only called on the GL thread.
+	 */
+	private void modifyTerrain()
 	{
 		Camera camera = cars.get(0).camera;
 		
@@ -1644,7 +1791,7 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			float   h = (rightClick ? -0.5f : 0.5f);
 			
 			terrain.tree.deform(p, r, h);
-			grassPatch.updateHeights(gl);
+			grassPatch.invalidate(terrain.tree);
 		}
 	}
 
@@ -1675,25 +1822,40 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		itemCollisions();
 	}
 
+	// the items tested for collisions with each other, and their bounds sorted into a grid
+	private List<Item> allItems = new ArrayList<Item>();
+	private Bound[] itemBounds = new Bound[0];
+	private SpatialHash itemHash = new SpatialHash();
+	
+	/**
+	 * Tests every pair of items whose bounds may overlap for a collision; the
+	 * pairs are found by a spatial hash rather than by testing every pair, and
+	 * are tested in the same order.
+	 */
 	private void itemCollisions()
 	{
-		List<Item> allItems = new ArrayList<Item>();
-		
+		allItems.clear();
 		allItems.addAll(itemList);
 		
 		for(Car car : cars)
 			allItems.addAll(car.getItems());
 		
-		for(int i = 0; i < allItems.size() - 1; i++)
+		int count = allItems.size();
+		
+		if(itemBounds.length < count) itemBounds = new Bound[Math.max(count, itemBounds.length * 2)];
+		for(int i = 0; i < count; i++) itemBounds[i] = allItems.get(i).getBound();
+		Arrays.fill(itemBounds, count, itemBounds.length, null);
+		
+		itemHash.update(itemBounds, count);
+		
+		int pairs = itemHash.findPairs();
+		
+		for(int k = 0; k < pairs; k++)
 		{
-			for(int j = i + 1; j < allItems.size(); j++)
-			{
-				Item a = allItems.get(i);
-				Item b = allItems.get(j);
-				
-				//TODO can be optimised further by using spatial partitioning
-				if(a.canCollide(b) && a.getBound().testBound(b.getBound())) a.collide(b);
-			}
+			Item a = allItems.get(itemHash.getFirst (k));
+			Item b = allItems.get(itemHash.getSecond(k));
+			
+			if(a.canCollide(b) && a.getBound().testBound(b.getBound())) a.collide(b);
 		}
 	}
 
@@ -1711,30 +1873,31 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		}
 	}
 
+	/**
+	 * Finds the friction of the ground beneath each wheel of the car and the
+	 * patch that it is driving over from the friction map of the terrain.
+	 */
 	private void terrainCollisions(Car car)
 	{
-		Vec3[] vertices = car.bound.getVertices();
-		float[] frictions = {1, 1, 1, 1};
+		float[] vertices = carVertices;
+		car.bound.getVertices(vertices);
 		
 		cars.get(0).patch = null;
-			
-		for(TerrainPatch patch : terrainPatches)
+		
+		float friction = 0;
+		int patch = -1;
+		
+		for(int v = 0; v < 4; v++)
 		{
-			patch.colliding = false;
+			int cell = frictionMap.getCell(vertices[v * 3], vertices[v * 3 + 2]);
 			
-			for(int v = 0; v < 4; v++)
-			{
-				if(patch.isColliding(vertices[v].toArray()))
-				{
-					patch.colliding = true;
-					if(frictions[v] > patch.friction) frictions[v] = patch.friction;
-					car.patch = patch;
-				}
-			}
+			friction += frictionMap.getFriction(cell);
+			patch = Math.max(patch, frictionMap.getPatchIndex(cell));
 		}
-			
-		float friction = (frictions[0] + frictions[1] + frictions[2] + frictions[3]) / 4;
-		car.friction = friction;
+		
+		if(patch >= 0) car.patch = terrainPatches[patch];
+		
+		car.friction = friction / 4;
 	}
 
 	private int orderRender(int[] order)
@@ -1961,7 +2124,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 
 		gl.glPushMatrix();
 		{	
-			terrain.render(gl, glut);
+			if(world != null) world.render(gl);
+			else terrain.render(gl, glut);
 		}	
 		gl.glPopMatrix();
 
@@ -2296,14 +2460,57 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	
 	public List<Particle> getParticles() { return particles; }
 	
-	public List<Bound> getBounds()
+	/**
+	 * Returns the static bounds of the scene: the walls and, if enabled, the
+	 * obstacles of the fort. The list returned is a read-only copy of those
+	 * last collected by the simulation, so it may be used from any thread.
+	 */
+	public List<Bound> getBounds() { return publishedBounds; }
+	
+	/**
+	 * Collects the static bounds again, and builds the hierarchy over them, if
+	 * the obstacles have been enabled or disabled. This is only called from the
+	 * simulation thread, which then publishes a copy of the bounds to the renderer.
+	 */
+	private void updateBounds()
+	{
+		if(obstacleTree == null || obstaclesEnabled != enableObstacles)
+		{
+			obstaclesEnabled = enableObstacles;
+			
+			obstacles.clear();
+			obstacles.addAll(wallBounds);
+			if(obstaclesEnabled) obstacles.addAll(fort.getBounds());
+			
+			obstacleTree = new BoundingVolumeHierarchy(obstacles);
+			publishedBounds = Collections.unmodifiableList(new ArrayList<Bound>(obstacles));
+		}
+	}
+	
+	/**
+	 * Returns the static bounds of the scene that may collide with the bound
+	 * passed, in the same order as <code>getBounds()</code>. The list returned
+	 * is reused by every call.
+	 */
+	public List<Bound> getBounds(Bound bound)
 	{
-		List<Bound> bounds = new ArrayList<Bound>();
+		updateBounds();
+		obstacleTree.getCandidates(bound, candidates);
 		
-		bounds.addAll(wallBounds);
-		if(enableObstacles) bounds.addAll(fort.getBounds());
+		return candidates;
+	}
+	
+	/**
+	 * Returns the static bounds of the scene that the bound passed may collide
+	 * with as it moves by the displacement <code>d</code>, in the same order as
+	 * <code>getBounds()</code>. The list returned is reused by every call.
+	 */
+	public List<Bound> getBounds(Bound bound, Vec3 d)
+	{
+		updateBounds();
+		obstacleTree.getCandidates(bound, d, candidates);
 		
-		return bounds;
+		return candidates;
 	}
 
 	public Terrain getTerrain() { return terrain; }
@@ -2312,6 +2519,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	{
 		Random generator = new Random();
 		
+		if(terrain != null) terrain.deleteBuffers(gl);
+		
 		String[] args = command.trim().split(" ");
 		
 		if(args.length > 3)
@@ -2326,9 +2535,12 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			float p = Float.parseFloat(args[5]);
 			float h = Float.parseFloat(args[6]);
 			
+			// an optional seed can be supplied to reproduce a previous map
+			long seed = (args.length > 7) ? Long.parseLong(args[7]) : generator.nextLong();
+			
 			long start = System.currentTimeMillis();
 			
-			terrain = new Terrain(gl, length, iterations, r0, r1, p, h);
+			terrain = new Terrain(gl, length, iterations, r0, r1, p, h, seed);
 			
 			long end = System.currentTimeMillis();
 			
@@ -2339,6 +2551,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			for (int i = 0; i < terrainPatches.length; i++)
 				terrainPatches[i] = new TerrainPatch(null, terrain.heights, generator.nextInt(15) + 5);
 			
+			frictionMap = new FrictionMap(terrainPatches, terrain.length);
+			
 			System.out.printf("Patches Generated: %d ms\n", (System.currentTimeMillis() - end));
 		}
 		else
@@ -2360,6 +2574,8 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			for (int i = 0; i < terrainPatches.length; i++)
 				terrainPatches[i] = new TerrainPatch(null, terrain.heights, generator.nextInt(15) + 5);
 			
+			frictionMap = new FrictionMap(terrainPatches, terrain.length);
+			
 			System.out.printf("Patches Generated: %d ms\n", (System.currentTimeMillis() - end));
 		}
 		
@@ -2370,9 +2586,89 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		System.out.printf("Foliage Generated: (%d) %d ms\n", foliage.size(), (System.currentTimeMillis() - start));
 	}
 
+	/**
+	 * Streams the height map named by the command from the texture directory in
+	 * place of the terrain: <code>fileName [spacing]</code>. The command
+	 * <code>off</code> returns to the terrain.
+	 */
+	private void loadWorld(GL2 gl, String command)
+	{
+		String[] args = command.trim().split(" ");
+		
+		if(world != null) { world.delete(gl); world = null; }
+		
+		if(args[0].equalsIgnoreCase("off")) return;
+		
+		float spacing = (args.length > 1) ? Float.parseFloat(args[1]) : Terrain.sx;
+		
+		try { world = new TiledTerrain("tex/" + args[0], spacing, (terrain != null) ? terrain.baseTexture : null); }
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			cars.get(0).getHUD().broadcast("Invalid Height Map");
+		}
+	}
+	
+	public TiledTerrain getWorld() { return world; }
+	
+	/**
+	 * This method starts generating a new terrain on a background thread; the
+	 * current terrain continues to be used until the new one is swapped in.
+	 */
+	public void loadTerrain(String command)
+	{
+		if(terrainLoader != null)
+		{
+			cars.get(0).getHUD().broadcast("Terrain Generation in Progress");
+			return;
+		}
+		
+		terrainLoader = new TerrainLoader(this, terrain, command);
+		terrainLoader.start();
+	}
+	
+	/**
+	 * This method reports the progress of the terrain being generated in the
+	 * background and, once it has been uploaded, replaces the current terrain.
+	 */
+	private void swapTerrain(GL2 gl)
+	{
+		String progress = terrainLoader.getProgress();
+		
+		if(!progress.equals(terrainProgress))
+		{
+			cars.get(0).getHUD().broadcast(progress);
+			terrainProgress = progress;
+		}
+		
+		if(terrainLoader.isFailed()) { terrainLoader = null; return; }
+		
+		if(terrainLoader.upload(gl))
+		{
+			terrain.deleteBuffers(gl);
+			
+			terrain = terrainLoader.terrain;
+			terrain.setScale();
+			
+			terrainPatches = terrainLoader.patches;
+			frictionMap    = terrainLoader.frictionMap;
+			foliage        = terrainLoader.foliage;
+			
+			cars.get(0).getHUD().broadcast(terrainLoader.getProgress());
+			
+			terrainLoader   = null;
+			terrainProgress = "";
+		}
+	}
+	
 	public void generateFoliage(int patches, float spread, int patchSize)
 	{
-		foliage = new ArrayList<BillBoard>();
+		foliage = generateFoliage(terrain, patches, spread, patchSize);
+	}
+
+	public List<BillBoard> generateFoliage(Terrain terrain, int patches, float spread, int patchSize)
+	{
+		List<BillBoard> foliage = new ArrayList<BillBoard>();
 		Random generator = new Random(); 
 	    
 	    for(int i = 0; i < patches; i++)
@@ -2386,7 +2682,6 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	    	
 	    	if(i > patches * 0.75)
 	    	{
-	    		p.y = (terrain.enableQuadtree) ? terrain.tree.getCell(p.toArray(), terrain.tree.detail).getHeight(p.toArray()) : terrain.getHeight(p.toArray());
 	    		foliage.add(new BillBoard(p, 3, t));
 	    	}
 	    	else
@@ -2405,7 +2700,6 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		    		
 		    		if(Math.abs(p0.x) < 200 && Math.abs(p0.z) < 200)
 		    		{
-		    			p0.y = (terrain.enableQuadtree) ? terrain.tree.getCell(p0.toArray(), terrain.tree.detail).getHeight(p0.toArray()) : terrain.getHeight(p0.toArray());
 		    			foliage.add(new BillBoard(p0, 2, t));
 		    		}
 		    	}
@@ -2421,8 +2715,6 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	    	p.x = generator.nextFloat() * 360 - 180;
 	    	p.z = generator.nextFloat() * 360 - 180;
 	    	
-	    	p.y = (terrain.enableQuadtree) ? terrain.tree.getCell(p.toArray(), terrain.tree.detail).getHeight(p.toArray()) : terrain.getHeight(p.toArray());
-	    	
 	    	foliage.add(new BillBoard(p, 30, t));
 	    }
 	    
@@ -2435,19 +2727,43 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 	    	p.x = generator.nextFloat() * 360 - 180;
 	    	p.z = generator.nextFloat() * 360 - 180;
 	    	
-	    	p.y = (terrain.enableQuadtree) ? terrain.tree.getCell(p.toArray(), terrain.tree.detail).getHeight(p.toArray()) : terrain.getHeight(p.toArray());
-
 	    	foliage.add(new BillBoard(p, 4, t));
 	    }
+	    
+	    placeFoliage(terrain, foliage);
+	    
+	    return foliage;
 	}
 	
 	public void updateFoliage()
 	{
-		for(BillBoard board : foliage)
+		placeFoliage(terrain, foliage);
+	}
+	
+	/**
+	 * Places each billboard on the surface of the terrain; the heights are
+	 * sampled from the quadtree (or the map) as a single batch rather than one at
+	 * a time.
+	 */
+	private void placeFoliage(Terrain terrain, List<BillBoard> foliage)
+	{
+		int count = foliage.size();
+		
+		float[] x = new float[count];
+		float[] z = new float[count];
+		float[] heights = new float[count];
+		
+		for(int i = 0; i < count; i++)
 		{
-			Vec3 p = board.sphere.c;
-			board.sphere.c.y = (terrain.enableQuadtree) ? terrain.tree.getCell(p.toArray(), terrain.tree.detail).getHeight(p.toArray()) : terrain.getHeight(p.toArray());
+			Vec3 p = foliage.get(i).sphere.c;
+			x[i] = p.x;
+			z[i] = p.z;
 		}
+		
+		if(terrain.enableQuadtree) terrain.tree.getHeights(x, z, heights, count, terrain.tree.detail);
+		else terrain.getHeights(x, z, heights, count);
+		
+		for(int i = 0; i < count; i++) foliage.get(i).sphere.c.y = heights[i];
 	}
 
 	public void printDataToFile(String file, String[] headers, long[][] data)
@@ -2596,6 +2912,9 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 			
 			case KeyEvent.VK_D: cars.get(0).enableDeform = !cars.get(0).enableDeform; break;
 			case KeyEvent.VK_P: enableParallax = !enableParallax; break;
+			case KeyEvent.VK_L: enableLightMap = !enableLightMap; break;
+			case KeyEvent.VK_Z: undoDeformation(); break;
+			case KeyEvent.VK_Y: redoDeformation(); break;
 			case KeyEvent.VK_I: occludeSphere = !occludeSphere; break;
 			case KeyEvent.VK_W: water.frozen = !water.frozen; break;
 			case KeyEvent.VK_M: water.magma = !water.magma; break;
@@ -2609,6 +2928,30 @@ public class Scene implements GLEventListener, KeyListener, MouseWheelListener,
 		}
 	}
 	
+	public void undoDeformation()
+	{
+		queueTerrainEdit(new Runnable()
+		{
+			public void run()
+			{
+				DeformationJournal journal = terrain.tree.getJournal();
+				if(journal != null && journal.undo()) grassPatch.update = true;
+			}
+		});
+	}
+	
+	public void redoDeformation()
+	{
+		queueTerrainEdit(new Runnable()
+		{
+			public void run()
+			{
+				DeformationJournal journal = terrain.tree.getJournal();
+				if(journal != null && journal.redo()) grassPatch.update = true;
+			}
+		});
+	}
+	
 	public void keyReleased(KeyEvent e)
 	{
 		switch (e.getKeyCode())
@@ -0,0 +1,140 @@
+package bates.jamie.graphics.scene;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs the simulation of a scene (its cars, items, particles and
+ * collisions) on a thread of its own at a fixed rate, independent of the rate
+ * at which the scene is rendered. After each tick a snapshot of the cars is
+ * published; the renderer never waits for the simulation, but draws the cars
+ * between the last two snapshots according to the time that has passed since
+ * the latest of them.
+ *
+ * The motion of the scene was written for a frame at DEFAULT_TICK_RATE, so each
+ * tick scales it by Scene.timeStep, the length of the tick in such frames; a lower
+ * tick rate simulates the scene more coarsely, but not more slowly.
+ *
+ * If the simulation falls behind it runs up to MAXIMUM_CATCH_UP ticks at once,
+ * beyond which the time lost is dropped rather than letting the backlog grow.
+ */
+public class Simulation implements Runnable
+{
+	public static final int DEFAULT_TICK_RATE = 60;
+	public static final int MAXIMUM_CATCH_UP = 5;
+	
+	private Scene scene;
+	
+	private Thread thread;
+	private volatile boolean running = false;
+	
+	// the length of a tick in nanoseconds
+	private volatile long step;
+	private int tick = 0;
+	
+	// the last two snapshots {previous, latest}, replaced together so that they are always consistent
+	private volatile Snapshot[] snapshots;
+	
+	public Simulation(Scene scene)
+	{
+		this.scene = scene;
+		
+		setTickRate(DEFAULT_TICK_RATE);
+	}
+	
+	public int getTickRate() { return (int) Math.round(1E9 / step); }
+	
+	/**
+	 * Sets the number of ticks simulated per second; the game runs at the same
+	 * speed at any rate, as each tick advances the scene by the time it covers.
+	 */
+	public void setTickRate(int rate) { step = 1000000000L / Math.max(rate, 1); }
+	
+	/**
+	 * Returns the game time advanced by each tick, in frames at DEFAULT_TICK_RATE.
+	 */
+	public float getTimeStep() { return step * DEFAULT_TICK_RATE / 1E9f; }
+	
+	public boolean isRunning() { return running; }
+	
+	public void start()
+	{
+		if(running) return;
+		
+		publish();
+		
+		running = true;
+		thread = new Thread(this, "Simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop()
+	{
+		running = false;
+		if(thread == null) return;
+		
+		thread.interrupt();
+		
+		try { thread.join(); }
+		catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+		
+		thread = null;
+	}
+	
+	public void run()
+	{
+		long next = System.nanoTime();
+		
+		while(running)
+		{
+			int ticks = 0;
+			
+			while(System.nanoTime() - next >= 0 && ticks < MAXIMUM_CATCH_UP)
+			{
+				try
+				{
+					if(Scene.enableAnimation) scene.update();
+				}
+				catch(Exception e) { e.printStackTrace(); }
+				
+				publish();
+				
+				next += step;
+				ticks++;
+			}
+			
+			if(ticks == MAXIMUM_CATCH_UP) next = Math.max(next, System.nanoTime());
+			
+			long wait = next - System.nanoTime();
+			if(wait > 0) LockSupport.parkNanos(wait);
+		}
+	}
+	
+	private void publish()
+	{
+		Snapshot snapshot = new Snapshot(tick++, System.nanoTime(), scene.getCars());
+		Snapshot[] _snapshots = snapshots;
+		
+		Snapshot previous = (_snapshots != null && _snapshots[1].size() == snapshot.size()) ? _snapshots[1] : snapshot;
+		
+		snapshots = new Snapshot[] {previous, snapshot};
+	}
+	
+	/**
+	 * Returns the last two snapshots published, {previous, latest}, or null if
+	 * the simulation has not been started.
+	 */
+	public Snapshot[] getSnapshots() { return snapshots; }
+	
+	/**
+	 * Returns how far the renderer should draw between the previous and latest
+	 * snapshots at the time <code>now</code>: the cars are drawn one tick in the
+	 * past, so that they reach the latest snapshot as the next is published.
+	 */
+	public float getAlpha(Snapshot latest, long now)
+	{
+		float alpha = (float) (now - latest.time) / step;
+		
+		return Math.max(0, Math.min(alpha, 1));
+	}
+}
@@ -0,0 +1,121 @@
+package bates.jamie.graphics.scene;
+
+import java.util.List;
+
+import bates.jamie.graphics.entity.Car;
+import bates.jamie.graphics.util.Vec3;
+
+/**
+ * This class records the pose of every car at the end of a tick of the
+ * simulation. Snapshots are never changed once they are published, so the
+ * renderer can read them while the next tick is being simulated, and it draws
+ * the cars between the last two of them rather than at their current state.
+ */
+public final class Snapshot
+{
+	public final int tick;
+	
+	// the time at which the tick was completed in nanoseconds
+	public final long time;
+	
+	// the position {x, y, z}, axes {x, y, z} and trajectory of each car
+	private final float[] positions;
+	private final float[] axes;
+	private final float[] trajectories;
+	
+	public Snapshot(int tick, long time, List<Car> cars)
+	{
+		this.tick = tick;
+		this.time = time;
+		
+		int n = cars.size();
+		
+		positions    = new float[n * 3];
+		axes         = new float[n * 9];
+		trajectories = new float[n];
+		
+		for(int i = 0; i < n; i++)
+		{
+			Car car = cars.get(i);
+			Vec3 c = car.bound.c;
+			
+			positions[i * 3    ] = c.x;
+			positions[i * 3 + 1] = c.y;
+			positions[i * 3 + 2] = c.z;
+			
+			setAxis(i * 9    , car.bound.u.xAxis);
+			setAxis(i * 9 + 3, car.bound.u.yAxis);
+			setAxis(i * 9 + 6, car.bound.u.zAxis);
+			
+			trajectories[i] = car.trajectory;
+		}
+	}
+	
+	private void setAxis(int offset, Vec3 axis)
+	{
+		axes[offset    ] = axis.x;
+		axes[offset + 1] = axis.y;
+		axes[offset + 2] = axis.z;
+	}
+	
+	public int size() { return trajectories.length; }
+	
+	/**
+	 * Returns the position of a car <code>alpha</code> of the way from this
+	 * snapshot to the snapshot <code>next</code>.
+	 */
+	public Vec3 getPosition(Snapshot next, float alpha, int car)
+	{
+		float[] a = positions, b = next.positions;
+		int i = car * 3;
+		
+		return new Vec3(a[i    ] + (b[i    ] - a[i    ]) * alpha,
+		                a[i + 1] + (b[i + 1] - a[i + 1]) * alpha,
+		                a[i + 2] + (b[i + 2] - a[i + 2]) * alpha);
+	}
+	
+	/**
+	 * Returns the orientation of a car <code>alpha</code> of the way from this
+	 * snapshot to the snapshot <code>next</code> as a column-major matrix. The
+	 * axes are interpolated separately and then made orthonormal again.
+	 */
+	public float[] getOrientation(Snapshot next, float alpha, int car)
+	{
+		float[] a = axes, b = next.axes;
+		int i = car * 9;
+		
+		Vec3 x = new Vec3(a[i    ] + (b[i    ] - a[i    ]) * alpha,
+		                  a[i + 1] + (b[i + 1] - a[i + 1]) * alpha,
+		                  a[i + 2] + (b[i + 2] - a[i + 2]) * alpha).normalize();
+		
+		Vec3 y = new Vec3(a[i + 3] + (b[i + 3] - a[i + 3]) * alpha,
+		                  a[i + 4] + (b[i + 4] - a[i + 4]) * alpha,
+		                  a[i + 5] + (b[i + 5] - a[i + 5]) * alpha);
+		
+		Vec3 z = x.cross(y).normalize();
+		y = z.cross(x);
+		
+		return new float[]
+		{
+			x.x, x.y, x.z, 0,
+			y.x, y.y, y.z, 0,
+			z.x, z.y, z.z, 0,
+			  0,   0,   0, 1
+		};
+	}
+	
+	/**
+	 * Returns the trajectory of a car <code>alpha</code> of the way from this
+	 * snapshot to the snapshot <code>next</code>, turning through the smaller
+	 * of the two angles between them.
+	 */
+	public float getTrajectory(Snapshot next, float alpha, int car)
+	{
+		float a = trajectories[car];
+		float d = next.trajectories[car] - a;
+		
+		d -= 360 * Math.round(d / 360);
+		
+		return a + d * alpha;
+	}
+}
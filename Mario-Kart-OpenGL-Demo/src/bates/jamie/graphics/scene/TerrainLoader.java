@@ -0,0 +1,153 @@
+package bates.jamie.graphics.scene;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL2;
+
+import bates.jamie.graphics.entity.BillBoard;
+import bates.jamie.graphics.entity.FrictionMap;
+import bates.jamie.graphics.entity.Terrain;
+import bates.jamie.graphics.entity.TerrainPatch;
+
+/**
+ * This class generates a new terrain on a background thread so that the scene
+ * continues to be rendered using the current terrain in the meantime. The height
+ * map, quadtrees, terrain patches and foliage are all created off the GL thread;
+ * only the OpenGL resources of the terrain are created on the GL thread, one
+ * stage per frame, after which the scene can swap in the new terrain.
+ *
+ * The command is in the same format as that used by Scene.generateTerrain():
+ * <code>length iterations splashes [r0 r1 peak hill [seed]]</code>
+ */
+public class TerrainLoader implements Runnable
+{
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+		new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Terrain Loader");
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		});
+	
+	private Scene scene;
+	private Terrain current;
+	private String command;
+	
+	private volatile String progress = "Generating Terrain...";
+	private volatile boolean complete = false;
+	private volatile boolean failed = false;
+	
+	private int stage = 0;
+	
+	// the results are only read once complete has been set
+	Terrain terrain;
+	TerrainPatch[] patches;
+	FrictionMap frictionMap;
+	List<BillBoard> foliage;
+	
+	public TerrainLoader(Scene scene, Terrain current, String command)
+	{
+		this.scene   = scene;
+		this.current = current;
+		this.command = command;
+	}
+	
+	public void start()
+	{
+		executor.execute(this);
+	}
+	
+	public void run()
+	{
+		try
+		{
+			Random generator = new Random();
+			
+			String[] args = command.trim().split(" ");
+			
+			int length     = Integer.parseInt(args[0]);
+			int iterations = Integer.parseInt(args[1]);
+			int splashes   = Integer.parseInt(args[2]);
+			
+			long start = System.currentTimeMillis();
+			
+			if(args.length > 3)
+			{
+				int r0 = Integer.parseInt(args[3]);
+				int r1 = Integer.parseInt(args[4]);
+				
+				float p = Float.parseFloat(args[5]);
+				float h = Float.parseFloat(args[6]);
+				
+				long seed = (args.length > 7) ? Long.parseLong(args[7]) : generator.nextLong();
+				
+				terrain = new Terrain(current, length, iterations, r0, r1, p, h, seed);
+			}
+			else terrain = new Terrain(current, length, iterations, generator.nextLong());
+			
+			long end = System.currentTimeMillis();
+			
+			System.out.printf("Terrain Generated: (%d) %d ms\n", terrain.length * terrain.length, (end - start));
+			
+			progress = "Generating Patches...";
+			
+			patches = new TerrainPatch[splashes];
+			
+			for(int i = 0; i < patches.length; i++)
+				patches[i] = new TerrainPatch(null, terrain.heights, generator.nextInt(15) + 5);
+			
+			frictionMap = new FrictionMap(patches, terrain.length);
+			
+			System.out.printf("Patches Generated: %d ms\n", (System.currentTimeMillis() - end));
+			
+			progress = "Generating Foliage...";
+			
+			start = System.currentTimeMillis();
+			
+			foliage = scene.generateFoliage(terrain, 60, 10, 30);
+			
+			System.out.printf("Foliage Generated: (%d) %d ms\n", foliage.size(), (System.currentTimeMillis() - start));
+			
+			progress = "Uploading Terrain...";
+			complete = true;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			
+			progress = "Terrain Generation Failed";
+			failed = true;
+		}
+	}
+	
+	public String getProgress() { return progress; }
+	
+	public boolean isFailed() { return failed; }
+	
+	/**
+	 * This method is called once per frame on the GL thread; once the terrain has
+	 * been generated, a single stage of its OpenGL resources is created each call.
+	 *
+	 * @return <code>true</code> when the terrain is ready to be swapped in.
+	 */
+	public boolean upload(GL2 gl)
+	{
+		if(!complete) return false;
+		
+		if(terrain.upload(gl, stage++))
+		{
+			progress = "Terrain Loaded";
+			return true;
+		}
+		
+		return false;
+	}
+}
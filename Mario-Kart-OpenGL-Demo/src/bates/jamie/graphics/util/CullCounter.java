@@ -0,0 +1,49 @@
+package bates.jamie.graphics.util;
+
+import bates.jamie.graphics.scene.Scene;
+
+/**
+ * This class records the number of terrain cells drawn and culled during each
+ * type of render pass so that they can be displayed by the HUD; counts from
+ * passes of the same type within a frame (such as each viewport or each face of
+ * an environment map) are accumulated.
+ */
+public class CullCounter
+{
+	public static final int MAIN_PASS        = 0;
+	public static final int SHADOW_PASS      = 1;
+	public static final int DEPTH_PASS       = 2;
+	public static final int ENVIRONMENT_PASS = 3;
+	
+	public static final String[] PASS_NAMES = {"Main", "Shadow", "Depth", "Environment"};
+	
+	private static int cacheSize = 240;
+	
+	// the cells drawn and culled per pass {drawn, culled} for each frame
+	private static int[][][] cache = new int[cacheSize][PASS_NAMES.length][2];
+	
+	public static int[][][] getCache() { return cache; }
+	
+	public static void resetCache()
+	{
+		for(int i = 0; i < PASS_NAMES.length; i++)
+			cache[Scene.frameIndex][i][0] = cache[Scene.frameIndex][i][1] = 0;
+	}
+	
+	public static int getPass()
+	{
+		if(Scene.shadowMode     ) return SHADOW_PASS;
+		if(Scene.depthMode      ) return DEPTH_PASS;
+		if(Scene.environmentMode) return ENVIRONMENT_PASS;
+		
+		return MAIN_PASS;
+	}
+	
+	public static void record(int drawn, int culled)
+	{
+		int[] counts = cache[Scene.frameIndex][getPass()];
+		
+		counts[0] += drawn;
+		counts[1] += culled;
+	}
+}
@@ -0,0 +1,98 @@
+package bates.jamie.graphics.util;
+
+import javax.media.opengl.GL2;
+
+/**
+ * This class represents the view frustum of the current projection and model
+ * view matrices as six planes, which can be used to determine whether a bounding
+ * box may be visible before it is rendered.
+ *
+ * The planes are extracted from the combined matrix as described by Gribb and
+ * Hartmann; each plane is normalised and faces into the frustum.
+ */
+public class Frustum
+{
+	public static final int OUTSIDE   = 0;
+	public static final int INTERSECT = 1;
+	public static final int INSIDE    = 2;
+	
+	private float[] projection = new float[16];
+	private float[] modelview  = new float[16];
+	private float[] matrix     = new float[16];
+	
+	// left, right, bottom, top, near and far planes as {a, b, c, d}
+	private float[] planes = new float[24];
+	
+	/**
+	 * Extracts the frustum from the matrices currently loaded by OpenGL.
+	 */
+	public void update(GL2 gl)
+	{
+		gl.glGetFloatv(GL2.GL_PROJECTION_MATRIX, projection, 0);
+		gl.glGetFloatv(GL2.GL_MODELVIEW_MATRIX , modelview , 0);
+		
+		update(projection, modelview);
+	}
+	
+	/**
+	 * Extracts the frustum from a projection and model view matrix, both of which
+	 * are stored in column-major order.
+	 */
+	public void update(float[] projection, float[] modelview)
+	{
+		for(int c = 0; c < 4; c++)
+		{
+			for(int r = 0; r < 4; r++)
+			{
+				matrix[c * 4 + r] =
+					projection[r     ] * modelview[c * 4    ] +
+					projection[r +  4] * modelview[c * 4 + 1] +
+					projection[r +  8] * modelview[c * 4 + 2] +
+					projection[r + 12] * modelview[c * 4 + 3];
+			}
+		}
+		
+		for(int p = 0; p < 6; p++)
+		{
+			int row = p / 2;
+			float sign = (p % 2 == 0) ? 1 : -1;
+			
+			float a = matrix[ 3] + sign * matrix[row     ];
+			float b = matrix[ 7] + sign * matrix[row +  4];
+			float c = matrix[11] + sign * matrix[row +  8];
+			float d = matrix[15] + sign * matrix[row + 12];
+			
+			float length = (float) Math.sqrt(a * a + b * b + c * c);
+			
+			planes[p * 4    ] = a / length;
+			planes[p * 4 + 1] = b / length;
+			planes[p * 4 + 2] = c / length;
+			planes[p * 4 + 3] = d / length;
+		}
+	}
+	
+	/**
+	 * Tests an axis-aligned box against the frustum.
+	 *
+	 * @return <code>OUTSIDE</code> if the box cannot be seen, <code>INSIDE</code>
+	 * if it lies entirely within the frustum, otherwise <code>INTERSECT</code>.
+	 */
+	public int testBox(float x0, float y0, float z0, float x1, float y1, float z1)
+	{
+		int result = INSIDE;
+		
+		for(int p = 0; p < 24; p += 4)
+		{
+			float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+			
+			// the distances of the corners furthest along and against the normal of the plane
+			float max = a * (a > 0 ? x1 : x0) + b * (b > 0 ? y1 : y0) + c * (c > 0 ? z1 : z0) + d;
+			float min = a * (a > 0 ? x0 : x1) + b * (b > 0 ? y0 : y1) + c * (c > 0 ? z0 : z1) + d;
+			
+			if(max < 0) return OUTSIDE;
+			if(min < 0) result = INTERSECT;
+		}
+		
+		return result;
+	}
+}
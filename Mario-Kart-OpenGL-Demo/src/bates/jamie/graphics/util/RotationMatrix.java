@@ -20,6 +20,16 @@ public class RotationMatrix
 		zAxis = new Vec3(matrix[2]);
 	}
 	
+	/**
+	 * Reads the axes from a 4x4 matrix laid out as by <code>toArray()</code>.
+	 */
+	public RotationMatrix(float[] matrix)
+	{
+		xAxis = new Vec3(matrix[0], matrix[1], matrix[ 2]);
+		yAxis = new Vec3(matrix[4], matrix[5], matrix[ 6]);
+		zAxis = new Vec3(matrix[8], matrix[9], matrix[10]);
+	}
+	
 	public RotationMatrix(float x, float y, float z)
 	{
 		x = (float) toRadians(x);
@@ -27,6 +27,14 @@ public class TimeQuery
 	
 	public static int[][] getCache() { return cache; }
 	
+	/**
+	 * Returns the average time in nanoseconds of the queries read since the
+	 * average was last reset.
+	 */
+	public float getAverage() { return average; }
+	
+	public void resetAverage() { average = 0; counter = 0; }
+	
 	public static void resetCache()
 	{
 		for(int i = 0; i < 7; i++)